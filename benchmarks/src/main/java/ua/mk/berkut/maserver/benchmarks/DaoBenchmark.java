@@ -0,0 +1,149 @@
+package ua.mk.berkut.maserver.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ua.mk.berkut.maserver.dao.ConnectionPool;
+import ua.mk.berkut.maserver.dao.JdbcStorage;
+import ua.mk.berkut.maserver.dao.Storage;
+import ua.mk.berkut.maserver.dao.embedded.EmbeddedStorage;
+import ua.mk.berkut.maserver.db.User;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Запросы DAO при входе и в работе сервера: пользователь по id и по логину, вход вместе с друзьями
+ * и список друзей. Хранилище - JDBC с H2 в памяти (вместо MariaDB, без сети) или встроенное хранилище
+ * во временном каталоге
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DaoBenchmark {
+
+    @Param({"jdbc", "embedded"})
+    public String storage;
+
+    @Param({"10000"})
+    public int users;
+
+    @Param({"50"})
+    public int friends;
+
+    private Storage store;
+    private Path directory;
+    private Connection keepAlive;
+
+    /**
+     * Позиция потока в списке пользователей
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int next(int bound) {
+            if (++next > bound) next = 1;
+            return next;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException, SQLException {
+        if ("embedded".equals(storage)) {
+            directory = Files.createTempDirectory("dao-benchmark");
+            store = new EmbeddedStorage(directory);
+        } else {
+            String url = "jdbc:h2:mem:dao" + System.nanoTime() + ";MODE=MySQL";
+            // БД в памяти существует, пока открыто хотя бы одно подключение
+            keepAlive = DriverManager.getConnection(url);
+            try (Statement statement = keepAlive.createStatement()) {
+                statement.execute("create table chatuser (id int auto_increment primary key, login varchar(50) unique, "
+                        + "password varchar(200), username varchar(50), birthday date, city varchar(50), description varchar(200))");
+                statement.execute("create table friend (id1 int, id2 int)");
+                statement.execute("create index friend_id1 on friend (id1, id2)");
+                statement.execute("create index friend_id2 on friend (id2)");
+            }
+            store = new JdbcStorage(new ConnectionPool(url, new Properties(), 8, 600000, 30000, 5, 5000, 32));
+        }
+        fill(new Random(42));
+    }
+
+    private void fill(Random random) throws SQLException {
+        int[][] adjacency = PresenceBenchmark.randomFriendships(users, friends, random);
+        for (int from = 1; from <= users; from += 1000) {
+            int to = Math.min(users, from + 999);
+            List<User> batch = new ArrayList<>();
+            List<int[]> pairs = new ArrayList<>();
+            for (int id = from; id <= to; id++) {
+                batch.add(new User(id, "user" + id, "pbkdf2-sha256$1$AA$AA", "User " + id, LocalDate.of(2000, 1, 1), "Kyiv", ""));
+                for (int friend : adjacency[id]) {
+                    pairs.add(new int[]{id, friend});
+                }
+            }
+            store.write(batch, pairs);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, SQLException {
+        store.close();
+        if (keepAlive != null) keepAlive.close();
+        if (directory != null) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public User findById(Cursor cursor) {
+        return store.users().find(cursor.next(users));
+    }
+
+    @Benchmark
+    public User findByLogin(Cursor cursor) {
+        return store.users().findByLogin("user" + cursor.next(users));
+    }
+
+    @Benchmark
+    public User findUserWithFriends(Cursor cursor) {
+        IntStream.Builder friendIds = IntStream.builder();
+        User user = store.users().findUserWithFriends("user" + cursor.next(users), friendIds);
+        friendIds.build();
+        return user;
+    }
+
+    @Benchmark
+    public int[] getFriendsFor(Cursor cursor) {
+        return store.friends().getFriendsFor(cursor.next(users));
+    }
+}
@@ -0,0 +1,90 @@
+package ua.mk.berkut.maserver.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.metrics.Histogram;
+import ua.mk.berkut.maserver.metrics.MetricsRegistry;
+import ua.mk.berkut.maserver.online.MessageRouter;
+import ua.mk.berkut.maserver.online.OnlineRegistry;
+import ua.mk.berkut.maserver.protocol.ByteSlice;
+
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Цена замеров на пути сообщения: пересылка по id без замера и с двумя замерами,
+ * как в сервере (время команды и время пересылки), и отдельно запись в гистограмму
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+    private static final int USERS = 10000;
+
+    private MessageRouter router;
+    private User sender;
+    private Histogram command;
+    private Histogram route;
+
+    /**
+     * Позиция потока в списке получателей
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        final ByteSlice text = ByteSlice.of("привет, как дела?");
+        int next;
+        long value;
+
+        int next() {
+            if (++next == USERS) next = 0;
+            return next;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        OnlineRegistry registry = new OnlineRegistry();
+        for (int i = 0; i < USERS; i++) {
+            registry.add(new SinkClient(new User(i + 1, "user" + i, "", "User " + i, LocalDate.now(), "", "")));
+        }
+        sender = new User(USERS + 1, "sender", "", "Sender", LocalDate.now(), "", "");
+        router = new MessageRouter(registry);
+        MetricsRegistry metrics = new MetricsRegistry();
+        command = metrics.histogram("command_seconds", "", "command", "chat");
+        route = metrics.histogram("route_seconds", "");
+    }
+
+    @Benchmark
+    public boolean routeById(Cursor cursor) {
+        return router.route(sender, cursor.next() + 1, cursor.text);
+    }
+
+    @Benchmark
+    public boolean routeByIdTimed(Cursor cursor) {
+        long start = System.nanoTime();
+        long routeStart = System.nanoTime();
+        boolean routed = router.route(sender, cursor.next() + 1, cursor.text);
+        route.recordSince(routeStart);
+        command.recordSince(start);
+        return routed;
+    }
+
+    @Benchmark
+    public void record(Cursor cursor) {
+        // значения от 1 мкс до 1 мс, чтобы поиск диапазона не был всегда одинаковым
+        cursor.value = (cursor.value * 31 + 1000) % 1_000_000;
+        route.record(cursor.value);
+    }
+}
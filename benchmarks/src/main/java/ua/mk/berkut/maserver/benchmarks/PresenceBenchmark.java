@@ -0,0 +1,162 @@
+package ua.mk.berkut.maserver.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ua.mk.berkut.maserver.clients.Client;
+import ua.mk.berkut.maserver.dao.FriendDAO;
+import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.friends.FriendGraph;
+import ua.mk.berkut.maserver.friends.SortedIntArrays;
+import ua.mk.berkut.maserver.online.OnlineRegistry;
+import ua.mk.berkut.maserver.online.PresenceIndex;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Список друзей online ({@code <<<}): индекс присутствия {@link PresenceIndex} против просмотра
+ * всех подключений с проверкой дружбы и полного списка online ({@code Main.getOnlineUsers}).
+ * Online половина пользователей, у каждого около {@link #friends} взаимных друзей
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PresenceBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int users;
+
+    @Param({"50"})
+    public int friends;
+
+    private OnlineRegistry registry;
+    private FriendGraph friendGraph;
+    private PresenceIndex presence;
+    private int[] online;
+
+    /**
+     * Позиция потока в списке пользователей online
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int next(int[] ids) {
+            if (++next == ids.length) next = 0;
+            return ids[next];
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        int[][] adjacency = randomFriendships(users, friends, new Random(42));
+        friendGraph = new FriendGraph(new MemoryFriendDAO(adjacency));
+        registry = new OnlineRegistry();
+        presence = new PresenceIndex(registry, friendGraph);
+        online = new int[users / 2];
+        for (int i = 0; i < online.length; i++) {
+            int id = 2 * i + 1;
+            online[i] = id;
+            User user = new User(id, "user" + id, "", "User " + id, LocalDate.now(), "", "");
+            registry.add(new SinkClient(user));
+            presence.online(user);
+        }
+    }
+
+    @Benchmark
+    public List<User> presenceIndex(Cursor cursor) {
+        return presence.onlineFriendsOf(cursor.next(online));
+    }
+
+    @Benchmark
+    public List<User> scanOnline(Cursor cursor) {
+        int id = cursor.next(online);
+        List<User> result = new ArrayList<>();
+        for (Client client : registry.clients()) {
+            if (friendGraph.areFriends(id, client.getUser().getId())) result.add(client.getUser());
+        }
+        return result;
+    }
+
+    @Benchmark
+    public List<User> allOnline() {
+        return registry.clients().stream().map(Client::getUser).collect(Collectors.toList());
+    }
+
+    /**
+     * Случайный граф взаимной дружбы
+     * @return отсортированные массивы друзей по id (индекс 0 не используется)
+     */
+    static int[][] randomFriendships(int users, int friends, Random random) {
+        List<List<Integer>> lists = new ArrayList<>();
+        for (int i = 0; i <= users; i++) {
+            lists.add(new ArrayList<>());
+        }
+        for (int id = 1; id <= users; id++) {
+            for (int k = 0; k < friends / 2; k++) {
+                int friend = 1 + random.nextInt(users);
+                if (friend == id) continue;
+                lists.get(id).add(friend);
+                lists.get(friend).add(id);
+            }
+        }
+        int[][] result = new int[users + 1][];
+        for (int i = 0; i <= users; i++) {
+            result[i] = SortedIntArrays.sortedUnique(lists.get(i).stream().mapToInt(Integer::intValue).toArray());
+        }
+        return result;
+    }
+
+    /**
+     * Дружба в памяти - граф загружается без БД
+     */
+    private static class MemoryFriendDAO implements FriendDAO {
+        private final int[][] adjacency;
+
+        MemoryFriendDAO(int[][] adjacency) {
+            this.adjacency = adjacency;
+        }
+
+        @Override
+        public int[] getFriendsFor(int id) {
+            return adjacency[id].clone();
+        }
+
+        @Override
+        public boolean exists(int from, int to) {
+            return Arrays.binarySearch(adjacency[from], to) >= 0;
+        }
+
+        @Override
+        public boolean addFriendFor(int from, int to) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean addFriendsFor(int from, int[] to) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int[] getAddedBy(int id) {
+            return adjacency[id].clone();
+        }
+    }
+}
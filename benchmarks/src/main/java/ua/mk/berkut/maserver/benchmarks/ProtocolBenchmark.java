@@ -0,0 +1,119 @@
+package ua.mk.berkut.maserver.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.protocol.BinaryCodec;
+import ua.mk.berkut.maserver.protocol.ByteSlice;
+import ua.mk.berkut.maserver.protocol.ChatMessageView;
+import ua.mk.berkut.maserver.protocol.Frame;
+import ua.mk.berkut.maserver.protocol.LineCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор и кодирование одного сообщения: прежний путь через строку и {@code split(";")}
+ * против разбора в буфере ({@link LineCodec#parseChat}) и двоичного кадра ({@link BinaryCodec.Reader}),
+ * конкатенация строки с {@code getBytes} против кодирования в кадр из пула
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+    private static final String LINE = "receiver;sender;привет, как дела? Сообщение средней длины для замера";
+
+    private final ChatMessageView view = new ChatMessageView();
+    private final BinaryCodec.Reader reader = new BinaryCodec.Reader();
+    private final ByteSlice text = new ByteSlice();
+    private final byte[] bytes = new byte[1024];
+    private ByteBuffer line;
+    private int lineLength;
+    private ByteBuffer binary;
+    private int binaryOffset;
+    private int binaryLength;
+    private User sender;
+    private String messageText;
+    private ByteSlice message;
+
+    @Setup
+    public void setUp() {
+        byte[] encoded = LINE.getBytes(StandardCharsets.UTF_8);
+        lineLength = encoded.length;
+        line = ByteBuffer.allocateDirect(1024);
+        line.put(encoded).flip();
+
+        // кадр CHAT: длина, тип, id получателя, текст
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(BinaryCodec.CHAT);
+        payload.write(42);
+        byte[] textBytes = "привет, как дела? Сообщение средней длины для замера".getBytes(StandardCharsets.UTF_8);
+        payload.write(textBytes, 0, textBytes.length);
+        binaryLength = payload.size();
+        binary = ByteBuffer.allocateDirect(1024);
+        BinaryCodec.putVarint(binaryLength, binary);
+        binaryOffset = binary.position();
+        binary.put(payload.toByteArray()).flip();
+
+        sender = new User(1, "sender", "", "Sender", LocalDate.now(), "", "");
+        messageText = "привет, как дела? Сообщение средней длины для замера";
+        message = ByteSlice.of(messageText);
+    }
+
+    @Benchmark
+    public void parseSplit(Blackhole blackhole) {
+        line.get(bytes, 0, lineLength);
+        line.rewind();
+        String[] fields = new String(bytes, 0, lineLength, StandardCharsets.UTF_8).split(";");
+        blackhole.consume(fields);
+    }
+
+    @Benchmark
+    public boolean parseLineCodec() {
+        return LineCodec.parseChat(line, 0, lineLength, view);
+    }
+
+    @Benchmark
+    public void parseBinary(Blackhole blackhole) {
+        reader.reset(binary, binaryOffset, binaryLength);
+        blackhole.consume(reader.readByte());
+        blackhole.consume(reader.readVarint());
+        blackhole.consume(reader.rest(text));
+    }
+
+    @Benchmark
+    public byte[] encodeConcat() {
+        return (">>>" + sender.getLogin() + ">>>" + messageText + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public int encodeText() {
+        Frame frame = LineCodec.TEXT.chat(sender, message);
+        int length = frame.buffer().remaining();
+        frame.release();
+        return length;
+    }
+
+    @Benchmark
+    public int encodeBinary() {
+        Frame frame = BinaryCodec.BINARY.chat(sender, message);
+        int length = frame.buffer().remaining();
+        frame.release();
+        return length;
+    }
+}
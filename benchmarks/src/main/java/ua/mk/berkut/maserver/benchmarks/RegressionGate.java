@@ -0,0 +1,103 @@
+package ua.mk.berkut.maserver.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Сравнение результатов JMH в формате CSV ({@code -rf csv}) с результатами прошлого выпуска.
+ * Замеры сопоставляются по имени бенчмарка, режиму и параметрам. Ухудшение - рост времени
+ * (режимы avgt, sample, ss) или падение пропускной способности (thrpt) больше порога.
+ * Запуск: {@code java -cp benchmarks.jar ua.mk.berkut.maserver.benchmarks.RegressionGate baseline.csv current.csv [порог, %]};
+ * код выхода 1, если есть ухудшения
+ */
+public class RegressionGate {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("usage: RegressionGate baseline.csv current.csv [threshold %]");
+            System.exit(2);
+        }
+        Map<String, double[]> baseline = read(args[0]);
+        Map<String, double[]> current = read(args[1]);
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+
+        int regressions = 0;
+        System.out.println("change\tbaseline\tcurrent\tbenchmark");
+        for (Map.Entry<String, double[]> entry : current.entrySet()) {
+            double[] before = baseline.get(entry.getKey());
+            double[] after = entry.getValue();
+            if (before == null) {
+                System.out.printf("new\t-\t%.3f\t%s%n", after[0], entry.getKey());
+                continue;
+            }
+            // изменение со знаком "+" - улучшение, для любого режима
+            double change = (after[0] - before[0]) / before[0] * 100;
+            if (before[1] < 0) change = -change;
+            boolean regression = change < -threshold;
+            if (regression) regressions++;
+            System.out.printf("%+.1f%%%s\t%.3f\t%.3f\t%s%n", change, regression ? " !!!" : "",
+                    before[0], after[0], entry.getKey());
+        }
+        for (String key : baseline.keySet()) {
+            if (!current.containsKey(key)) System.out.println("missing\t\t\t" + key);
+        }
+        System.out.println(regressions == 0 ? "no regressions" : regressions + " regression(s) over " + threshold + "%");
+        System.exit(regressions == 0 ? 0 : 1);
+    }
+
+    /**
+     * Чтение CSV JMH
+     * @param file файл результатов
+     * @return для каждого замера (бенчмарк, режим, параметры) - оценку и направление:
+     * 1, если больше - лучше, и -1, если меньше - лучше
+     */
+    private static Map<String, double[]> read(String file) throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+        List<String> header = parse(lines.get(0));
+        int benchmark = header.indexOf("Benchmark");
+        int mode = header.indexOf("Mode");
+        int score = header.indexOf("Score");
+        Map<String, double[]> result = new LinkedHashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isBlank()) continue;
+            List<String> fields = parse(line);
+            StringBuilder key = new StringBuilder(fields.get(benchmark)).append(' ').append(fields.get(mode));
+            for (int i = 0; i < header.size(); i++) {
+                if (header.get(i).startsWith("Param: ") && !fields.get(i).isEmpty()) {
+                    key.append(' ').append(header.get(i).substring(7)).append('=').append(fields.get(i));
+                }
+            }
+            double direction = "thrpt".equals(fields.get(mode)) ? 1 : -1;
+            result.put(key.toString(), new double[]{Double.parseDouble(fields.get(score)), direction});
+        }
+        return result;
+    }
+
+    /**
+     * Разбор строки CSV: поля через запятую, строки в кавычках
+     */
+    private static List<String> parse(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,95 @@
+package ua.mk.berkut.maserver.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.online.MessageRouter;
+import ua.mk.berkut.maserver.online.OnlineRegistry;
+import ua.mk.berkut.maserver.protocol.ByteSlice;
+import ua.mk.berkut.maserver.protocol.ChatMessageView;
+import ua.mk.berkut.maserver.protocol.LineCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пересылка одного сообщения при 1k-100k пользователей online: строкой (как {@code Main.processMessage(String)}),
+ * из буфера чтения ({@link LineCodec#parseChat}) и по id получателя (двоичный протокол).
+ * Получатели выбираются по кругу, чтобы обращения к реестру не попадали в один и тот же элемент
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int users;
+
+    private MessageRouter router;
+    private User sender;
+    private String[] lines;
+    private byte[][] lineBytes;
+
+    /**
+     * Состояние потока: позиция в списке получателей и буфер чтения
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        final ByteBuffer in = ByteBuffer.allocateDirect(1024);
+        final ChatMessageView view = new ChatMessageView();
+        final ByteSlice text = ByteSlice.of("привет, как дела?");
+        int next;
+
+        int next(int bound) {
+            if (++next == bound) next = 0;
+            return next;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        OnlineRegistry registry = new OnlineRegistry();
+        lines = new String[users];
+        lineBytes = new byte[users][];
+        for (int i = 0; i < users; i++) {
+            registry.add(new SinkClient(new User(i + 1, "user" + i, "", "User " + i, LocalDate.now(), "", "")));
+            lines[i] = "user" + i + ";sender;привет, как дела?";
+            lineBytes[i] = lines[i].getBytes(StandardCharsets.UTF_8);
+        }
+        sender = new User(users + 1, "sender", "", "Sender", LocalDate.now(), "", "");
+        router = new MessageRouter(registry);
+    }
+
+    @Benchmark
+    public boolean routeLine(Cursor cursor) {
+        return router.route(lines[cursor.next(users)]);
+    }
+
+    @Benchmark
+    public boolean routeFromBuffer(Cursor cursor) {
+        byte[] line = lineBytes[cursor.next(users)];
+        ByteBuffer in = cursor.in;
+        in.clear();
+        in.put(line).flip();
+        return LineCodec.parseChat(in, 0, line.length, cursor.view) && router.route(cursor.view);
+    }
+
+    @Benchmark
+    public boolean routeById(Cursor cursor) {
+        return router.route(sender, cursor.next(users) + 1, cursor.text);
+    }
+}
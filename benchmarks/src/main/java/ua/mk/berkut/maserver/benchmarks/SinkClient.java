@@ -0,0 +1,27 @@
+package ua.mk.berkut.maserver.benchmarks;
+
+import ua.mk.berkut.maserver.clients.Client;
+import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.protocol.Frame;
+
+/**
+ * Подключение без сокета: кадры сразу возвращаются в пул, поэтому замер включает
+ * поиск получателя и кодирование, но не запись в сеть
+ */
+class SinkClient implements Client {
+    private final User user;
+
+    SinkClient(User user) {
+        this.user = user;
+    }
+
+    @Override
+    public User getUser() {
+        return user;
+    }
+
+    @Override
+    public void sendFrame(Frame frame) {
+        frame.release();
+    }
+}
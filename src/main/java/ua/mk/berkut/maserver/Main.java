@@ -1,23 +1,61 @@
 package ua.mk.berkut.maserver;
 
+import ua.mk.berkut.maserver.auth.Authenticator;
+import ua.mk.berkut.maserver.auth.LoginRateLimiter;
+import ua.mk.berkut.maserver.auth.PasswordHasher;
+import ua.mk.berkut.maserver.auth.VerifiedSessionCache;
+import ua.mk.berkut.maserver.cluster.ClusterNode;
+import ua.mk.berkut.maserver.cluster.RemoteClient;
+import ua.mk.berkut.maserver.clients.Client;
+import ua.mk.berkut.maserver.clients.ClientSession;
 import ua.mk.berkut.maserver.clients.ClientThread;
+import ua.mk.berkut.maserver.clients.ConnectionExecutors;
+import ua.mk.berkut.maserver.clients.NioServer;
+import ua.mk.berkut.maserver.clients.OutboundQueue;
+import ua.mk.berkut.maserver.dao.ConnectionPool;
 import ua.mk.berkut.maserver.dao.FriendDAO;
+import ua.mk.berkut.maserver.dao.JdbcStorage;
+import ua.mk.berkut.maserver.dao.Storage;
 import ua.mk.berkut.maserver.dao.UserDAO;
+import ua.mk.berkut.maserver.dao.UserDirectory;
+import ua.mk.berkut.maserver.dao.WriteBehindQueue;
+import ua.mk.berkut.maserver.dao.embedded.EmbeddedStorage;
 import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.friends.FriendGraph;
+import ua.mk.berkut.maserver.friends.SortedIntArrays;
+import ua.mk.berkut.maserver.metrics.Histogram;
+import ua.mk.berkut.maserver.metrics.MetricsRegistry;
+import ua.mk.berkut.maserver.metrics.MetricsServer;
+import ua.mk.berkut.maserver.metrics.TimedStorage;
+import ua.mk.berkut.maserver.offline.OfflineStore;
+import ua.mk.berkut.maserver.online.DetachedClient;
+import ua.mk.berkut.maserver.online.MessageRouter;
+import ua.mk.berkut.maserver.online.OnlineRegistry;
+import ua.mk.berkut.maserver.online.PresenceIndex;
+import ua.mk.berkut.maserver.online.SessionTable;
+import ua.mk.berkut.maserver.online.UndeliveredHandler;
+import ua.mk.berkut.maserver.protocol.ByteSlice;
+import ua.mk.berkut.maserver.protocol.ChatMessageView;
+import ua.mk.berkut.maserver.protocol.Codec;
+import ua.mk.berkut.maserver.protocol.Frame;
+import ua.mk.berkut.maserver.protocol.FramePool;
+import ua.mk.berkut.maserver.protocol.LineCodec;
+import ua.mk.berkut.maserver.rooms.RoomBroadcaster;
+import ua.mk.berkut.maserver.rooms.RoomRegistry;
 
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
 import java.time.LocalDate;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 import java.util.stream.Collectors;
 
 public class Main {
@@ -31,19 +69,93 @@ public class Main {
 
 
     /**
-     * Список всех пользователей
+     * Справочник пользователей в памяти
      */
-    private List<User> users;
+    private UserDirectory directory;
 
     /**
-     * Список потоков, обслуживающих пользователей
+     * Подключения пользователей online
      */
-    private List<ClientThread> onlineUserThreads;
+    private final OnlineRegistry onlineUsers = new OnlineRegistry();
+
+    /**
+     * Пересылка сообщений без общей блокировки
+     */
+    private MessageRouter router;
+
+    /**
+     * Сообщения для пользователей, которые не online; null, если хранилище отключено
+     */
+    private OfflineStore offline;
 
     // Объекты доступа к данным
     private UserDAO userDAO;
     private FriendDAO friendDAO;
 
+    /**
+     * Отложенная запись регистраций и друзей в БД
+     */
+    private WriteBehindQueue writeBehind;
+
+    /**
+     * Проверка паролей в отдельном пуле потоков
+     */
+    private Authenticator authenticator;
+
+    /**
+     * Сессии, которые можно возобновить после обрыва подключения; null, если возобновление отключено
+     */
+    private SessionTable sessions;
+
+    /**
+     * Последний присвоенный id пользователя
+     */
+    private final AtomicInteger lastUserId = new AtomicInteger();
+
+    /**
+     * Узел кластера; null, если сервер работает один
+     */
+    private ClusterNode cluster;
+
+    /**
+     * Граф взаимной дружбы пользователей
+     */
+    private FriendGraph friendGraph;
+
+    /**
+     * Друзья online для каждого пользователя online
+     */
+    private PresenceIndex presence;
+
+    /**
+     * Участники комнат
+     */
+    private final RoomRegistry rooms = new RoomRegistry();
+
+    /**
+     * Рассылка сообщений в комнаты
+     */
+    private RoomBroadcaster broadcaster;
+
+    /**
+     * Метрики сервера и замеры горячих путей
+     */
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final LongAdder accepted = new LongAdder();
+    private final Histogram[] commandLatency = new Histogram[ClientSession.Command.values().length];
+    private final Histogram loginFromCache = metrics.histogram("chat_login_seconds",
+            "Login duration by where the user was found", "source", "cache");
+    private final Histogram loginFromDb = metrics.histogram("chat_login_seconds",
+            "Login duration by where the user was found", "source", "db");
+    private final Histogram routeLatency = metrics.histogram("chat_route_seconds", "Direct message routing duration");
+
+    {
+        for (ClientSession.Command command : ClientSession.Command.values()) {
+            commandLatency[command.ordinal()] = metrics.histogram("chat_command_seconds",
+                    "Client command handling duration", "command", command.name().toLowerCase());
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         new Main().run();
     }
@@ -51,65 +163,453 @@ public class Main {
     /**
      * Основной метод работы сервера
      */
+    @SuppressWarnings("try")
     private void run() throws Exception {
-        // Подключение к БД - не закрывается, пока работает сервер
-        try (Connection ignored = startServer()) {
-            users = userDAO.getAllUsers();
-            onlineUserThreads = new ArrayList<>();
-            printUsers(users);
-            ServerSocket serverSocket = new ServerSocket(
-                    Integer.parseInt(properties.getProperty("port", "1234"))
-            );
+        // Хранилище (пул подключений к БД или файлы) - не закрывается, пока работает сервер
+        try (Storage ignored = startServer()) {
+            // пользователи из журнала отложенной записи, которые еще не записаны в БД
+            writeBehind.pendingUsers().forEach(directory::put);
+            lastUserId.set(Math.max(userDAO.getMaxId(), writeBehind.getMaxUserId()));
+            // directory.page.size - пользователей в одном запросе при заполнении справочника;
+            // подключения принимаются, не дожидаясь конца заполнения
+            directory.startWarm(Integer.parseInt(properties.getProperty("directory.page.size", "5000")));
+            int port = Integer.parseInt(properties.getProperty("port", "1234"));
+            // server.mode = thread (поток на каждого клиента), virtual (виртуальный поток на каждого клиента)
+            // или nio (неблокирующие реакторы)
+            String mode = properties.getProperty("server.mode", "thread");
+            // server.backlog - сколько подключений ждут приема; при массовом переподключении клиентов
+            // короткая очередь приводит к повторам SYN и задержкам входа в секунды
+            int backlog = Integer.parseInt(properties.getProperty("server.backlog", "1024"));
+            if ("nio".equals(mode)) {
+                if ("block".equalsIgnoreCase(properties.getProperty("out.queue.policy", "drop"))) {
+                    System.out.println("out.queue.policy=block is not supported in nio mode, drop is used");
+                }
+                int processors = Runtime.getRuntime().availableProcessors();
+                new NioServer(this, port,
+                        Integer.parseInt(properties.getProperty("nio.reactors", String.valueOf(processors))),
+                        Integer.parseInt(properties.getProperty("nio.workers", String.valueOf(2 * processors))),
+                        backlog).run();
+                return;
+            }
+            Executor executor = ConnectionExecutors.forMode(mode);
+            ServerSocket serverSocket = new ServerSocket(port, backlog);
             //noinspection InfiniteLoopStatement
             for (; ; ) {
                 Socket socket = serverSocket.accept();
-                new ClientThread(socket, this).start();
+                connectionAccepted();
+                executor.execute(new ClientThread(socket, this, executor));
             }
         }
         // connection.close(); // - закрыть подключение, если реализован выход
     }
 
-    // отладочный метод - печать всех пользователей
-    private void printUsers(List<User> users) {
-        users.forEach(System.out::println);
+    /**
+     * Запуск сервера.
+     * Хранилище в chat.cfg: storage (jdbc или embedded), storage.dir - каталог встроенного хранилища.
+     * Параметры пула в chat.cfg: pool.size, pool.idle.timeout (мс), pool.validation.interval (мс простоя,
+     * после которых подключение проверяется), pool.validation.timeout (с), pool.borrow.timeout (мс),
+     * pool.statement.cache (число подготовленных запросов на подключение).
+     * Хранилище сообщений для пользователей не online: offline.enabled, offline.dir (каталог журнала),
+     * offline.segment.size (байт), offline.fsync (сбрасывать ли на диск каждую групповую запись),
+     * offline.replay.threads (потоков доставки при входе).
+     * Отложенная запись в БД: persist.journal (файл журнала), persist.batch.size, persist.retry.count,
+     * persist.retry.delay (мс), persist.fsync.
+     * Проверка паролей: auth.pbkdf2.iterations, auth.threads, auth.queue, auth.timeout (мс),
+     * auth.rate.address и auth.rate.login (попыток в минуту, 0 - без ограничения), auth.cache.ttl (с).
+     * Возобновление сессий: session.ttl (с ожидания после обрыва, 0 - отключено), session.queue.capacity
+     * (кадров, которые копятся для оборванной сессии).
+     * Метрики в формате Prometheus: metrics.port (0 - отключено), metrics.address (по умолчанию только локальные запросы);
+     * если порт занят, сервер работает без метрик.
+     * Кластер: cluster.node (имя этого узла, пусто - без кластера), cluster.nodes (все узлы: имя=хост:порт через запятую,
+     * одинаково на всех узлах), cluster.secret (обязательный общий секрет узлов), cluster.queue.capacity (сообщений в очереди к узлу), cluster.timeout (мс молчания узла до его выхода)
+     * @return хранилище данных
+     * @throws IOException если чтение настроек невозможно
+     */
+    private Storage startServer() throws IOException {
+
+        properties.load(Files.newBufferedReader(Paths.get("chat.cfg")));
+        Storage opened = openStorage();
+        Storage storage = new TimedStorage(opened, metrics);
+        userDAO = storage.users();
+        friendDAO = storage.friends();
+        friendGraph = new FriendGraph(friendDAO);
+        // directory.capacity - сколько пользователей держать в памяти
+        directory = new UserDirectory(userDAO, Integer.parseInt(properties.getProperty("directory.capacity", "100000")));
+        writeBehind = new WriteBehindQueue(storage, Paths.get(properties.getProperty("persist.journal", "persist.journal")),
+                Integer.parseInt(properties.getProperty("persist.batch.size", "512")),
+                Integer.parseInt(properties.getProperty("persist.retry.count", "3")),
+                Long.parseLong(properties.getProperty("persist.retry.delay", "100")),
+                Boolean.parseBoolean(properties.getProperty("persist.fsync", "true")),
+                new WriteBehindQueue.Listener() {
+                    @Override
+                    public void friendsAdded(int from, int[] to) {
+                        Main.this.friendsAdded(from, to);
+                    }
+
+                    @Override
+                    public void userRejected(User user) {
+                        Main.this.userRejected(user);
+                    }
+                });
+        presence = new PresenceIndex(onlineUsers, friendGraph);
+        authenticator = new Authenticator(
+                new PasswordHasher(Integer.parseInt(properties.getProperty("auth.pbkdf2.iterations", "100000"))),
+                new LoginRateLimiter(Integer.parseInt(properties.getProperty("auth.rate.address", "120")),
+                        Integer.parseInt(properties.getProperty("auth.rate.login", "10"))),
+                new VerifiedSessionCache(Long.parseLong(properties.getProperty("auth.cache.ttl", "300"))),
+                Integer.parseInt(properties.getProperty("auth.threads",
+                        String.valueOf(Runtime.getRuntime().availableProcessors()))),
+                Integer.parseInt(properties.getProperty("auth.queue", "1024")),
+                Long.parseLong(properties.getProperty("auth.timeout", "5000")),
+                (user, stored) -> {
+                    user.setPassword(stored);
+                    userDAO.updatePassword(user.getId(), stored);
+                });
+        long sessionTtl = Long.parseLong(properties.getProperty("session.ttl", "60"));
+        if (sessionTtl > 0) {
+            sessions = new SessionTable(sessionTtl,
+                    Integer.parseInt(properties.getProperty("session.queue.capacity",
+                            properties.getProperty("out.queue.capacity", "1024"))),
+                    this::remove);
+        }
+        // room.fanout.lanes - потоков рассылки в крупные комнаты, room.fanout.parallel - с какого размера комнаты она параллельна
+        broadcaster = new RoomBroadcaster(onlineUsers, rooms,
+                Integer.parseInt(properties.getProperty("room.fanout.lanes",
+                        String.valueOf(Runtime.getRuntime().availableProcessors()))),
+                Integer.parseInt(properties.getProperty("room.fanout.parallel", "256")));
+        if (Boolean.parseBoolean(properties.getProperty("offline.enabled", "true"))) {
+            offline = new OfflineStore(Paths.get(properties.getProperty("offline.dir", "offline")),
+                    Long.parseLong(properties.getProperty("offline.segment.size", String.valueOf(64 * 1024 * 1024))),
+                    Boolean.parseBoolean(properties.getProperty("offline.fsync", "true")),
+                    Integer.parseInt(properties.getProperty("offline.replay.threads", "2")),
+                    onlineUsers, new OfflineStore.Receivers() {
+                        @Override
+                        public int idOf(String login) {
+                            User user = directory.findByLogin(login);
+                            if (user == null) user = writeBehind.pendingUser(login);
+                            return user == null ? 0 : user.getId();
+                        }
+
+                        @Override
+                        public boolean exists(int id) {
+                            return directory.findById(id) != null;
+                        }
+                    });
+            // принятые сообщения дописываются в журнал при остановке сервера
+            Runtime.getRuntime().addShutdownHook(new Thread(offline::close, "offline-close"));
+            router = new MessageRouter(onlineUsers, new UndeliveredHandler() {
+                @Override
+                public void undelivered(String receiver, ByteSlice sender, ByteSlice text) {
+                    offline.append(receiver, sender, text);
+                }
+
+                @Override
+                public void undelivered(int receiverId, ByteSlice sender, ByteSlice text) {
+                    offline.append(receiverId, sender, text);
+                }
+            });
+        } else {
+            router = new MessageRouter(onlineUsers);
+        }
+        String node = properties.getProperty("cluster.node", "");
+        if (!node.isEmpty()) {
+            cluster = new ClusterNode(this, onlineUsers, node, properties.getProperty("cluster.secret", ""),
+                    ClusterNode.parseNodes(properties.getProperty("cluster.nodes", "")),
+                    Integer.parseInt(properties.getProperty("cluster.queue.capacity", "65536")),
+                    Long.parseLong(properties.getProperty("cluster.timeout", "5000")));
+            cluster.start();
+        }
+        registerMetrics(opened);
+        int metricsPort = Integer.parseInt(properties.getProperty("metrics.port", "9464"));
+        if (metricsPort > 0) {
+            try {
+                new MetricsServer(properties.getProperty("metrics.address", "127.0.0.1"), metricsPort, metrics);
+            } catch (IOException e) {
+                // например, порт занят другим экземпляром на том же хосте - чат работает без метрик
+                System.err.println("Metrics server not started on port " + metricsPort + ": " + e);
+            }
+        }
+        return storage;
     }
 
     /**
-     * Запуск сервера
-     * @return подключение к БД
-     * @throws IOException если сетевое подключение невозможно
-     * @throws SQLException если произошла ошибка с БД
+     * Регистрация статистики, которую компоненты собирают сами; она читается только при запросе метрик
+     * @param storage хранилище без замеров времени (для статистики пула подключений)
      */
-    private Connection startServer() throws IOException, SQLException {
+    private void registerMetrics(Storage storage) {
+        metrics.counter("chat_connections_accepted_total", "Accepted client connections", accepted::sum);
+        metrics.gauge("chat_online_users", "Users online", onlineUsers::size);
+        if (storage instanceof JdbcStorage) {
+            ConnectionPool pool = ((JdbcStorage) storage).pool();
+            metrics.gauge("chat_pool_connections", "Open database connections", pool::getOpenCount);
+            metrics.counter("chat_pool_borrows_total", "Connections borrowed from the pool", pool::getBorrowCount);
+            metrics.counter("chat_pool_timeouts_total", "Borrows that timed out", pool::getTimeoutCount);
+            metrics.gauge("chat_pool_wait_avg_ms", "Average wait for a connection", pool::getAverageWaitMillis);
+            metrics.gauge("chat_pool_wait_max_ms", "Longest wait for a connection", pool::getMaxWaitMillis);
+            metrics.counter("chat_statement_cache_total", "Prepared statement lookups", "result", "hit",
+                    pool::getStatementCacheHits);
+            metrics.counter("chat_statement_cache_total", "Prepared statement lookups", "result", "miss",
+                    pool::getStatementCacheMisses);
+        }
+        metrics.gauge("chat_directory_users", "Users cached in memory", directory::size);
+        metrics.gauge("chat_directory_warm", "1 when the initial directory load is finished",
+                () -> directory.isWarm() ? 1 : 0);
+        metrics.gauge("chat_directory_hit_ratio", "Share of lookups served from memory", directory::getHitRate);
+        metrics.counter("chat_directory_evictions_total", "Users evicted from memory", directory::getEvictionCount);
+        metrics.gauge("chat_directory_load_avg_ms", "Average user load from storage", directory::getAverageLoadMillis);
+        metrics.counter("chat_outbound_dropped_total", "Frames dropped for slow receivers", OutboundQueue::getTotalDropped);
+        metrics.counter("chat_outbound_disconnects_total", "Slow receivers disconnected", OutboundQueue::getTotalDisconnects);
+        metrics.counter("chat_frame_allocations_total", "Frames allocated outside the pool",
+                FramePool.SHARED::getAllocationCount);
+        for (int b = 0; b < broadcaster.getBucketCount(); b++) {
+            int bucket = b;
+            String size = broadcaster.getBucketLabel(b);
+            metrics.counter("chat_room_fanout_total", "Room broadcasts by room size", "size", size,
+                    () -> broadcaster.getCount(bucket));
+            metrics.gauge("chat_room_fanout_avg_us", "Average room broadcast duration by room size", "size", size,
+                    () -> broadcaster.getAverageMicros(bucket));
+        }
+        if (offline != null) {
+            metrics.counter("chat_offline_appended_total", "Messages stored for offline users", offline::getAppendedCount);
+            metrics.counter("chat_offline_failed_total", "Messages lost because the journal write failed", offline::getFailedCount);
+            metrics.counter("chat_offline_delivered_total", "Stored messages delivered", offline::getDeliveredCount);
+            metrics.gauge("chat_offline_pending", "Stored messages not delivered yet", offline::getPendingCount);
+            metrics.gauge("chat_offline_segments", "Offline journal segments", offline::getSegmentCount);
+        }
+        metrics.gauge("chat_persist_queue_depth", "Commands waiting to be written", writeBehind::getQueueDepth);
+        metrics.gauge("chat_persist_batch_avg", "Average commands per write", writeBehind::getAverageBatchSize);
+        metrics.gauge("chat_persist_commit_avg_ms", "Average write duration", writeBehind::getAverageCommitMillis);
+        metrics.counter("chat_persist_retries_total", "Write retries", writeBehind::getRetryCount);
+        metrics.counter("chat_persist_failures_total", "Commands that could not be written", writeBehind::getFailureCount);
+        metrics.counter("chat_auth_verifications_total", "Password hash verifications", authenticator::getVerificationCount);
+        metrics.gauge("chat_auth_verify_avg_ms", "Average password hash verification", authenticator::getAverageVerifyMillis);
+        metrics.counter("chat_auth_cache_hits_total", "Logins verified without hashing", authenticator::getCacheHitCount);
+        metrics.counter("chat_auth_limited_total", "Login attempts over the rate limit", authenticator::getLimitedCount);
+        metrics.counter("chat_auth_rejected_total", "Verifications rejected by overload", authenticator::getRejectedCount);
+        metrics.gauge("chat_auth_queue_depth", "Verifications waiting for a thread", authenticator::getQueueDepth);
+        if (cluster != null) {
+            metrics.gauge("chat_cluster_nodes_connected", "Other cluster nodes linked both ways", cluster::getConnectedCount);
+            metrics.counter("chat_cluster_forwarded_total", "Frames forwarded to other nodes", cluster::getForwardedCount);
+            metrics.counter("chat_cluster_received_total", "Frames received from other nodes", cluster::getReceivedCount);
+            metrics.counter("chat_cluster_dropped_total", "Frames for unreachable nodes", cluster::getDroppedCount);
+            metrics.counter("chat_cluster_joins_total", "Node connections", cluster::getJoinCount);
+            metrics.counter("chat_cluster_leaves_total", "Nodes that stopped or became unreachable", cluster::getLeaveCount);
+        }
+        if (sessions != null) {
+            metrics.gauge("chat_sessions", "Resume tokens in effect", sessions::size);
+            metrics.counter("chat_sessions_detached_total", "Sessions waiting after a dropped connection",
+                    sessions::getDetachedCount);
+            metrics.counter("chat_sessions_resumed_total", "Sessions resumed", sessions::getResumedCount);
+            metrics.counter("chat_sessions_expired_total", "Sessions not resumed in time", sessions::getExpiredCount);
+        }
+    }
 
-        properties.load(Files.newBufferedReader(Paths.get("chat.cfg")));
-        Connection connection = DriverManager.getConnection(
+    /**
+     * Учет принятого подключения
+     */
+    public void connectionAccepted() {
+        accepted.increment();
+    }
+
+    /**
+     * Учет времени обработки команды клиента
+     * @param command вид команды
+     * @param startNanos начало обработки ({@link System#nanoTime()})
+     */
+    public void commandDone(ClientSession.Command command, long startNanos) {
+        commandLatency[command.ordinal()].recordSince(startNanos);
+    }
+
+    /**
+     * Открытие хранилища: storage = jdbc (БД по url из chat.cfg) или embedded (файлы в каталоге storage.dir)
+     * @return хранилище
+     * @throws IOException если файлы встроенного хранилища недоступны
+     */
+    private Storage openStorage() throws IOException {
+        String type = properties.getProperty("storage", "jdbc");
+        if ("embedded".equals(type)) {
+            return new EmbeddedStorage(Paths.get(properties.getProperty("storage.dir", "data")));
+        }
+        return new JdbcStorage(new ConnectionPool(
                 properties.getProperty("url"),
-                properties);
-        userDAO = new UserDAO(connection);
-        friendDAO = new FriendDAO(connection);
-        return connection;
+                properties,
+                Integer.parseInt(properties.getProperty("pool.size", "10")),
+                Long.parseLong(properties.getProperty("pool.idle.timeout", "600000")),
+                Long.parseLong(properties.getProperty("pool.validation.interval", "30000")),
+                Integer.parseInt(properties.getProperty("pool.validation.timeout", "5")),
+                Long.parseLong(properties.getProperty("pool.borrow.timeout", "5000")),
+                Integer.parseInt(properties.getProperty("pool.statement.cache", "32"))));
     }
 
     /**
      * Отключение клиента, завершившего работу
-     * @param clientThread ссылка на поток клиента, завершившего работу
+     * @param clientThread ссылка на клиента, завершившего работу
+     */
+    public void remove(Client clientThread) {
+        if (onlineUsers.remove(clientThread)) {
+            presence.offline(clientThread.getUser());
+            rooms.leaveAll(clientThread.getUser().getId());
+            friendGraph.evict(clientThread.getUser().getId());
+            if (cluster != null && !(clientThread instanceof RemoteClient)) cluster.offline(clientThread.getUser());
+        }
+    }
+
+    /**
+     * Вход пользователя на другом узле кластера. Если пользователь подключен и к этому узлу,
+     * сообщения ему доставляются локально
+     * @param client пользователь другого узла
+     */
+    public void remoteOnline(RemoteClient client) {
+        Client current = onlineUsers.findById(client.getUser().getId());
+        if (current != null && !(current instanceof RemoteClient)) return;
+        onlineUsers.add(client);
+        if (current == null) presence.online(client.getUser());
+    }
+
+    /**
+     * Выход пользователя на другом узле кластера
+     * @param node узел
+     * @param id id пользователя
+     */
+    public void remoteOffline(String node, int id) {
+        Client current = onlineUsers.findById(id);
+        if (current instanceof RemoteClient && ((RemoteClient) current).node().equals(node)) remove(current);
+    }
+
+    /**
+     * Выход узла кластера (остановлен или недоступен): его пользователи выходят из online
+     * @param node узел
+     */
+    public void nodeLeft(String node) {
+        for (Client client : onlineUsers.clients()) {
+            if (client instanceof RemoteClient && ((RemoteClient) client).node().equals(node)) remove(client);
+        }
+    }
+
+    /**
+     * Доставка кадра, пересланного другим узлом, пользователю этого узла
+     * @param receiverId id получателя
+     * @param frame кадр в протоколе получателя
+     */
+    public void deliverRemote(int receiverId, Frame frame) {
+        Client client = onlineUsers.findById(receiverId);
+        if (client != null && !(client instanceof RemoteClient)) {
+            client.sendFrame(frame);
+        } else {
+            // получатель успел выйти
+            frame.release();
+        }
+    }
+
+    /**
+     * Новая взаимная дружба, записанная другим узлом
+     * @param id1 первый пользователь
+     * @param id2 второй пользователь
+     */
+    public void remoteFriendship(int id1, int id2) {
+        addFriendship(id1, id2);
+    }
+
+    /**
+     * Выдача токена возобновления сессии вошедшему пользователю
+     * @param user вошедший пользователь
+     * @param codec протокол подключения
+     * @return токен или null, если возобновление сессий отключено
      */
-    public void remove(ClientThread clientThread) {
-        onlineUserThreads.remove(clientThread);
+    public String openSession(User user, Codec codec) {
+        return sessions == null ? null : sessions.open(user, codec);
     }
 
     /**
-     * Поиск пользователя по логину и паролю. Для проверки, был ли ранее зарегистрирован пользователь с такими данными
+     * Обрыв подключения сессии с токеном: вместо выхода из online подключение замещается
+     * ожидающей сессией, которой передаются неотправленные кадры. Если сессию не возобновят
+     * за session.ttl секунд, пользователь выходит из online, а накопленные кадры отбрасываются
+     * @param client оборвавшееся подключение
+     * @param token токен сессии
+     * @return false, если сессия не может ждать и клиента надо удалить из online
+     */
+    public boolean detach(Client client, String token) {
+        if (sessions == null) return false;
+        DetachedClient parked = sessions.detach(token);
+        if (parked == null) return false;
+        if (!onlineUsers.replace(client, parked)) {
+            // пользователь уже вошел через другое подключение
+            sessions.close(token);
+            return false;
+        }
+        client.transferPending(parked);
+        return true;
+    }
+
+    /**
+     * Получение ожидающей сессии по токену - без проверки пароля и обращения к БД
+     * @param token предъявленный токен
+     * @param codec протокол нового подключения
+     * @return ожидающую сессию или null, если токен не действует
+     */
+    public DetachedClient resumeSession(String token, Codec codec) {
+        return sessions == null ? null : sessions.resume(token, codec);
+    }
+
+    /**
+     * Подключение, возобновившее сессию, занимает ее место в online и получает накопленные кадры.
+     * Друзья не получают уведомлений о выходе и входе пользователя
+     * @param parked сессия, полученная из {@link #resumeSession(String, Codec)}
+     * @param client новое подключение, уже связанное с пользователем сессии
+     */
+    public void reattach(DetachedClient parked, Client client) {
+        sessions.attach(parked, client);
+        // если за время ожидания пользователь вошел и вышел через другое подключение, вход выполняется заново
+        if (!onlineUsers.replace(parked, client)) addToOnline(client);
+    }
+
+    /**
+     * Завершение сессии с токеном при выходе клиента
+     * @param token токен сессии
+     */
+    public void closeSession(String token) {
+        if (sessions != null) sessions.close(token);
+    }
+
+    /**
+     * Учет попытки входа ограничителем частоты - до обращения к БД
+     * @param address адрес клиента
+     * @param login введенный логин
+     * @return false, если попыток с этого адреса или для этого логина слишком много
+     */
+    public boolean allowLogin(String address, String login) {
+        return authenticator.allow(address, login);
+    }
+
+    /**
+     * Поиск пользователя по логину и паролю. Для проверки, был ли ранее зарегистрирован пользователь с такими данными.
+     * Пароль проверяется в пуле хеширования {@link Authenticator}
      * @param login введенный логин пользователя
      * @param password введенный пароль пользователя
-     * @return объект пользователя, включая список ID друзей или null если пользователь с такими login-password не зарегистрирован
+     * @return объект пользователя или null если пользователь с такими login-password не зарегистрирован.
+     * Друзья пользователя после входа находятся в графе дружбы
+     * @throws java.util.concurrent.RejectedExecutionException если проверка паролей перегружена
      */
     public User findUser(String login, String password) {
-        User user = userDAO.findUser(login, password);
-        if (user != null) {
-            user.setFriendsIds(friendDAO.getFriendsFor(user.getId()));
+        long start = System.nanoTime();
+        User user = directory.getIfPresent(login);
+        if (user == null) user = writeBehind.pendingUser(login);
+        if (user == null) {
+            // пользователя нет в памяти - профиль и друзья одним запросом
+            long version = friendGraph.version();
+            IntStream.Builder friends = IntStream.builder();
+            user = userDAO.findUserWithFriends(login, friends);
+            boolean verified = user != null && authenticator.verify(user, password);
+            loginFromDb.recordSince(start);
+            if (!verified) return null;
+            directory.put(user);
+            friendGraph.offer(user.getId(), friends.build().toArray(), version);
+            return user;
         }
+        boolean verified = authenticator.verify(user, password);
+        loginFromCache.recordSince(start);
+        if (!verified) return null;
+        friendGraph.friendsOf(user.getId());
         return user;
     }
 
@@ -118,36 +618,71 @@ public class Main {
      * @return список всех пользователей, которіе сейчас online
      */
     public List<User> getOnlineUsers() {
-        return onlineUserThreads
+        return onlineUsers.clients()
                 .stream()
-                .map(ClientThread::getUser)
+                .map(Client::getUser)
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Список друзей пользователя, которые сейчас online. Берется из индекса присутствия,
+     * без просмотра всех подключений
+     * @param user пользователь, вошедший в систему
+     * @return друзей пользователя, которые сейчас online
+     */
+    public List<User> getOnlineFriends(User user) {
+        return presence.onlineFriendsOf(user.getId());
+    }
+
+    /**
+     * Подписка пользователя на уведомления о входе и выходе друзей
+     * @param user пользователь, вошедший в систему
+     */
+    public void subscribePresence(User user) {
+        presence.subscribe(user.getId());
+    }
+
     /**
      * Пересылка сообщения от одного клиента другому
      * @param message сообщение, передаваемое от одного клиента другому
      */
-    public synchronized void processMessage(String message) {
-        String[] split = message.split(SEPARATOR);
-        if (split.length!=3) return;
-        String receiver = split[0];
-        String sender = split[1];
-        String text = split[2];
-        // Среди всех потоков пользователей, выбрать те, чей логин соответствует переданному
-        Optional<ClientThread> clientThread = onlineUserThreads
-                .stream()
-                .filter(t -> t.getUser().getLogin().equals(receiver))
-                .findFirst(); // так как не может быть более одного такого логина
-        clientThread.ifPresent(thread -> thread.send(sender, text));
+    public void processMessage(String message) {
+        long start = System.nanoTime();
+        router.route(message);
+        routeLatency.recordSince(start);
+    }
+
+    /**
+     * Пересылка сообщения, разобранного прямо в буфере чтения
+     * @param message сообщение в формате: получатель;отправитель;текст
+     */
+    public void processMessage(ChatMessageView message) {
+        long start = System.nanoTime();
+        router.route(message);
+        routeLatency.recordSince(start);
+    }
+
+    /**
+     * Пересылка сообщения от вошедшего пользователя получателю с заданным id (двоичный протокол)
+     * @param sender отправитель
+     * @param receiverId id получателя
+     * @param text текст сообщения в UTF-8
+     */
+    public void processMessage(User sender, int receiverId, ByteSlice text) {
+        long start = System.nanoTime();
+        router.route(sender, receiverId, text);
+        routeLatency.recordSince(start);
     }
 
     /**
-     * Добавляет поток клиента к списку online
-     * @param clientThread поток, обслуживающий клиента
+     * Добавляет клиента к списку online и доставляет ему сообщения, сохраненные, пока он был не online
+     * @param clientThread подключение, обслуживающее клиента
      */
-    public synchronized void addToOnline(ClientThread clientThread) {
-        onlineUserThreads.add(clientThread);
+    public void addToOnline(Client clientThread) {
+        onlineUsers.add(clientThread);
+        presence.online(clientThread.getUser());
+        if (cluster != null) cluster.online(clientThread);
+        if (offline != null) offline.replay(clientThread.getUser().getId(), clientThread);
     }
 
     /**
@@ -156,40 +691,203 @@ public class Main {
      * @return нового зарегистрированного пользователя или null, если регистрация не удалась
      */
     public User register(String line) {
+        String[] s = line.split(SEPARATOR);
+        if (s.length!=6) return null;
+        return register(s[1], s[2], s[3], s[4], s[5]);
+    }
+
+    /**
+     * Регистрация нового пользователя по отдельным полям. Пользователь получает id и входит сразу,
+     * а в БД записывается фоновым потоком ({@link WriteBehindQueue})
+     * @param login логин
+     * @param password пароль
+     * @param username имя пользователя
+     * @param dateStr дата рождения, например 2000-01-31
+     * @param city город
+     * @return нового зарегистрированного пользователя или null, если регистрация не удалась
+     */
+    public User register(String login, String password, String username, String dateStr, String city) {
+        if (login.isEmpty() || login.indexOf('>') >= 0 || !isField(login) || !isField(password)
+                || !isField(username) || !isField(city)) {
+            return null;
+        }
         try {
-            String[] s = line.split(SEPARATOR);
-            if (s.length!=6) return null;
-            String login = s[1];
-            String password = s[2];
-            String username = s[3];
-            String dateStr = s[4];
-            String[] split = dateStr.split("\\D");
-            LocalDate birthday = LocalDate.of(Integer.parseInt(split[0]), Integer.parseInt(split[1]), Integer.parseInt(split[2]));
-            String city = s[5];
-            User user = new User(login, password, username, birthday, city, "");
-            user = userDAO.addUser(user);
+            LocalDate birthday = LineCodec.parseDate(dateStr);
+            if (directory.findByLogin(login) != null) return null;
+            String stored = authenticator.hash(password);
+            User user = new User(nextUserId(), login, stored, username, birthday, city, "");
+            if (!writeBehind.register(user)) return null;
+            directory.put(user);
             return user;
         } catch (Exception e) {
             return null;
         }
     }
 
+    /**
+     * Проверка поля регистрации: поля попадают в строки текстового протокола ({@code id;username;login},
+     * {@code >>>login>>>текст}), поэтому в них не допускаются разделитель и переводы строк,
+     * а в логине - еще и '>'.
+     * Одинаково для текстовой и двоичной регистрации
+     * @param value значение поля
+     * @return true, если поле допустимо
+     */
+    private static boolean isField(String value) {
+        return value.indexOf(';') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0;
+    }
+
+    /**
+     * Новый id пользователя. Узлы кластера раздают id из разных остатков по модулю числа узлов,
+     * поэтому id, выданные одновременно на разных узлах, не совпадают
+     * @return id больше всех известных
+     */
+    private int nextUserId() {
+        if (cluster == null) return lastUserId.incrementAndGet();
+        int nodes = cluster.getSize();
+        int index = cluster.getIndex();
+        return lastUserId.updateAndGet(last -> {
+            int next = last + 1;
+            return next + Math.floorMod(index - next, nodes);
+        });
+    }
+
+    /**
+     * Вход пользователя в комнату
+     * @param user вошедший пользователь
+     * @param room название комнаты
+     * @return false, если название комнаты недопустимо
+     */
+    public boolean joinRoom(User user, String room) {
+        return rooms.join(room, user.getId());
+    }
+
+    /**
+     * Выход пользователя из комнаты
+     * @param user вошедший пользователь
+     * @param room название комнаты
+     */
+    public void leaveRoom(User user, String room) {
+        rooms.leave(room, user.getId());
+    }
+
+    /**
+     * Рассылка сообщения участникам комнаты
+     * @param user отправитель - участник комнаты
+     * @param room название комнаты
+     * @param text текст сообщения в UTF-8
+     */
+    public void processRoomMessage(User user, String room, ByteSlice text) {
+        broadcaster.broadcast(room, user, text);
+    }
+
+    /**
+     * Новый пакет сообщений, который доставляется каждому получателю одним кадром
+     * @return пустой пакет
+     */
+    public MessageRouter.Batch newMessageBatch() {
+        return router.newBatch();
+    }
+
     /**
      * Реакция на сообщение о добавлении друга
      * @param line информация о добавлении друга в формате: кто_добавляет;кого_добавляет
+     *             или, для добавления сразу нескольких друзей: кто_добавляет;друг1;друг2;...
      */
     public void processAddFriend(String line) {
         String[] s = line.split(SEPARATOR);
-        if(s.length!=2) return;
-        String login1 = s[0];
-        String login2 = s[1];
-        User u1 = userDAO.findByLogin(login1);
-        User u2 = userDAO.findByLogin(login2);
-        friendDAO.addFriendFor(u1.getId(), u2.getId());
+        if (s.length < 2) return;
+        User u1 = directory.findByLogin(s[0]);
+        processAddFriends(u1, Arrays.asList(s).subList(1, s.length));
+    }
+
+    /**
+     * Добавление друзей пользователем. Команда записывается в БД фоновым потоком,
+     * а взаимная дружба учитывается после записи в {@link #friendsAdded(int, int[])}
+     * @param user кто добавляет
+     * @param logins логины тех, кого добавляют
+     */
+    public void processAddFriends(User user, List<String> logins) {
+        if (user == null) return;
+        IntStream.Builder ids = IntStream.builder();
+        for (String login : logins) {
+            User friend = directory.findByLogin(login);
+            if (friend != null) ids.add(friend.getId());
+        }
+        writeBehind.addFriends(user.getId(), ids.build().toArray());
+    }
+
+    /**
+     * Учет добавленных друзей после их записи в БД (в потоке отложенной записи)
+     * @param from кто добавил
+     * @param to кого добавил
+     */
+    private void friendsAdded(int from, int[] to) {
+        // дружба становится взаимной с теми, кто уже добавил пользователя
+        int[] addedBy = to.length == 1 ? null : SortedIntArrays.sortedUnique(friendDAO.getAddedBy(from));
+        for (int id : to) {
+            boolean mutual = addedBy == null ? friendDAO.exists(id, from) : Arrays.binarySearch(addedBy, id) >= 0;
+            if (mutual && addFriendship(from, id) && cluster != null) cluster.friendshipAdded(from, id);
+        }
+    }
+
+    /**
+     * Регистрация, которую БД отвергла (например, логин уже занят пользователем другого узла кластера):
+     * пользователь удаляется из справочника и из online, а его подключение получает
+     * {@code Registration failed} и закрывается
+     * @param user пользователь, которого нет в БД
+     */
+    private void userRejected(User user) {
+        System.err.println("Registration of " + user.getLogin() + " was rejected by the database");
+        directory.remove(user);
+        if (sessions != null) sessions.closeUser(user.getId());
+        Client client = onlineUsers.findById(user.getId());
+        if (client == null || client instanceof RemoteClient || !user.getLogin().equals(client.getUser().getLogin())) return;
+        remove(client);
+        client.println("Registration failed");
+        client.disconnect();
+    }
+
+    /**
+     * Учет взаимной дружбы в графе дружбы и в индексе присутствия
+     * @param id1 первый пользователь
+     * @param id2 второй пользователь
+     * @return false, если один из пользователей не найден
+     */
+    private boolean addFriendship(int id1, int id2) {
+        User user = directory.findById(id1);
+        User friend = directory.findById(id2);
+        if (user == null || friend == null) return false;
+        friendGraph.addFriendship(id1, id2);
+        presence.friendshipAdded(user, friend);
+        return true;
+    }
+
+    /**
+     * Создание очереди исходящих сообщений для нового подключения.
+     * Параметры в chat.cfg: out.queue.capacity, out.queue.policy (drop, disconnect, block),
+     * out.queue.timeout - время ожидания в мс для политики block.
+     * В режиме nio политика block заменяется на drop: кадры отправляются из потока реактора,
+     * и ожидание одного медленного получателя остановило бы все подключения реактора
+     * @return пустую очередь
+     */
+    public OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(
+                Integer.parseInt(properties.getProperty("out.queue.capacity", "1024")),
+                outboundPolicy(),
+                Long.parseLong(properties.getProperty("out.queue.timeout", "1000")));
+    }
+
+    private OutboundQueue.OverflowPolicy outboundPolicy() {
+        OutboundQueue.OverflowPolicy policy =
+                OutboundQueue.OverflowPolicy.valueOf(properties.getProperty("out.queue.policy", "drop").toUpperCase());
+        if (policy == OutboundQueue.OverflowPolicy.BLOCK && "nio".equals(properties.getProperty("server.mode", "thread"))) {
+            return OutboundQueue.OverflowPolicy.DROP;
+        }
+        return policy;
     }
 
     @SuppressWarnings("unused")
     public List<User> getUsers() {
-        return users;
+        return directory.users();
     }
 }
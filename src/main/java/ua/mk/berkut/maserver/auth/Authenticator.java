@@ -0,0 +1,199 @@
+package ua.mk.berkut.maserver.auth;
+
+import ua.mk.berkut.maserver.db.User;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Проверка паролей при входе. Хеширование выполняется отдельным пулом потоков
+ * с ограниченной очередью: сколько бы клиентов ни входило одновременно, хеширование занимает
+ * не больше заданного числа ядер, а при переполнении очереди вход отклоняется сразу
+ * ({@link RejectedExecutionException}). Повторные подключения в течение времени жизни
+ * {@link VerifiedSessionCache} проверяются без хеширования, попытки входа ограничиваются
+ * {@link LoginRateLimiter}
+ */
+public class Authenticator {
+
+    /**
+     * Обработчик замены устаревшего хранимого значения пароля (открытого текста или слабого хеша)
+     */
+    public interface RehashListener {
+        /**
+         * Вызывается в потоке проверки после успешного входа
+         * @param user пользователь
+         * @param stored новое хранимое значение
+         */
+        void passwordRehashed(User user, String stored);
+    }
+
+    private final PasswordHasher hasher;
+    private final LoginRateLimiter limiter;
+    private final VerifiedSessionCache cache;
+    private final long timeoutMillis;
+    private final RehashListener rehashListener;
+    private final ThreadPoolExecutor executor;
+
+    private final LongAdder verifications = new LongAdder();
+    private final LongAdder verifyNanos = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder limited = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Создает проверку паролей
+     * @param hasher хеширование паролей
+     * @param limiter ограничение частоты попыток
+     * @param cache кэш недавно проверенных паролей
+     * @param threads число потоков хеширования
+     * @param queueCapacity сколько проверок может ждать в очереди
+     * @param timeoutMillis сколько ждать результата проверки
+     * @param rehashListener обработчик замены устаревших хранимых значений
+     */
+    public Authenticator(PasswordHasher hasher, LoginRateLimiter limiter, VerifiedSessionCache cache,
+                         int threads, int queueCapacity, long timeoutMillis, RehashListener rehashListener) {
+        this.hasher = hasher;
+        this.limiter = limiter;
+        this.cache = cache;
+        this.timeoutMillis = timeoutMillis;
+        this.rehashListener = rehashListener;
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+            Thread thread = new Thread(r, "auth-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Учет попытки входа ограничителем частоты. Вызывается до обращения к БД
+     * @param address адрес клиента
+     * @param login логин
+     * @return false, если попыток слишком много
+     */
+    public boolean allow(String address, String login) {
+        if (limiter.tryAcquire(address, login)) return true;
+        limited.increment();
+        return false;
+    }
+
+    /**
+     * Проверка пароля пользователя; ждет результата из пула хеширования
+     * @param user пользователь с хранимым значением пароля
+     * @param password введенный пароль
+     * @return true, если пароль верный
+     * @throws RejectedExecutionException если очередь проверки переполнена или проверка не успела
+     */
+    public boolean verify(User user, String password) {
+        String stored = user.getPassword();
+        if (cache.matches(user.getLogin(), stored, password)) {
+            cacheHits.increment();
+            return true;
+        }
+        String verified = call(() -> {
+            long start = System.nanoTime();
+            boolean ok = hasher.verify(password, stored);
+            verifications.increment();
+            verifyNanos.add(System.nanoTime() - start);
+            if (!ok) return null;
+            if (!hasher.needsRehash(stored)) return stored;
+            String rehashed = hasher.hash(password);
+            rehashListener.passwordRehashed(user, rehashed);
+            return rehashed;
+        });
+        if (verified == null) return false;
+        cache.put(user.getLogin(), verified, password);
+        return true;
+    }
+
+    /**
+     * Хеширование пароля нового пользователя в пуле хеширования
+     * @param password пароль
+     * @return значение для хранения
+     * @throws RejectedExecutionException если очередь переполнена или хеширование не успело
+     */
+    public String hash(String password) {
+        return call(() -> hasher.hash(password));
+    }
+
+    private <T> T call(Callable<T> task) {
+        Future<T> future;
+        try {
+            future = executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            rejected.increment();
+            throw new RejectedExecutionException("Password verification timed out");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new RejectedExecutionException("Interrupted");
+        }
+    }
+
+    /**
+     * Количество проверок хешированием
+     * @return счетчик проверок
+     */
+    public long getVerificationCount() {
+        return verifications.sum();
+    }
+
+    /**
+     * Среднее время одной проверки хешированием
+     * @return время в мс
+     */
+    public double getAverageVerifyMillis() {
+        long count = verifications.sum();
+        return count == 0 ? 0 : verifyNanos.sum() / 1e6 / count;
+    }
+
+    /**
+     * Количество входов, проверенных по кэшу без хеширования
+     * @return счетчик попаданий
+     */
+    public long getCacheHitCount() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * Количество попыток, отклоненных ограничителем частоты
+     * @return счетчик
+     */
+    public long getLimitedCount() {
+        return limited.sum();
+    }
+
+    /**
+     * Количество проверок, отклоненных из-за переполнения очереди или по времени
+     * @return счетчик
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Количество проверок в очереди пула хеширования
+     * @return длина очереди
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+}
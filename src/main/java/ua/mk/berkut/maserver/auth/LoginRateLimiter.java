@@ -0,0 +1,99 @@
+package ua.mk.berkut.maserver.auth;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ограничение частоты попыток входа с одного адреса и для одного логина.
+ * Для каждого ключа хранится "ведро" попыток: оно вмещает указанное число попыток в минуту
+ * и равномерно пополняется, поэтому допускаются короткие всплески, но не перебор паролей
+ */
+public class LoginRateLimiter {
+    /**
+     * При таком числе ключей из таблицы удаляются полные (давно не использованные) ведра
+     */
+    private static final int CLEANUP_SIZE = 100_000;
+
+    private final int perAddress;
+    private final int perLogin;
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * Создает ограничитель; 0 - без ограничения
+     * @param perAddress попыток в минуту с одного адреса
+     * @param perLogin попыток в минуту для одного логина
+     */
+    public LoginRateLimiter(int perAddress, int perLogin) {
+        this.perAddress = perAddress;
+        this.perLogin = perLogin;
+    }
+
+    /**
+     * Учет попытки входа
+     * @param address адрес клиента
+     * @param login логин
+     * @return false, если попыток слишком много и вход надо отклонить
+     */
+    public boolean tryAcquire(String address, String login) {
+        long now = System.nanoTime();
+        if (buckets.size() > CLEANUP_SIZE) cleanup(now);
+        // попытка расходуется в обоих ведрах, только если ее допускают оба
+        Bucket byAddress = perAddress > 0 ? buckets.computeIfAbsent("a:" + address, k -> new Bucket(perAddress)) : null;
+        Bucket byLogin = perLogin > 0 ? buckets.computeIfAbsent("l:" + login, k -> new Bucket(perLogin)) : null;
+        if (byAddress != null && !byAddress.take(now)) return false;
+        if (byLogin != null && !byLogin.take(now)) {
+            if (byAddress != null) byAddress.giveBack();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Количество отслеживаемых адресов и логинов
+     * @return размер таблицы
+     */
+    public int size() {
+        return buckets.size();
+    }
+
+    private void cleanup(long now) {
+        buckets.values().removeIf(bucket -> bucket.isFull(now));
+    }
+
+    /**
+     * Ведро попыток одного ключа
+     */
+    private static final class Bucket {
+        private final int capacity;
+        private final double perNano;
+        private double tokens;
+        private long updated;
+
+        Bucket(int perMinute) {
+            this.capacity = perMinute;
+            this.perNano = perMinute / 60e9;
+            this.tokens = perMinute;
+            this.updated = System.nanoTime();
+        }
+
+        synchronized boolean take(long now) {
+            refill(now);
+            if (tokens < 1) return false;
+            tokens--;
+            return true;
+        }
+
+        synchronized void giveBack() {
+            tokens = Math.min(capacity, tokens + 1);
+        }
+
+        synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= capacity;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(capacity, tokens + (now - updated) * perNano);
+            updated = now;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package ua.mk.berkut.maserver.auth;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Хеширование паролей PBKDF2-HMAC-SHA256 со случайной солью.
+ * Хранимое значение: {@code pbkdf2-sha256$итерации$соль$хеш} (соль и хеш - в Base64).
+ * Значения без этого префикса считаются паролями, записанными открытым текстом до перехода на хеши:
+ * они проверяются сравнением и заменяются хешем при первом успешном входе
+ */
+public class PasswordHasher {
+    private static final String PREFIX = "pbkdf2-sha256$";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Создает хешер
+     * @param iterations число итераций PBKDF2 для новых хешей
+     */
+    public PasswordHasher(int iterations) {
+        this.iterations = iterations;
+    }
+
+    /**
+     * Хеширование пароля с новой солью (дорогая операция)
+     * @param password пароль
+     * @return значение для хранения
+     */
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder();
+        return PREFIX + iterations + '$' + base64.encodeToString(salt) + '$'
+                + base64.encodeToString(pbkdf2(password, salt, iterations));
+    }
+
+    /**
+     * Проверка пароля (дорогая операция для хешей). Сравнение выполняется за время,
+     * не зависящее от того, в каком байте пароль отличается
+     * @param password введенный пароль
+     * @param stored хранимое значение
+     * @return true, если пароль верный
+     */
+    public boolean verify(String password, String stored) {
+        if (stored == null) return false;
+        if (!isHashed(stored)) {
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) return false;
+        try {
+            Base64.Decoder base64 = Base64.getDecoder();
+            byte[] expected = base64.decode(parts[3]);
+            return MessageDigest.isEqual(expected, pbkdf2(password, base64.decode(parts[2]), Integer.parseInt(parts[1])));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Проверка, надо ли заменить хранимое значение: пароль открытым текстом или хеш с меньшим числом итераций
+     * @param stored хранимое значение
+     * @return true, если значение устарело
+     */
+    public boolean needsRehash(String stored) {
+        if (!isHashed(stored)) return true;
+        int end = stored.indexOf('$', PREFIX.length());
+        try {
+            return end < 0 || Integer.parseInt(stored.substring(PREFIX.length(), end)) < iterations;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Проверка, что хранимое значение - хеш, а не пароль открытым текстом
+     * @param stored хранимое значение
+     * @return true для хеша
+     */
+    public static boolean isHashed(String stored) {
+        return stored != null && stored.startsWith(PREFIX);
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package ua.mk.berkut.maserver.auth;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Недавно проверенные пароли: при повторном подключении в течение заданного времени пароль
+ * сверяется с HMAC-SHA256 на случайном ключе процесса, а не с медленным хешем.
+ * Сам пароль не хранится; запись действительна только для того хранимого хеша,
+ * с которым пароль был проверен, поэтому смена пароля делает ее недействительной
+ */
+public class VerifiedSessionCache {
+    private static final String MAC = "HmacSHA256";
+
+    private final long ttlNanos;
+    private final byte[] key = new byte[32];
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ThreadLocal<Mac> macs;
+
+    /**
+     * Создает кэш
+     * @param ttlSeconds время жизни записи в секундах; 0 - кэш отключен
+     */
+    public VerifiedSessionCache(long ttlSeconds) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        new SecureRandom().nextBytes(key);
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(MAC);
+                mac.init(new SecretKeySpec(key, MAC));
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(MAC + " is not available", e);
+            }
+        });
+    }
+
+    /**
+     * Проверка пароля по кэшу
+     * @param login логин
+     * @param stored текущий хранимый хеш пользователя
+     * @param password введенный пароль
+     * @return true, если этот пароль недавно был проверен для этого хеша
+     */
+    public boolean matches(String login, String stored, String password) {
+        if (ttlNanos == 0) return false;
+        Entry entry = entries.get(login);
+        if (entry == null) return false;
+        if (System.nanoTime() - entry.verified > ttlNanos) {
+            entries.remove(login, entry);
+            return false;
+        }
+        return entry.stored.equals(stored) && MessageDigest.isEqual(entry.mac, mac(password));
+    }
+
+    /**
+     * Запоминание успешно проверенного пароля
+     * @param login логин
+     * @param stored хранимый хеш, с которым пароль проверен
+     * @param password пароль
+     */
+    public void put(String login, String stored, String password) {
+        if (ttlNanos == 0) return;
+        entries.put(login, new Entry(stored, mac(password), System.nanoTime()));
+        if (entries.size() % 1024 == 0) evictExpired();
+    }
+
+    /**
+     * Количество записей
+     * @return размер кэша
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private void evictExpired() {
+        long now = System.nanoTime();
+        entries.values().removeIf(entry -> now - entry.verified > ttlNanos);
+    }
+
+    private byte[] mac(String password) {
+        return macs.get().doFinal(password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static final class Entry {
+        final String stored;
+        final byte[] mac;
+        final long verified;
+
+        Entry(String stored, byte[] mac, long verified) {
+            this.stored = stored;
+            this.mac = mac;
+            this.verified = verified;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package ua.mk.berkut.maserver.clients;
+
+import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.protocol.Codec;
+import ua.mk.berkut.maserver.protocol.Frame;
+import ua.mk.berkut.maserver.protocol.LineCodec;
+
+/**
+ * Подключенный клиент сервера, независимо от способа обслуживания соединения
+ * (отдельный поток или неблокирующий NIO-реактор)
+ */
+public interface Client {
+
+    /**
+     * Получение пользователя, ассоциированного с подключением
+     * @return пользователя или null, если клиент еще не вошел в систему
+     */
+    User getUser();
+
+    /**
+     * Постановка готового кадра в очередь отправки. Подключение становится владельцем кадра
+     * и освобождает его после отправки или если кадр отброшен
+     * @param frame кадр в режиме чтения
+     */
+    void sendFrame(Frame frame);
+
+    /**
+     * Постановка кадра в очередь отправки с номером, по которому можно проверить,
+     * записан ли кадр в подключение ({@link #flushedFrames()})
+     * @param frame кадр в режиме чтения
+     * @return номер кадра или 0, если кадр не принят (отброшен или подключение закрыто)
+     */
+    default long sendCounted(Frame frame) {
+        sendFrame(frame);
+        return 1;
+    }
+
+    /**
+     * Сколько кадров подключение полностью записало в сокет. Подключение без собственной
+     * очереди считает записанными все принятые кадры
+     * @return номер последнего записанного кадра
+     */
+    default long flushedFrames() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Протокол подключения, которым кодируются адресованные ему кадры
+     * @return кодек подключения
+     */
+    default Codec codec() {
+        return LineCodec.TEXT;
+    }
+
+    /**
+     * Адрес клиента - для ограничения частоты попыток входа
+     * @return IP-адрес или пустую строку, если он неизвестен
+     */
+    default String getRemoteAddress() {
+        return "";
+    }
+
+    /**
+     * Количество кадров, ожидающих отправки. Длительные рассылки одному клиенту
+     * (например, доставка накопленных сообщений) ждут, пока очередь не освободится
+     * @return размер очереди отправки
+     */
+    default int pendingFrames() {
+        return 0;
+    }
+
+    /**
+     * Передача кадров, которые подключение еще не начало отправлять, другому клиенту.
+     * Вызывается после закрытия подключения, чтобы сохранить очередь для возобновления сессии
+     * @param target новый владелец кадров
+     */
+    default void transferPending(Client target) {
+    }
+
+    /**
+     * Закрытие подключения по решению сервера после отправки очереди. Сессия при этом
+     * завершается и не ждет возобновления
+     */
+    default void disconnect() {
+    }
+
+    /**
+     * Отправка клиенту служебного сообщения (в текстовом протоколе - одной строки)
+     * @param line строка без завершающего перевода строки
+     */
+    default void println(String line) {
+        sendFrame(codec().status(line));
+    }
+}
@@ -0,0 +1,538 @@
+package ua.mk.berkut.maserver.clients;
+
+import ua.mk.berkut.maserver.Main;
+import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.online.DetachedClient;
+import ua.mk.berkut.maserver.online.MessageRouter;
+import ua.mk.berkut.maserver.protocol.BinaryCodec;
+import ua.mk.berkut.maserver.protocol.ByteSlice;
+import ua.mk.berkut.maserver.protocol.ChatMessageView;
+import ua.mk.berkut.maserver.protocol.Codec;
+import ua.mk.berkut.maserver.protocol.LineCodec;
+import ua.mk.berkut.maserver.rooms.RoomRegistry;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Состояние "общения" клиента с сервером по строковому или двоичному протоколу.
+ * Не зависит от способа чтения и записи: строки приходят в {@link #onLine(String)},
+ * двоичные кадры ({@link BinaryCodec}) - в {@link #onFrame(ByteBuffer, int, int)},
+ * ответы кодируются кодеком сессии {@link #codec()}
+ */
+public class ClientSession {
+
+    /**
+     * Вид команды клиента - метка в статистике времени обработки команд
+     */
+    public enum Command {
+        /**
+         * Вход, регистрация, возобновление сессии и выбор протокола
+         */
+        LOGIN,
+        CHAT,
+        BATCH,
+        LIST,
+        FRIEND,
+        ROOM,
+        EXIT
+    }
+
+    /**
+     * Начало текстового пакета сообщений: {@code ***N}, затем N строк получатель;отправитель;текст
+     */
+    private static final String BATCH = "***";
+    /**
+     * Максимальное число сообщений в текстовом пакете
+     */
+    private static final int MAX_BATCH = 1024;
+    /**
+     * Команды комнат: {@code +##комната} - войти, {@code -##комната} - выйти,
+     * {@code ###комната;текст} - сообщение участникам
+     */
+    private static final String JOIN_ROOM = "+##";
+    private static final String LEAVE_ROOM = "-##";
+    private static final String ROOM_MESSAGE = "###";
+    /**
+     * Возобновление сессии после обрыва подключения: {@code resume;токен} вместо входа
+     */
+    private static final String RESUME = "resume;";
+    /**
+     * Необязательное четвертое поле входа {@code login;логин;пароль;resume} - выдать токен возобновления
+     */
+    private static final String RESUMABLE = "resume";
+
+    private final Main main;
+    private final Client client;
+    private final ChatMessageView chat = new ChatMessageView();
+    private final BinaryCodec.Reader reader = new BinaryCodec.Reader();
+    private final ByteSlice text = new ByteSlice();
+    private volatile Codec codec = LineCodec.TEXT;
+    private User user;
+    private boolean online;
+    /**
+     * Токен возобновления сессии или null, если клиент его не запрашивал
+     */
+    private volatile String resumeToken;
+    /**
+     * Клиент вышел сам (или его отключил сервер) - сессия завершается, а не ждет возобновления
+     */
+    private volatile boolean exited;
+    /**
+     * Текстовый пакет, строки которого еще принимаются, и сколько строк осталось
+     */
+    private MessageRouter.Batch batch;
+    private int batchRemaining;
+
+    /**
+     * Создает сессию для подключения
+     * @param main ссылка на объект главного класса сервера
+     * @param client подключение, через которое отправляются ответы
+     */
+    public ClientSession(Main main, Client client) {
+        this.main = main;
+        this.client = client;
+    }
+
+    /**
+     * Получение пользователя, вошедшего в систему
+     * @return пользователя или null, если вход еще не выполнен
+     */
+    public User getUser() {
+        return user;
+    }
+
+    /**
+     * Протокол, выбранный клиентом
+     * @return {@link LineCodec#TEXT} или, после переключения, {@link BinaryCodec#BINARY}
+     */
+    public Codec codec() {
+        return codec;
+    }
+
+    /**
+     * Проверяет, переключился ли клиент на двоичный протокол
+     * @return true, если входящие данные - двоичные кадры
+     */
+    public boolean isBinary() {
+        return codec == BinaryCodec.BINARY;
+    }
+
+    /**
+     * Отключение клиента сервером: при закрытии подключения сессия завершается без ожидания возобновления
+     */
+    public void terminate() {
+        exited = true;
+    }
+
+    /**
+     * Проверяет, будет ли сессия ждать возобновления при обрыве подключения
+     * @return true, если клиент получил токен и не вышел сам
+     */
+    public boolean isResumable() {
+        return resumeToken != null && !exited;
+    }
+
+    /**
+     * Начало сессии - отправка признака подключения: {@code Server Ok}
+     */
+    public void start() {
+        client.println("Server Ok");
+    }
+
+    /**
+     * Обработка очередной строки от клиента
+     * @param line полученная строка
+     * @return true, если работу можно продолжать, и false - если подключение надо закрыть
+     */
+    public boolean onLine(String line) {
+        long start = System.nanoTime();
+        Command command = command(line);
+        boolean result = handleLine(line);
+        main.commandDone(command, start);
+        return result;
+    }
+
+    private boolean handleLine(String line) {
+        if (!online) {
+            if (BinaryCodec.HANDSHAKE.equals(line)) {
+                // ответ уходит еще текстом, дальше - только двоичные кадры
+                client.println(BinaryCodec.HANDSHAKE_OK);
+                codec = BinaryCodec.BINARY;
+                return true;
+            }
+            if (line.startsWith(RESUME)) {
+                // при неудаче подключение остается открытым для обычного входа
+                online = resume(line.substring(RESUME.length()));
+                return true;
+            }
+            online = login(line);
+            if (online) main.addToOnline(client);
+            return online;
+        }
+        if (batchRemaining > 0) { // Next message of a batch
+            batch.add(line);
+            completeBatchLine();
+        } else if ("<<<".equals(line)) { // Show online friends
+            sendList(main.getOnlineFriends(user));
+        } else if ("<<<!".equals(line)) { // Show online friends and push their changes
+            main.subscribePresence(user);
+            sendList(main.getOnlineFriends(user));
+        } else if (line.startsWith(JOIN_ROOM)) {
+            main.joinRoom(user, line.substring(JOIN_ROOM.length()));
+        } else if (line.startsWith(LEAVE_ROOM)) {
+            main.leaveRoom(user, line.substring(LEAVE_ROOM.length()));
+        } else if (line.startsWith(ROOM_MESSAGE)) {
+            int separator = line.indexOf(';');
+            if (separator > 0) {
+                main.processRoomMessage(user, line.substring(ROOM_MESSAGE.length(), separator),
+                        ByteSlice.of(line.substring(separator + 1)));
+            }
+        } else if (line.startsWith("+++")) {
+            main.processAddFriend(line.substring(3));
+        } else if (">>>exit<<<".equals(line)) {
+            exited = true;
+            return false;
+        } else if (line.startsWith(BATCH)) { // Batch of messages: ***N and N lines
+            return startBatch(line.substring(BATCH.length()));
+        } else {
+            main.processMessage(line);
+        }
+        return true;
+    }
+
+    /**
+     * Обработка двоичного кадра
+     * @param buffer буфер с кадром
+     * @param offset начало кадра после заголовка длины (абсолютный индекс типа)
+     * @param length длина кадра вместе с типом
+     * @return true, если работу можно продолжать, и false - если подключение надо закрыть
+     */
+    public boolean onFrame(ByteBuffer buffer, int offset, int length) {
+        long start = System.nanoTime();
+        Command command = command(length > 0 ? buffer.get(offset) : BinaryCodec.EXIT);
+        boolean result = handleFrame(buffer, offset, length);
+        main.commandDone(command, start);
+        return result;
+    }
+
+    private boolean handleFrame(ByteBuffer buffer, int offset, int length) {
+        try {
+            reader.reset(buffer, offset, length);
+            byte type = reader.readByte();
+            if (!online) {
+                if (type == BinaryCodec.RESUME) {
+                    online = resume(reader.readString());
+                    return true;
+                }
+                if (type == BinaryCodec.LOGIN) {
+                    online = login(reader.readString(), reader.readString());
+                    if (online && reader.hasRemaining() && reader.readByte() != 0) openSession();
+                } else if (type == BinaryCodec.REGISTER) {
+                    online = register(main.register(reader.readString(), reader.readString(), reader.readString(),
+                            reader.readString(), reader.readString()));
+                }
+                if (online) main.addToOnline(client);
+                return online;
+            }
+            switch (type) {
+                case BinaryCodec.CHAT:
+                    int receiverId = reader.readVarint();
+                    if (reader.rest(text).hasLineBreak()) return false;
+                    main.processMessage(user, receiverId, text);
+                    return true;
+                case BinaryCodec.LIST:
+                    if (reader.readByte() != 0) main.subscribePresence(user);
+                    sendList(main.getOnlineFriends(user));
+                    return true;
+                case BinaryCodec.ADD_FRIEND:
+                    List<String> logins = new ArrayList<>();
+                    do {
+                        logins.add(reader.readString());
+                    } while (reader.hasRemaining());
+                    main.processAddFriends(user, logins);
+                    return true;
+                case BinaryCodec.JOIN:
+                    return main.joinRoom(user, reader.readString());
+                case BinaryCodec.LEAVE:
+                    main.leaveRoom(user, reader.readString());
+                    return true;
+                case BinaryCodec.ROOM:
+                    String room = reader.readString();
+                    if (!RoomRegistry.isValidName(room) || reader.rest(text).hasLineBreak()) return false;
+                    main.processRoomMessage(user, room, text);
+                    return true;
+                case BinaryCodec.BATCH:
+                    // пакет с переводом строки в тексте отклоняется целиком, до доставки
+                    while (reader.hasRemaining()) {
+                        reader.readVarint();
+                        if (reader.readSlice(text).hasLineBreak()) return false;
+                    }
+                    reader.reset(buffer, offset, length);
+                    reader.readByte();
+                    MessageRouter.Batch messages = main.newMessageBatch();
+                    while (reader.hasRemaining()) {
+                        int id = reader.readVarint();
+                        messages.add(user, id, reader.readSlice(text));
+                    }
+                    messages.deliver();
+                    return true;
+                default: // EXIT или неизвестный кадр
+                    exited = type == BinaryCodec.EXIT;
+                    return false;
+            }
+        } catch (IllegalArgumentException e) {
+            // некорректный кадр
+            return false;
+        }
+    }
+
+    /**
+     * Проверяет, может ли обработка строки обращаться к БД.
+     * Неблокирующий сервер выполняет такие строки вне потока реактора
+     * @param line полученная строка
+     * @return true, если обработка строки может надолго заблокировать поток
+     */
+    public boolean isBlocking(String line) {
+        return !online || batchRemaining == 0 && line.startsWith("+++");
+    }
+
+    /**
+     * Проверяет, может ли обработка двоичного кадра обращаться к БД
+     * @param buffer буфер с кадром
+     * @param offset абсолютный индекс типа кадра
+     * @return true, если обработка кадра может надолго заблокировать поток
+     */
+    public boolean isBlocking(ByteBuffer buffer, int offset) {
+        return !online || buffer.get(offset) == BinaryCodec.ADD_FRIEND;
+    }
+
+    /**
+     * Проверяет, является ли строка сообщением другому пользователю. Такую строку
+     * можно передать в {@link #onChat(ByteBuffer, int, int)} без декодирования
+     * @param buffer буфер с байтами строки
+     * @param offset начало строки (абсолютный индекс)
+     * @param length длина строки
+     * @return true, если строка - сообщение пользователю
+     */
+    public boolean isChat(ByteBuffer buffer, int offset, int length) {
+        if (!online || length == 0) return false;
+        if (batchRemaining > 0) return true;
+        byte first = buffer.get(offset);
+        return first != '<' && first != '+' && first != '>' && first != '*' && first != '-' && first != '#';
+    }
+
+    /**
+     * Пересылка сообщения {@code получатель;отправитель;текст} прямо из буфера чтения
+     * @param buffer буфер с байтами строки
+     * @param offset начало строки (абсолютный индекс)
+     * @param length длина строки
+     */
+    public void onChat(ByteBuffer buffer, int offset, int length) {
+        long start = System.nanoTime();
+        Command command = batchRemaining > 0 ? Command.BATCH : Command.CHAT;
+        boolean parsed = LineCodec.parseChat(buffer, offset, length, chat);
+        if (batchRemaining > 0) {
+            if (parsed) batch.add(chat);
+            completeBatchLine();
+        } else if (parsed) {
+            main.processMessage(chat);
+        }
+        main.commandDone(command, start);
+    }
+
+    /**
+     * Вид текстовой команды - до ее обработки, пока состояние сессии не изменилось
+     * @param line полученная строка
+     * @return вид команды
+     */
+    private Command command(String line) {
+        if (!online) return Command.LOGIN;
+        if (batchRemaining > 0 || line.startsWith(BATCH)) return Command.BATCH;
+        if (line.startsWith("<<<")) return Command.LIST;
+        if (line.startsWith("+++")) return Command.FRIEND;
+        if (line.startsWith(JOIN_ROOM) || line.startsWith(LEAVE_ROOM) || line.startsWith(ROOM_MESSAGE)) return Command.ROOM;
+        if (">>>exit<<<".equals(line)) return Command.EXIT;
+        return Command.CHAT;
+    }
+
+    /**
+     * Вид двоичной команды
+     * @param type тип кадра
+     * @return вид команды
+     */
+    private Command command(byte type) {
+        if (!online) return Command.LOGIN;
+        switch (type) {
+            case BinaryCodec.CHAT:
+                return Command.CHAT;
+            case BinaryCodec.BATCH:
+                return Command.BATCH;
+            case BinaryCodec.LIST:
+                return Command.LIST;
+            case BinaryCodec.ADD_FRIEND:
+                return Command.FRIEND;
+            case BinaryCodec.JOIN:
+            case BinaryCodec.LEAVE:
+            case BinaryCodec.ROOM:
+                return Command.ROOM;
+            default:
+                return Command.EXIT;
+        }
+    }
+
+    /**
+     * Начало текстового пакета сообщений
+     * @param count число сообщений в пакете
+     * @return false, если число некорректно и подключение надо закрыть
+     */
+    private boolean startBatch(String count) {
+        int n;
+        try {
+            n = Integer.parseInt(count);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (n <= 0 || n > MAX_BATCH) return false;
+        batch = main.newMessageBatch();
+        batchRemaining = n;
+        return true;
+    }
+
+    /**
+     * Учет принятой строки пакета; после последней строки пакет отправляется
+     */
+    private void completeBatchLine() {
+        if (--batchRemaining == 0) {
+            batch.deliver();
+            batch = null;
+        }
+    }
+
+    /**
+     * Завершение сессии - удаление клиента из списка online. Если у сессии есть токен
+     * и клиент не вышел сам, сессия ждет возобновления, а пользователь остается online
+     */
+    public void finish() {
+        if (online) {
+            online = false;
+            if (resumeToken != null && !exited && main.detach(client, resumeToken)) return;
+            main.remove(client);
+            if (resumeToken != null) main.closeSession(resumeToken);
+        }
+    }
+
+    /**
+     * Отправка списка клиентов подключенному пользователю одним кадром
+     * @param list список пользователей, в текстовом протоколе передается в формате: id;username;login
+     */
+    private void sendList(List<User> list) {
+        client.sendFrame(codec.friends(list));
+    }
+
+    /**
+     * Обработка логина и пароля вновь подключившегося пользователя.
+     * Проверяются login-password и если подключение удалось, отправлем признак подключения: {@code Login Ok},
+     * а если клиент добавил поле {@code resume} - еще и токен возобновления: {@code Session токен}
+     * @param line первая строка, полученная от клиента
+     * @return true, если подключение успешно, и false - в противном случае
+     */
+    private boolean login(String line) {
+        if (line.startsWith("register")) {
+            return register(line);
+        }
+        String[] s = line.split(";");
+        // s[0] - "login"
+        // s[1] === login
+        // s[2] === password
+        if (s.length != 3 && !(s.length == 4 && RESUMABLE.equals(s[3]))) {
+            client.println("Login failed 1");
+            return false;
+        }
+        if (!"login".equals(s[0])) {
+            client.println("Login failed 2");
+            return false;
+        }
+        if (!login(s[1], s[2])) return false;
+        if (s.length == 4) openSession();
+        return true;
+    }
+
+    /**
+     * Выдача токена возобновления сессии и отправка его клиенту: {@code Session токен}
+     */
+    private void openSession() {
+        resumeToken = main.openSession(user, codec);
+        if (resumeToken != null) client.println("Session " + resumeToken);
+    }
+
+    /**
+     * Возобновление сессии по токену без проверки пароля и обращения к БД. Клиент получает
+     * {@code Login Ok}, новый токен и кадры, накопленные после обрыва, или {@code Login failed 6},
+     * если токен не действует (истек, уже использован или выдан для другого протокола)
+     * @param token предъявленный токен
+     * @return true, если сессия возобновлена
+     */
+    private boolean resume(String token) {
+        DetachedClient parked = main.resumeSession(token, codec);
+        if (parked == null) {
+            client.println("Login failed 6");
+            return false;
+        }
+        this.user = parked.getUser();
+        client.println("Login Ok");
+        openSession();
+        main.reattach(parked, client);
+        return true;
+    }
+
+    /**
+     * Проверка логина и пароля и отправка результата: {@code Login Ok}, {@code Login failed 3} (неверные данные),
+     * {@code Login failed 4} (слишком много попыток) или {@code Login failed 5} (сервер перегружен)
+     * @param login логин
+     * @param password пароль
+     * @return true, если подключение успешно, и false - в противном случае
+     */
+    private boolean login(String login, String password) {
+        if (!main.allowLogin(client.getRemoteAddress(), login)) {
+            client.println("Login failed 4");
+            return false;
+        }
+        User user;
+        try {
+            user = main.findUser(login, password);
+        } catch (RejectedExecutionException e) {
+            client.println("Login failed 5");
+            return false;
+        }
+        if (user == null) {
+            client.println("Login failed 3");
+            return false;
+        }
+        this.user = user;
+        client.println("Login Ok");
+        return true;
+    }
+
+    /**
+     * Метод, делегирующий в Main регистрацию пользователя
+     * @param line строка регистрации
+     * @return true - если пользователь зарегистрировался успешно, false - в противном случае
+     */
+    private boolean register(String line) {
+        return register(main.register(line));
+    }
+
+    /**
+     * Вход зарегистрированного пользователя
+     * @param user результат регистрации
+     * @return true - если пользователь зарегистрировался успешно, false - в противном случае
+     */
+    private boolean register(User user) {
+        if (user == null) return false;
+        this.user = user;
+        return true;
+    }
+}
@@ -2,41 +2,79 @@ package ua.mk.berkut.maserver.clients;
 
 import ua.mk.berkut.maserver.Main;
 import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.protocol.BinaryCodec;
+import ua.mk.berkut.maserver.protocol.Codec;
+import ua.mk.berkut.maserver.protocol.Frame;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 
 /**
- * Поток, взаимодействующий с коиентом. Для каждого клиента создается свой
+ * Обработчик, взаимодействующий с коиентом. Для каждого клиента создается свой
+ * и выполняется в отдельном (платформенном или виртуальном) потоке.
+ * Отправка выполняется отдельным писателем из очереди {@link OutboundQueue},
+ * поэтому медленный получатель не задерживает отправителей
  */
-public class ClientThread extends Thread {
-    private PrintWriter out;
-    private BufferedReader in;
+public class ClientThread implements Runnable, Client {
+    /**
+     * Максимальная длина строки или двоичного кадра в байтах
+     */
+    private static final int MAX_FRAME = 16 * 1024;
+
     private Socket socket;
-    private Main main;
-    private User user;
+    private ClientSession session;
+    private OutboundQueue out;
+    private Executor writerExecutor;
+    private final CountDownLatch writerDone = new CountDownLatch(1);
 
     /**
      * Конструктор потока
      * @param socket сокет для подключения
      * @param main ссылка на объект главного класса сервера
+     * @param writerExecutor исполнитель, в котором запускается писатель подключения
      */
-    public ClientThread(Socket socket, Main main) {
+    public ClientThread(Socket socket, Main main, Executor writerExecutor) {
         this.socket = socket;
-        this.main = main;
+        this.session = new ClientSession(main, this);
+        this.out = main.newOutboundQueue();
+        this.writerExecutor = writerExecutor;
     }
 
     /**
      * Получение пользователя, ассоциированного с потоком
      * @return пользователя, ассоциированного с потоком
      */
+    @Override
     public User getUser() {
-        return user;
+        return session.getUser();
+    }
+
+    @Override
+    public Codec codec() {
+        return session.codec();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public int pendingFrames() {
+        return out.size();
+    }
+
+    @Override
+    public void transferPending(Client target) {
+        out.transferTo(target);
     }
 
     /**
@@ -44,116 +82,172 @@ public class ClientThread extends Thread {
      */
     @Override
     public void run() {
-        try(BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            this.in = in; this.out = out;
-            if (login()){
-                main.addToOnline(this);
-                List<User> onlineUsers;// = main.getOnlineUsers();
-                String message;
-                while ((message = in.readLine())!=null) {
-                    if ("<<<".equals(message)) { // Show online friends
-                        onlineUsers = main.getOnlineUsers();
-                        sendList(onlineUsers.stream().filter(u->user.getFriendsIds().contains(u.getId())).collect(Collectors.toList()));
-                    } else if (message.startsWith("+++")) {
-                        main.processAddFriend(message.substring(3));
-                    } else if (">>>exit<<<".equals(message)) {
-                        break;
-                    } else {
-                        main.processMessage(message);
-                    }
+        boolean writerStarted = false;
+        try {
+            // поток ввода не закрывается здесь: это закрыло бы сокет до отправки очереди
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream stream = socket.getOutputStream();
+            writerExecutor.execute(() -> write(stream));
+            writerStarted = true;
+            session.start();
+            byte[] bytes = new byte[MAX_FRAME];
+            ByteBuffer frame = ByteBuffer.wrap(bytes);
+            for (; ; ) {
+                if (session.isBinary()) {
+                    int length = readFrame(in, bytes);
+                    if (length < 0 || !session.onFrame(frame, 0, length)) break;
+                } else {
+                    String message = readLine(in, bytes);
+                    if (message == null || !session.onLine(message)) break;
                 }
             }
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+            if (writerStarted && session.isResumable()) {
+                // кадры не отправляются в оборванное подключение, а достаются ожидающей сессии
+                out.stop();
+                closeSocket();
+                awaitWriter();
+            } else {
+                // писатель отправит оставшиеся кадры и закроет сокет
+                out.close();
+                if (!writerStarted) closeSocket();
             }
-            main.remove(this);
+            session.finish();
+            // кадры, которые не взяла ожидающая сессия и уже не отправит писатель
+            if (writerDone.getCount() == 0 || !writerStarted) out.discard();
+        }
+    }
+
+    private void awaitWriter() {
+        try {
+            writerDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
-     * Отправка списка клиентов подключенному пользователю
-     * @param list список, содержащий информацию о пользователях в формате: id;username;login
+     * Чтение строки текстового протокола. Строка читается побайтно, чтобы после переключения
+     * на двоичный протокол в буфере не осталось прочитанных наперед кадров
+     * @param in поток ввода
+     * @param bytes буфер для байтов строки
+     * @return строку без перевода строки или null, если поток закончился или строка слишком длинная
+     * @throws IOException если случилась ошибка чтения
      */
-    private void sendList(List<User> list) {
-        out.println("<<<");
-        for (User u : list) {
-            out.println(u.getId()+";"+u.getUsername()+";"+u.getLogin());
+    private static String readLine(InputStream in, byte[] bytes) throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (length == bytes.length) return null;
+            bytes[length++] = (byte) b;
         }
-        out.println("<<<");
+        if (b < 0 && length == 0) return null;
+        if (length > 0 && bytes[length - 1] == '\r') length--;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
     }
 
     /**
-     * Обработка логина и пароля вновь подключившегося пользователя.
-     * Сначала отправляется признак подключения: {@code Server Ok}
-     * Затем, проверяются login-password и если подключение удалось, отправлем признак подключения: {@code Login Ok}
-     * @return true, если подключение успешно, и false - в противном случае
-     * @throws IOException если произошла ошибка при подключении
+     * Чтение двоичного кадра {@link BinaryCodec}
+     * @param in поток ввода
+     * @param bytes буфер для кадра
+     * @return длину кадра (тип и данные) или -1, если поток закончился или кадр некорректен
+     * @throws IOException если случилась ошибка чтения
      */
-    private boolean login() throws IOException {
-        out.println("Server Ok");
-        String line = in.readLine();
-        if (line.startsWith("register")) {
-            return register(line);
-        }
-        String[] s = line.split(";");
-        // s[0] - "login"
-        // s[1] === login
-        // s[2] === password
-        if (s.length!=3) {
-            out.println("Login failed 1");
-            return false;
-        }
-        if (!"login".equals(s[0])) {
-            out.println("Login failed 2");
-            return false;
+    private static int readFrame(InputStream in, byte[] bytes) throws IOException {
+        int length = 0;
+        for (int i = 0; ; i++) {
+            int b = in.read();
+            if (b < 0 || i == 4) return -1;
+            length |= (b & 0x7F) << 7 * i;
+            if (b < 0x80) break;
         }
-        String login = s[1];
-        String password = s[2];
-        User user = findUser(login, password);
-        if (user==null) {
-            out.println("Login failed 3");
-            return false;
+        if (length <= 0 || length > bytes.length) return -1;
+        for (int n = 0; n < length; ) {
+            int read = in.read(bytes, n, length - n);
+            if (read < 0) return -1;
+            n += read;
         }
-        this.user = user;
-        out.println("Login Ok");
-        return true;
+        return length;
     }
 
     /**
-     * Метод, делегирующий в Main поиск пользователя по логину и паролю
-     * @param login логин пользователя
-     * @param password пароль пользователя
-     * @return найденного пользователя
+     * Цикл писателя: забирает все накопленные кадры и отправляет их с одним сбросом буфера
+     * @param stream поток вывода сокета
      */
-    @SuppressWarnings("WeakerAccess")
-    public User findUser(String login, String password) {
-        return main.findUser(login, password);
+    private void write(OutputStream stream) {
+        Frame[] batch = new Frame[64];
+        // кадры лежат в прямых буферах, байты переносятся в поток через один многоразовый массив
+        byte[] chunk = new byte[8192];
+        int n = 0;
+        try (OutputStream os = new BufferedOutputStream(stream)) {
+            while ((n = out.takeAll(batch)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    ByteBuffer buffer = batch[i].buffer();
+                    while (buffer.hasRemaining()) {
+                        int length = Math.min(chunk.length, buffer.remaining());
+                        buffer.get(chunk, 0, length);
+                        os.write(chunk, 0, length);
+                    }
+                    batch[i].release();
+                    batch[i] = null;
+                }
+                os.flush();
+                out.written(n);
+                n = 0;
+            }
+        } catch (IOException | InterruptedException e) {
+            out.close();
+        } finally {
+            for (int i = 0; i < n; i++) {
+                if (batch[i] != null) batch[i].release();
+            }
+            // очередь сессии, которая может быть возобновлена, освобождает поток чтения после передачи кадров
+            if (!session.isResumable()) out.discard();
+            closeSocket();
+            writerDone.countDown();
+        }
     }
 
     /**
-     * Метод, делегирующий в Main регистрацию пользователя
-     * @param line строка регистрации
-     * @return true - если пользователь зарегистрировался успешно, false - в противном случае
+     * Отправка кадра клиенту, ассоциированному с этим потоком
+     * @param frame кадр протокола
      */
-    private boolean register(String line) {
-        User user = main.register(line);
-        if (user==null) return false;
-        this.user = user;
-        return true;
+    @Override
+    public void sendFrame(Frame frame) {
+        sendCounted(frame);
     }
 
-    /**
-     * Отправка сообщения клиенту, ассоциированному с этим потоком
-     * @param sender от кого
-     * @param text текст сообщения
-     */
-    public void send(String sender, String text) {
-        out.println(">>>"+sender+">>>"+text);
+    @Override
+    public long sendCounted(Frame frame) {
+        long number = out.offerCounted(frame);
+        if (number < 0) {
+            // медленный получатель - закрытие сокета прерывает чтение
+            out.close();
+            closeSocket();
+            return 0;
+        }
+        return number;
+    }
+
+    @Override
+    public long flushedFrames() {
+        return out.getWritten();
+    }
+
+    @Override
+    public void disconnect() {
+        session.terminate();
+        // писатель отправит очередь и закроет сокет, что завершит чтение
+        out.close();
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 }
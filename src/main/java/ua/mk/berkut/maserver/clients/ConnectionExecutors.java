@@ -0,0 +1,44 @@
+package ua.mk.berkut.maserver.clients;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Способы запуска блокирующего обработчика подключения {@link ClientThread}
+ */
+public final class ConnectionExecutors {
+
+    private ConnectionExecutors() {
+    }
+
+    /**
+     * Выбор исполнителя по режиму из chat.cfg
+     * @param mode thread - отдельный платформенный поток на подключение, virtual - виртуальный поток
+     * @return исполнитель, запускающий каждую задачу в собственном потоке
+     */
+    public static Executor forMode(String mode) {
+        switch (mode) {
+            case "thread":
+                return task -> new Thread(task).start();
+            case "virtual":
+                return newVirtualThreadPerTaskExecutor();
+            default:
+                throw new IllegalArgumentException("Unknown connection mode: " + mode);
+        }
+    }
+
+    /**
+     * Исполнитель на виртуальных потоках. Проект собирается и под Java 11,
+     * поэтому метод JDK 21 вызывается через отражение
+     * @return исполнитель, создающий виртуальный поток на каждую задачу
+     * @throws UnsupportedOperationException если JVM не поддерживает виртуальные потоки
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or newer", e);
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package ua.mk.berkut.maserver.clients;
+
+import ua.mk.berkut.maserver.Main;
+import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.protocol.BinaryCodec;
+import ua.mk.berkut.maserver.protocol.Codec;
+import ua.mk.berkut.maserver.protocol.Frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Клиент, обслуживаемый неблокирующим сервером {@link NioServer}.
+ * Все операции с каналом выполняются в потоке реактора, остальные потоки
+ * только добавляют кадры в очередь отправки {@link OutboundQueue}
+ */
+public class NioClient implements Client {
+    /**
+     * Максимальная длина строки протокола в байтах
+     */
+    private static final int MAX_LINE = 16 * 1024;
+
+    private final NioServer.Reactor reactor;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ClientSession session;
+
+    private final ByteBuffer in = ByteBuffer.allocateDirect(MAX_LINE);
+    private final byte[] lineBytes = new byte[MAX_LINE];
+    private final int[] header = new int[1];
+    private final OutboundQueue out;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Runnable flush = this::onWritable;
+    /**
+     * Кадры, забранные из очереди, но еще не записанные в канал целиком, и их буферы
+     */
+    private final Frame[] batch = new Frame[64];
+    private final ByteBuffer[] buffers = new ByteBuffer[batch.length];
+    private int batchStart;
+    private int batchEnd;
+
+    /**
+     * Строка обрабатывается в пуле блокирующих операций, чтение приостановлено
+     */
+    private boolean busy;
+    /**
+     * Сессия завершена, подключение закрывается после отправки очереди
+     */
+    private volatile boolean closing;
+    private volatile boolean closed;
+
+    NioClient(Main main, NioServer.Reactor reactor, SocketChannel channel, SelectionKey key) {
+        this.reactor = reactor;
+        this.channel = channel;
+        this.key = key;
+        this.session = new ClientSession(main, this);
+        this.out = main.newOutboundQueue();
+    }
+
+    @Override
+    public User getUser() {
+        return session.getUser();
+    }
+
+    @Override
+    public Codec codec() {
+        return session.codec();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return channel.socket().getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public int pendingFrames() {
+        return out.size();
+    }
+
+    @Override
+    public void transferPending(Client target) {
+        out.transferTo(target);
+    }
+
+    /**
+     * Постановка кадра в очередь отправки. Может вызываться из любого потока
+     * @param frame кадр протокола
+     */
+    @Override
+    public void sendFrame(Frame frame) {
+        sendCounted(frame);
+    }
+
+    @Override
+    public long sendCounted(Frame frame) {
+        if (closed) {
+            frame.release();
+            return 0;
+        }
+        long number = out.offerCounted(frame);
+        if (number < 0) {
+            // медленный получатель
+            reactor.execute(this::close);
+            return 0;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            reactor.execute(flush);
+        }
+        return number;
+    }
+
+    @Override
+    public long flushedFrames() {
+        return out.getWritten();
+    }
+
+    @Override
+    public void disconnect() {
+        session.terminate();
+        reactor.execute(() -> {
+            if (closed) return;
+            // блокирующая операция еще владеет сессией - подключение закрывается сразу
+            if (busy) close();
+            else finishSession();
+        });
+    }
+
+    void start() {
+        session.start();
+    }
+
+    /**
+     * Чтение доступных данных из канала и обработка всех полных строк
+     */
+    void onReadable() {
+        try {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            processInput();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Отправка накопленной очереди: кадры забираются пачками и пишутся одной
+     * групповой записью. Если сокет не принимает все данные, ожидаем готовности к записи
+     */
+    void onWritable() {
+        if (closed) return;
+        flushScheduled.set(false);
+        try {
+            for (; ; ) {
+                if (batchStart == batchEnd) {
+                    batchStart = 0;
+                    batchEnd = out.drainTo(batch);
+                    if (batchEnd == 0) break;
+                    for (int i = 0; i < batchEnd; i++) {
+                        buffers[i] = batch[i].buffer();
+                    }
+                }
+                channel.write(buffers, batchStart, batchEnd - batchStart);
+                int written = batchStart;
+                while (batchStart < batchEnd && !buffers[batchStart].hasRemaining()) {
+                    batch[batchStart].release();
+                    batch[batchStart] = null;
+                    buffers[batchStart++] = null;
+                }
+                out.written(batchStart - written);
+                if (batchStart < batchEnd) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closing) close();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Разбор строк из входного буфера. Буфер между вызовами находится в режиме записи
+     */
+    private void processInput() {
+        in.flip();
+        try {
+            while (!busy && !closing) {
+                int start = in.position();
+                if (session.isBinary()) {
+                    if (!nextFrame(start)) break;
+                    continue;
+                }
+                int end = lineEnd(start);
+                if (end < 0) break;
+                int length = end - start;
+                if (length > 0 && in.get(end - 1) == '\r') length--;
+                if (session.isChat(in, start, length)) {
+                    // сообщение пересылается прямо из буфера чтения
+                    in.position(end + 1);
+                    if (!handleChat(start, length)) finishSession();
+                    continue;
+                }
+                in.get(lineBytes, 0, end - start);
+                in.get(); // '\n'
+                String line = new String(lineBytes, 0, length, StandardCharsets.UTF_8);
+                dispatch(session.isBlocking(line), () -> session.onLine(line));
+            }
+            if (!busy && !closing && in.position() == 0 && in.limit() == in.capacity()) {
+                // строка не помещается в буфер
+                finishSession();
+            }
+        } finally {
+            in.compact();
+        }
+    }
+
+    /**
+     * Обработка очередного двоичного кадра из буфера в режиме чтения. Кадры, не обращающиеся к БД,
+     * обрабатываются прямо в буфере; для остальных данные копируются и передаются в пул
+     * @param start начало кадра
+     * @return false, если кадр еще не получен целиком
+     */
+    private boolean nextFrame(int start) {
+        int length = BinaryCodec.frameLength(in, start, in.limit(), header);
+        if (length == -1) return false;
+        int offset = start + header[0];
+        if (length < 0 || offset + length > start + in.capacity()) {
+            // некорректный кадр или кадр больше буфера
+            finishSession();
+            return false;
+        }
+        if (offset + length > in.limit()) return false;
+        if (!session.isBlocking(in, offset)) {
+            in.position(offset + length);
+            if (!handleFrame(offset, length)) finishSession();
+            return true;
+        }
+        byte[] copy = new byte[length];
+        in.position(offset);
+        in.get(copy);
+        dispatch(true, () -> session.onFrame(ByteBuffer.wrap(copy), 0, length));
+        return true;
+    }
+
+    /**
+     * Поиск конца очередной строки в буфере в режиме чтения
+     * @param start начало строки
+     * @return индекс перевода строки или -1, если строка еще не получена целиком
+     */
+    private int lineEnd(int start) {
+        for (int i = start; i < in.limit(); i++) {
+            if (in.get(i) == '\n') return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Выполнение команды сессии. Команды, которые могут обращаться к БД, выполняются в пуле,
+     * а чтение на это время приостанавливается, чтобы сохранить порядок команд
+     * @param blocking может ли команда надолго заблокировать поток
+     * @param command обработка строки или кадра сессией
+     */
+    private void dispatch(boolean blocking, BooleanSupplier command) {
+        if (!blocking) {
+            if (!handle(command)) finishSession();
+            return;
+        }
+        busy = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        reactor.executeBlocking(() -> {
+            boolean proceed = handle(command);
+            reactor.execute(() -> resume(proceed));
+        });
+    }
+
+    /**
+     * Обработка команды сессией. Ошибка обработки закрывает только это подключение
+     * @param command обработка строки или кадра
+     * @return false, если подключение надо закрыть
+     */
+    private boolean handle(BooleanSupplier command) {
+        try {
+            return command.getAsBoolean();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Обработка двоичного кадра прямо в буфере чтения
+     * @param offset абсолютный индекс типа кадра
+     * @param length длина кадра вместе с типом
+     * @return false, если подключение надо закрыть
+     */
+    private boolean handleFrame(int offset, int length) {
+        try {
+            return session.onFrame(in, offset, length);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Пересылка сообщения из буфера чтения. Ошибка обработки закрывает только это подключение
+     * @param start начало строки в буфере
+     * @param length длина строки
+     * @return false, если подключение надо закрыть
+     */
+    private boolean handleChat(int start, int length) {
+        try {
+            session.onChat(in, start, length);
+            return true;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Продолжение работы в потоке реактора после блокирующей операции
+     * @param proceed результат обработки строки
+     */
+    private void resume(boolean proceed) {
+        busy = false;
+        if (closed) {
+            session.finish();
+            out.discard();
+            return;
+        }
+        if (!proceed) {
+            finishSession();
+            return;
+        }
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        processInput();
+    }
+
+    private void finishSession() {
+        closing = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        onWritable();
+    }
+
+    /**
+     * Аварийное закрытие после непредвиденной ошибки в потоке реактора.
+     * Канал закрывается, даже если обычное закрытие завершилось ошибкой
+     */
+    void abort() {
+        try {
+            close();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void close() {
+        if (closed) return;
+        closed = true;
+        out.close();
+        for (; batchStart < batchEnd; batchStart++) {
+            batch[batchStart].release();
+            batch[batchStart] = null;
+            buffers[batchStart] = null;
+        }
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // при незавершенной блокирующей операции сессия завершается в resume();
+        // очередь освобождается после завершения сессии, которая может передать ее для возобновления
+        if (busy) return;
+        session.finish();
+        out.discard();
+    }
+}
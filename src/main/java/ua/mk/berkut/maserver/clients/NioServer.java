@@ -0,0 +1,182 @@
+package ua.mk.berkut.maserver.clients;
+
+import ua.mk.berkut.maserver.Main;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Неблокирующий сервер: фиксированное число потоков-реакторов обслуживает все подключения
+ * через {@link Selector}, вместо отдельного потока на каждого клиента.
+ * Обращения к БД (вход, регистрация, добавление друга) выполняются в отдельном пуле,
+ * чтобы не останавливать реактор
+ */
+public class NioServer {
+    private final Main main;
+    private final int port;
+    private final int backlog;
+    private final Reactor[] reactors;
+    private final ExecutorService workers;
+
+    /**
+     * Создает сервер
+     * @param main ссылка на объект главного класса сервера
+     * @param port порт для подключения клиентов
+     * @param reactorCount количество потоков-реакторов
+     * @param workerCount количество потоков для блокирующих операций
+     * @throws IOException если не удалось открыть селектор
+     */
+    public NioServer(Main main, int port, int reactorCount, int workerCount) throws IOException {
+        this(main, port, reactorCount, workerCount, 1024);
+    }
+
+    /**
+     * Создает сервер
+     * @param main ссылка на объект главного класса сервера
+     * @param port порт для подключения клиентов
+     * @param reactorCount количество потоков-реакторов
+     * @param workerCount количество потоков для блокирующих операций
+     * @param backlog длина очереди подключений, еще не принятых сервером
+     * @throws IOException если не удалось открыть селектор
+     */
+    public NioServer(Main main, int port, int reactorCount, int workerCount, int backlog) throws IOException {
+        this.main = main;
+        this.port = port;
+        this.backlog = backlog;
+        this.reactors = new Reactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            reactors[i] = new Reactor(i);
+        }
+        this.workers = Executors.newFixedThreadPool(workerCount);
+    }
+
+    /**
+     * Основной цикл: прием подключений и распределение их по реакторам
+     * @throws IOException если сетевое подключение невозможно
+     */
+    public void run() throws IOException {
+        for (Reactor reactor : reactors) {
+            Thread thread = new Thread(reactor, "nio-reactor-" + reactor.index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), backlog);
+            int next = 0;
+            //noinspection InfiniteLoopStatement
+            for (; ; ) {
+                SocketChannel channel = serverChannel.accept();
+                main.connectionAccepted();
+                reactors[next].register(channel);
+                next = (next + 1) % reactors.length;
+            }
+        }
+    }
+
+    /**
+     * Поток-реактор: владеет селектором и всеми зарегистрированными в нем каналами.
+     * Другие потоки взаимодействуют с ним только через очередь задач
+     */
+    class Reactor implements Runnable {
+        private final int index;
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        Reactor(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Передает реактору новое подключение
+         * @param channel принятый канал
+         */
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    NioClient client = new NioClient(main, this, channel, key);
+                    key.attach(client);
+                    client.start();
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+        }
+
+        /**
+         * Выполнение задачи в потоке реактора
+         * @param task задача
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Выполнение блокирующей задачи в пуле потоков сервера
+         * @param task задача
+         */
+        void executeBlocking(Runnable task) {
+            workers.execute(task);
+        }
+
+        @Override
+        public void run() {
+            //noinspection InfiniteLoopStatement
+            for (; ; ) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            // ошибка одной задачи не должна останавливать реактор со всеми его каналами
+                            e.printStackTrace();
+                        }
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        dispatch(key);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Обработка готового ключа. Ошибка (в том числе {@link java.nio.channels.CancelledKeyException})
+         * закрывает только подключение этого ключа
+         * @param key выбранный ключ
+         */
+        private void dispatch(SelectionKey key) {
+            NioClient client = (NioClient) key.attachment();
+            try {
+                if (!key.isValid()) return;
+                if (key.isWritable()) client.onWritable();
+                if (key.isValid() && key.isReadable()) client.onReadable();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                client.abort();
+            }
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package ua.mk.berkut.maserver.clients;
+
+import ua.mk.berkut.maserver.protocol.Frame;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ограниченная очередь исходящих кадров одного подключения.
+ * Отправители только добавляют кадры, а писатель подключения забирает все накопленные
+ * кадры разом и отправляет их одной записью в сокет.
+ * Очередь владеет принятыми кадрами: отброшенные кадры освобождаются сразу
+ */
+public class OutboundQueue {
+
+    /**
+     * Поведение при переполнении очереди медленного получателя
+     */
+    public enum OverflowPolicy {
+        /**
+         * Новый кадр отбрасывается
+         */
+        DROP,
+        /**
+         * Медленный получатель отключается
+         */
+        DISCONNECT,
+        /**
+         * Отправитель ждет освобождения места не дольше заданного времени, затем кадр отбрасывается.
+         * Не подходит для потоков, которые обслуживают много подключений (реакторы nio)
+         */
+        BLOCK
+    }
+
+    private static final LongAdder totalDropped = new LongAdder();
+    private static final LongAdder totalDisconnects = new LongAdder();
+
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final long timeoutNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private boolean closed;
+    /**
+     * Очередь остановлена без отправки оставшихся кадров
+     */
+    private boolean stopped;
+    private long dropped;
+    /**
+     * Номер последнего принятого кадра
+     */
+    private long accepted;
+    /**
+     * Сколько кадров писатель полностью записал в подключение
+     */
+    private final AtomicLong written = new AtomicLong();
+
+    /**
+     * Создает очередь
+     * @param capacity максимальное число кадров в очереди
+     * @param policy поведение при переполнении
+     * @param timeoutMillis время ожидания для политики {@link OverflowPolicy#BLOCK}
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy, long timeoutMillis) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Добавление кадра в очередь с учетом политики переполнения
+     * @param frame кадр для отправки
+     * @return false, если получателя следует отключить, и true - в остальных случаях (в т.ч. если кадр отброшен)
+     */
+    public boolean offer(Frame frame) {
+        return offerCounted(frame) >= 0;
+    }
+
+    /**
+     * Добавление кадра с номером, по которому можно узнать, записан ли кадр ({@link #getWritten()})
+     * @param frame кадр для отправки
+     * @return номер кадра (с 1), 0 - если кадр отброшен, -1 - если получателя следует отключить
+     */
+    public long offerCounted(Frame frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                frame.release();
+                return 0;
+            }
+            if (frames.size() >= capacity) {
+                switch (policy) {
+                    case DISCONNECT:
+                        frame.release();
+                        totalDisconnects.increment();
+                        return -1;
+                    case BLOCK:
+                        long nanos = timeoutNanos;
+                        while (frames.size() >= capacity && !closed && nanos > 0) {
+                            nanos = notFull.awaitNanos(nanos);
+                        }
+                        if (closed) {
+                            frame.release();
+                            return 0;
+                        }
+                        if (frames.size() < capacity) break;
+                        // время ожидания истекло
+                        return drop(frame);
+                    default:
+                        return drop(frame);
+                }
+            }
+            frames.add(frame);
+            if (frames.size() == 1) notEmpty.signal();
+            return ++accepted;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            frame.release();
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long drop(Frame frame) {
+        frame.release();
+        dropped++;
+        totalDropped.increment();
+        return 0;
+    }
+
+    /**
+     * Забирает накопленные кадры без ожидания
+     * @param batch массив для кадров
+     * @return количество перенесенных кадров
+     */
+    public int drainTo(Frame[] batch) {
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < batch.length && !frames.isEmpty()) {
+                batch[n++] = frames.poll();
+            }
+            if (n > 0) notFull.signalAll();
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ожидает появления кадров и забирает все накопленные
+     * @param batch массив для кадров
+     * @return количество перенесенных кадров или 0, если очередь закрыта и пуста или остановлена
+     * @throws InterruptedException если ожидание прервано
+     */
+    public int takeAll(Frame[] batch) throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return stopped ? 0 : drainTo(batch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Закрытие очереди: новые кадры больше не принимаются, писатель завершает работу
+     * после отправки оставшихся
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Остановка очереди: новые кадры больше не принимаются, писатель завершает работу,
+     * не забирая оставшиеся кадры - их можно передать другому клиенту ({@link #transferTo(Client)})
+     */
+    public void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Освобождение неотправленных кадров, когда писатель уже не сможет их отправить
+     */
+    public void discard() {
+        lock.lock();
+        try {
+            Frame frame;
+            while ((frame = frames.poll()) != null) {
+                frame.release();
+            }
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Передача неотправленных кадров другому клиенту в порядке очереди, в т.ч. из закрытой очереди
+     * @param target клиент, который становится владельцем кадров
+     */
+    public void transferTo(Client target) {
+        Frame[] batch = new Frame[64];
+        int n;
+        while ((n = drainTo(batch)) > 0) {
+            for (int i = 0; i < n; i++) {
+                target.sendFrame(batch[i]);
+                batch[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Учет кадров, которые писатель полностью записал в подключение. Кадры записываются
+     * в порядке очереди, поэтому кадр записан, если его номер не больше {@link #getWritten()}
+     * @param count количество записанных кадров
+     */
+    public void written(int count) {
+        written.addAndGet(count);
+    }
+
+    /**
+     * Сколько кадров полностью записано в подключение
+     * @return счетчик записанных кадров
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * Текущая глубина очереди
+     * @return количество неотправленных кадров
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Количество отброшенных кадров этого подключения
+     * @return счетчик отброшенных кадров
+     */
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Количество отброшенных кадров по всем подключениям
+     * @return суммарный счетчик
+     */
+    public static long getTotalDropped() {
+        return totalDropped.sum();
+    }
+
+    /**
+     * Количество медленных получателей, отключенных из-за переполнения
+     * @return суммарный счетчик
+     */
+    public static long getTotalDisconnects() {
+        return totalDisconnects.sum();
+    }
+}
@@ -0,0 +1,356 @@
+package ua.mk.berkut.maserver.cluster;
+
+import ua.mk.berkut.maserver.Main;
+import ua.mk.berkut.maserver.clients.Client;
+import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.online.OnlineRegistry;
+import ua.mk.berkut.maserver.protocol.BinaryCodec;
+import ua.mk.berkut.maserver.protocol.Frame;
+import ua.mk.berkut.maserver.protocol.FramePool;
+import ua.mk.berkut.maserver.protocol.LineCodec;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Узел кластера серверов. Узлы перечислены в настройках (имя и адрес каждого) и соединены
+ * попарно: каждый узел отправляет другим по своему исходящему соединению ({@link NodeLink})
+ * вход и выход своих пользователей и кадры для их пользователей, а принимает по входящим.
+ * <p>
+ * Пользователь другого узла находится в реестре online как {@link RemoteClient}, так что каталог
+ * присутствия - тот же {@link OnlineRegistry}: сообщение пользователю этого узла доставляется
+ * локально, а пользователю другого узла - пересылается его узлу. Узел, с которым оборвалась связь
+ * или который молчит дольше заданного времени, считается вышедшим: его пользователи выходят из online.
+ * Когда узел подключается (в т.ч. после перезапуска), он получает всех пользователей online.
+ * Входящее соединение принимается, только если узел предъявил общий секрет кластера;
+ * секрет передается открытым текстом, поэтому узлы должны соединяться по закрытой сети.
+ * Узлы пользуются общей БД; хранилище сообщений не online, комнаты и токены возобновления - свои у каждого узла
+ */
+public class ClusterNode {
+    private final Main main;
+    private final OnlineRegistry registry;
+    private final String self;
+    private final byte[] secret;
+    private final int index;
+    private final InetSocketAddress address;
+    private final long timeoutMillis;
+    private final Map<String, NodeLink> links = new LinkedHashMap<>();
+    /**
+     * Действующее входящее соединение каждого узла; сообщения старого соединения после переподключения не учитываются
+     */
+    private final ConcurrentHashMap<String, Socket> incoming = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Object> nodeLocks = new ConcurrentHashMap<>();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder joins = new LongAdder();
+    private final LongAdder leaves = new LongAdder();
+
+    /**
+     * Создает узел
+     * @param main ссылка на объект главного класса сервера
+     * @param registry реестр пользователей online
+     * @param self имя этого узла
+     * @param secret общий секрет кластера, одинаковый на всех узлах
+     * @param nodes все узлы кластера, включая этот: имя - адрес, в одинаковом порядке на всех узлах
+     * @param queueCapacity сколько сообщений может ждать отправки каждому узлу
+     * @param timeoutMillis сколько молчания означает выход узла
+     */
+    public ClusterNode(Main main, OnlineRegistry registry, String self, String secret,
+                       Map<String, InetSocketAddress> nodes, int queueCapacity, long timeoutMillis) {
+        if (!nodes.containsKey(self)) throw new IllegalArgumentException("Node " + self + " is not in cluster.nodes");
+        if (secret.isEmpty()) throw new IllegalArgumentException("cluster.secret is required");
+        this.main = main;
+        this.registry = registry;
+        this.self = self;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.address = nodes.get(self);
+        this.index = new ArrayList<>(nodes.keySet()).indexOf(self);
+        this.timeoutMillis = timeoutMillis;
+        for (Map.Entry<String, InetSocketAddress> entry : nodes.entrySet()) {
+            if (entry.getKey().equals(self)) continue;
+            links.put(entry.getKey(), new NodeLink(self, secret, entry.getKey(), entry.getValue(), this, queueCapacity,
+                    Math.min(1000, timeoutMillis)));
+        }
+    }
+
+    /**
+     * Разбор списка узлов: {@code имя=хост:порт,имя=хост:порт,...}
+     * @param value значение cluster.nodes
+     * @return узлы в порядке перечисления
+     */
+    public static Map<String, InetSocketAddress> parseNodes(String value) {
+        Map<String, InetSocketAddress> nodes = new LinkedHashMap<>();
+        for (String item : value.split(",")) {
+            String[] parts = item.trim().split("[=:]");
+            if (parts.length != 3) throw new IllegalArgumentException("Bad cluster node: " + item);
+            nodes.put(parts[0], new InetSocketAddress(parts[1], Integer.parseInt(parts[2])));
+        }
+        return nodes;
+    }
+
+    /**
+     * Номер этого узла в списке узлов (для раздачи id новым пользователям без пересечений)
+     * @return номер от 0
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Количество узлов кластера
+     * @return число узлов, включая этот
+     */
+    public int getSize() {
+        return links.size() + 1;
+    }
+
+    /**
+     * Запуск: прием соединений от других узлов, подключение к ним и проверка связи
+     * @throws IOException если порт узла занят
+     */
+    public void start() throws IOException {
+        ServerSocket server = new ServerSocket();
+        server.bind(address);
+        daemon(() -> accept(server), "cluster-accept");
+        for (NodeLink link : links.values()) {
+            daemon(link, "cluster-link-" + link.node());
+        }
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cluster-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, timeoutMillis / 3);
+        heartbeat.scheduleAtFixedRate(() -> {
+            for (NodeLink link : links.values()) {
+                link.send(ClusterProtocol.ping());
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private static void daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Рассылка входа пользователя этого узла
+     * @param client локальное подключение пользователя
+     */
+    public synchronized void online(Client client) {
+        for (NodeLink link : links.values()) {
+            link.send(ClusterProtocol.online(client));
+        }
+    }
+
+    /**
+     * Рассылка выхода пользователя этого узла
+     * @param user вышедший пользователь
+     */
+    public synchronized void offline(User user) {
+        for (NodeLink link : links.values()) {
+            link.send(ClusterProtocol.offline(user.getId()));
+        }
+    }
+
+    /**
+     * Рассылка новой взаимной дружбы, чтобы другие узлы обновили граф дружбы и друзей online
+     * @param id1 первый пользователь
+     * @param id2 второй пользователь
+     */
+    public void friendshipAdded(int id1, int id2) {
+        for (NodeLink link : links.values()) {
+            link.send(ClusterProtocol.friends(id1, id2));
+        }
+    }
+
+    /**
+     * Соединение с узлом установлено: узел получает всех пользователей online этого узла.
+     * Вход и выход пользователей рассылаются под той же блокировкой, поэтому изменения
+     * не опережают и не теряют начальный список
+     * @param link соединение
+     */
+    synchronized void linkUp(NodeLink link) {
+        link.markUp();
+        for (Client client : registry.clients()) {
+            if (!(client instanceof RemoteClient)) link.send(ClusterProtocol.online(client));
+        }
+    }
+
+    private void accept(ServerSocket server) {
+        //noinspection InfiniteLoopStatement
+        for (; ; ) {
+            try {
+                Socket socket = server.accept();
+                daemon(() -> read(socket), "cluster-in");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Чтение сообщений другого узла
+     * @param socket входящее соединение
+     */
+    private void read(Socket socket) {
+        String node = null;
+        byte[] bytes = new byte[1024];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+            socket.setSoTimeout((int) timeoutMillis);
+            if (in.readByte() != ClusterProtocol.HELLO) return;
+            String name = in.readUTF();
+            NodeLink link = links.get(name);
+            if (link == null || !MessageDigest.isEqual(secret, in.readUTF().getBytes(StandardCharsets.UTF_8))) {
+                System.err.println("Cluster connection from " + socket.getInetAddress().getHostAddress() + " rejected");
+                return;
+            }
+            node = name;
+            Thread.currentThread().setName("cluster-in-" + node);
+            synchronized (lockFor(node)) {
+                Socket previous = incoming.put(node, socket);
+                if (previous != null) {
+                    // узел переподключился раньше, чем обрыв был замечен
+                    previous.close();
+                    main.nodeLeft(node);
+                }
+                joins.increment();
+            }
+            for (; ; ) {
+                byte type = in.readByte();
+                switch (type) {
+                    case ClusterProtocol.ONLINE:
+                        int id = in.readInt();
+                        String login = in.readUTF();
+                        String username = in.readUTF();
+                        boolean binary = in.readByte() != 0;
+                        User user = new User(id, login, "", username, LocalDate.of(1900, 1, 1), "", "");
+                        RemoteClient client = new RemoteClient(user, binary ? BinaryCodec.BINARY : LineCodec.TEXT, link);
+                        synchronized (lockFor(node)) {
+                            if (incoming.get(node) == socket) main.remoteOnline(client);
+                        }
+                        break;
+                    case ClusterProtocol.OFFLINE:
+                        int offlineId = in.readInt();
+                        synchronized (lockFor(node)) {
+                            if (incoming.get(node) == socket) main.remoteOffline(node, offlineId);
+                        }
+                        break;
+                    case ClusterProtocol.FRAME:
+                        int receiverId = in.readInt();
+                        int length = in.readInt();
+                        if (length < 0 || length > ClusterProtocol.MAX_FRAME) return;
+                        if (bytes.length < length) bytes = new byte[Math.max(length, 2 * bytes.length)];
+                        in.readFully(bytes, 0, length);
+                        Frame frame = FramePool.SHARED.acquire(length);
+                        frame.buffer().put(bytes, 0, length);
+                        received.increment();
+                        main.deliverRemote(receiverId, frame.flip());
+                        break;
+                    case ClusterProtocol.FRIENDS:
+                        main.remoteFriendship(in.readInt(), in.readInt());
+                        break;
+                    case ClusterProtocol.PING:
+                        break;
+                    default:
+                        return;
+                }
+            }
+        } catch (IOException e) {
+            // узел остановлен, связь оборвалась или узел молчит дольше cluster.timeout
+        } finally {
+            if (node != null) {
+                synchronized (lockFor(node)) {
+                    if (incoming.remove(node, socket)) {
+                        leaves.increment();
+                        main.nodeLeft(node);
+                    }
+                }
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private Object lockFor(String node) {
+        return nodeLocks.computeIfAbsent(node, n -> new Object());
+    }
+
+    /**
+     * Количество узлов, с которыми есть связь в обе стороны
+     * @return число узлов, не считая этого
+     */
+    public int getConnectedCount() {
+        int count = 0;
+        for (NodeLink link : links.values()) {
+            if (link.isUp() && incoming.containsKey(link.node())) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Количество кадров, переданных другим узлам
+     * @return счетчик
+     */
+    public long getForwardedCount() {
+        long count = 0;
+        for (NodeLink link : links.values()) {
+            count += link.getForwardedCount();
+        }
+        return count;
+    }
+
+    /**
+     * Количество кадров для другого узла, отброшенных из-за отсутствия связи
+     * @return счетчик
+     */
+    public long getDroppedCount() {
+        long count = 0;
+        for (NodeLink link : links.values()) {
+            count += link.getDroppedCount();
+        }
+        return count;
+    }
+
+    /**
+     * Количество кадров, полученных от других узлов
+     * @return счетчик
+     */
+    public long getReceivedCount() {
+        return received.sum();
+    }
+
+    /**
+     * Количество подключений узлов
+     * @return счетчик
+     */
+    public long getJoinCount() {
+        return joins.sum();
+    }
+
+    /**
+     * Количество выходов узлов
+     * @return счетчик
+     */
+    public long getLeaveCount() {
+        return leaves.sum();
+    }
+}
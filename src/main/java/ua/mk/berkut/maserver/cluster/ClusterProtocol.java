@@ -0,0 +1,121 @@
+package ua.mk.berkut.maserver.cluster;
+
+import ua.mk.berkut.maserver.clients.Client;
+import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.protocol.BinaryCodec;
+import ua.mk.berkut.maserver.protocol.Frame;
+import ua.mk.berkut.maserver.protocol.FramePool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Сообщения между узлами кластера. Каждое сообщение - тип (байт) и данные в формате
+ * {@link java.io.DataOutputStream}. Узел отправляет по своему исходящему соединению
+ * {@link #HELLO}, затем всех своих пользователей online ({@link #ONLINE}), затем изменения
+ * и пересылаемые кадры в порядке их появления
+ */
+final class ClusterProtocol {
+    /**
+     * Начало соединения: имя узла (UTF), общий секрет кластера (UTF)
+     */
+    static final byte HELLO = 1;
+    /**
+     * Пользователь вошел на узле: id (int), логин (UTF), имя (UTF), протокол (байт, 1 - двоичный)
+     */
+    static final byte ONLINE = 2;
+    /**
+     * Пользователь вышел: id (int)
+     */
+    static final byte OFFLINE = 3;
+    /**
+     * Кадр для пользователя на узле-получателе, уже в протоколе его подключения:
+     * id получателя (int), длина (int), байты кадра
+     */
+    static final byte FRAME = 4;
+    /**
+     * Новая взаимная дружба: id (int), id (int)
+     */
+    static final byte FRIENDS = 5;
+    /**
+     * Проверка связи, когда узлу нечего отправить
+     */
+    static final byte PING = 6;
+
+    /**
+     * Наибольший размер пересылаемого кадра
+     */
+    static final int MAX_FRAME = 1024 * 1024;
+
+    private ClusterProtocol() {
+    }
+
+    static Frame hello(String node, String secret) {
+        return message(out -> {
+            out.writeByte(HELLO);
+            out.writeUTF(node);
+            out.writeUTF(secret);
+        });
+    }
+
+    static Frame online(Client client) {
+        User user = client.getUser();
+        return message(out -> {
+            out.writeByte(ONLINE);
+            out.writeInt(user.getId());
+            out.writeUTF(user.getLogin());
+            out.writeUTF(user.getUsername() == null ? "" : user.getUsername());
+            out.writeByte(client.codec() == BinaryCodec.BINARY ? 1 : 0);
+        });
+    }
+
+    static Frame offline(int id) {
+        return message(out -> {
+            out.writeByte(OFFLINE);
+            out.writeInt(id);
+        });
+    }
+
+    static Frame friends(int id1, int id2) {
+        return message(out -> {
+            out.writeByte(FRIENDS);
+            out.writeInt(id1);
+            out.writeInt(id2);
+        });
+    }
+
+    static Frame ping() {
+        return Frame.wrap(ByteBuffer.wrap(new byte[]{PING}));
+    }
+
+    /**
+     * Пересылаемый кадр. Байты копируются в кадр из пула, исходный кадр освобождается
+     * @param receiverId id получателя
+     * @param frame кадр в режиме чтения
+     * @return сообщение
+     */
+    static Frame frame(int receiverId, Frame frame) {
+        ByteBuffer payload = frame.buffer();
+        Frame message = FramePool.SHARED.acquire(9 + payload.remaining());
+        message.buffer().put(FRAME).putInt(receiverId).putInt(payload.remaining()).put(payload);
+        frame.release();
+        return message.flip();
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static Frame message(Writer writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writer.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return Frame.wrap(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+}
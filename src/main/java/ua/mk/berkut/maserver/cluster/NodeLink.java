@@ -0,0 +1,163 @@
+package ua.mk.berkut.maserver.cluster;
+
+import ua.mk.berkut.maserver.clients.OutboundQueue;
+import ua.mk.berkut.maserver.protocol.Frame;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Исходящее соединение с другим узлом. Отправители только ставят сообщения в очередь,
+ * а поток соединения забирает все накопленные сообщения и отправляет их одной записью в сокет,
+ * поэтому при большом потоке сообщений они передаются пакетами. Если узел недоступен,
+ * соединение повторяется; пока соединения нет, сообщения для узла отбрасываются -
+ * его пользователи к этому времени уже не считаются online
+ */
+class NodeLink implements Runnable {
+    private static final int BATCH = 256;
+
+    private final String self;
+    private final String secret;
+    private final String node;
+    private final InetSocketAddress address;
+    private final ClusterNode cluster;
+    private final long retryMillis;
+    private final OutboundQueue queue;
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean up;
+
+    /**
+     * Создает соединение; подключение выполняется в отдельном потоке ({@link #run()})
+     * @param self имя этого узла
+     * @param secret общий секрет кластера
+     * @param node имя узла-получателя
+     * @param address адрес узла-получателя
+     * @param cluster узел кластера - для первоначальной рассылки пользователей online
+     * @param queueCapacity сколько сообщений может ждать отправки
+     * @param retryMillis пауза перед повторным подключением
+     */
+    NodeLink(String self, String secret, String node, InetSocketAddress address, ClusterNode cluster, int queueCapacity, long retryMillis) {
+        this.self = self;
+        this.secret = secret;
+        this.node = node;
+        this.address = address;
+        this.cluster = cluster;
+        this.retryMillis = retryMillis;
+        this.queue = new OutboundQueue(queueCapacity, OutboundQueue.OverflowPolicy.DROP, 0);
+    }
+
+    String node() {
+        return node;
+    }
+
+    boolean isUp() {
+        return up;
+    }
+
+    /**
+     * Начало работы соединения: сообщения, которые попали в очередь, пока соединения не было,
+     * отбрасываются - состояние узла передается заново
+     */
+    void markUp() {
+        queue.discard();
+        up = true;
+    }
+
+    /**
+     * Постановка сообщения в очередь
+     * @param message сообщение {@link ClusterProtocol}
+     */
+    void send(Frame message) {
+        if (up) {
+            queue.offer(message);
+        } else {
+            message.release();
+        }
+    }
+
+    /**
+     * Пересылка кадра пользователю этого узла
+     * @param receiverId id получателя
+     * @param frame кадр в протоколе получателя
+     */
+    void forward(int receiverId, Frame frame) {
+        if (!up) {
+            frame.release();
+            dropped.increment();
+            return;
+        }
+        forwarded.increment();
+        queue.offer(ClusterProtocol.frame(receiverId, frame));
+    }
+
+    long getForwardedCount() {
+        return forwarded.sum();
+    }
+
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void run() {
+        //noinspection InfiniteLoopStatement
+        for (; ; ) {
+            try (SocketChannel channel = SocketChannel.open(address)) {
+                channel.socket().setTcpNoDelay(true);
+                Frame hello = ClusterProtocol.hello(self, secret);
+                write(channel, new ByteBuffer[]{hello.buffer()}, 1);
+                // пользователи online этого узла - в очередь раньше любых изменений
+                cluster.linkUp(this);
+                pump(channel);
+            } catch (IOException e) {
+                // узел недоступен или соединение оборвалось
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                up = false;
+                queue.discard();
+            }
+            try {
+                Thread.sleep(retryMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void pump(SocketChannel channel) throws IOException, InterruptedException {
+        Frame[] batch = new Frame[BATCH];
+        ByteBuffer[] buffers = new ByteBuffer[BATCH];
+        int n = 0;
+        try {
+            while ((n = queue.takeAll(batch)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    buffers[i] = batch[i].buffer();
+                }
+                write(channel, buffers, n);
+                for (int i = 0; i < n; i++) {
+                    batch[i].release();
+                    batch[i] = null;
+                    buffers[i] = null;
+                }
+                n = 0;
+            }
+        } finally {
+            for (int i = 0; i < n; i++) {
+                batch[i].release();
+            }
+        }
+    }
+
+    private static void write(SocketChannel channel, ByteBuffer[] buffers, int count) throws IOException {
+        int first = 0;
+        while (first < count) {
+            channel.write(buffers, first, count - first);
+            while (first < count && !buffers[first].hasRemaining()) first++;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package ua.mk.berkut.maserver.cluster;
+
+import ua.mk.berkut.maserver.clients.Client;
+import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.protocol.Codec;
+import ua.mk.berkut.maserver.protocol.Frame;
+
+/**
+ * Пользователь, подключенный к другому узлу кластера. Находится в реестре online наравне
+ * с локальными подключениями, поэтому пересылка сообщений, пакеты и уведомления о друзьях
+ * работают без изменений: кадр кодируется протоколом настоящего подключения пользователя
+ * и передается его узлу
+ */
+public class RemoteClient implements Client {
+    private final User user;
+    private final Codec codec;
+    private final NodeLink link;
+
+    RemoteClient(User user, Codec codec, NodeLink link) {
+        this.user = user;
+        this.codec = codec;
+        this.link = link;
+    }
+
+    /**
+     * Узел, к которому подключен пользователь
+     * @return имя узла
+     */
+    public String node() {
+        return link.node();
+    }
+
+    @Override
+    public User getUser() {
+        return user;
+    }
+
+    @Override
+    public Codec codec() {
+        return codec;
+    }
+
+    @Override
+    public void sendFrame(Frame frame) {
+        link.forward(user.getId(), frame);
+    }
+}
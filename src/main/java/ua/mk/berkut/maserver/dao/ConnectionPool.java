@@ -0,0 +1,291 @@
+package ua.mk.berkut.maserver.dao;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ограниченный пул подключений к БД. Объекты доступа к данным берут подключение
+ * на время одного вызова и возвращают его закрытием {@link PooledConnection}.
+ * Свободные подключения, простаивающие дольше заданного времени, закрывает фоновый поток,
+ * не дожидаясь, пока их закроет БД
+ */
+public class ConnectionPool implements AutoCloseable {
+    private final String url;
+    private final Properties properties;
+    private final int size;
+    private final long idleTimeoutNanos;
+    private final long validationIntervalNanos;
+    private final int validationTimeoutSeconds;
+    private final long borrowTimeoutNanos;
+    private final int statementCacheSize;
+    private final ScheduledExecutorService reaper;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    /**
+     * Свободные подключения; последнее возвращенное берется первым, в начале - дольше всех простаивающие
+     */
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+    private int created;
+    private boolean closed;
+
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder statementHits = new LongAdder();
+    private final LongAdder statementMisses = new LongAdder();
+
+    /**
+     * Создает пул. Подключения открываются по мере необходимости
+     * @param url адрес БД
+     * @param properties параметры подключения (user, password и т.п.)
+     * @param size максимальное число подключений
+     * @param idleTimeoutMillis через сколько мс простоя подключение закрывается
+     * @param validationIntervalMillis после скольких мс простоя подключение проверяется перед выдачей
+     * @param validationTimeoutSeconds время ожидания ответа БД при проверке
+     * @param borrowTimeoutMillis сколько ждать свободного подключения
+     * @param statementCacheSize сколько подготовленных запросов хранить для каждого подключения
+     */
+    public ConnectionPool(String url, Properties properties, int size, long idleTimeoutMillis,
+                          long validationIntervalMillis, int validationTimeoutSeconds, long borrowTimeoutMillis,
+                          int statementCacheSize) {
+        this.url = url;
+        this.properties = properties;
+        this.size = size;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.validationIntervalNanos = TimeUnit.MILLISECONDS.toNanos(validationIntervalMillis);
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.borrowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+        this.statementCacheSize = statementCacheSize;
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pool-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        reaper.scheduleWithFixedDelay(this::closeIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Закрытие свободных подключений, которые простаивают дольше времени простоя
+     */
+    private void closeIdle() {
+        List<PooledConnection> expired = new ArrayList<>();
+        lock.lock();
+        try {
+            PooledConnection connection;
+            while ((connection = idle.peekFirst()) != null
+                    && System.nanoTime() - connection.getReleasedAt() > idleTimeoutNanos) {
+                expired.add(idle.pollFirst());
+                created--;
+            }
+            if (!expired.isEmpty()) available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        // закрытие выполняется вне блокировки пула
+        expired.forEach(PooledConnection::closePhysically);
+    }
+
+    /**
+     * Получение подключения из пула
+     * @return подключение, которое надо закрыть после использования
+     * @throws SQLException если подключение не освободилось за отведенное время или БД недоступна
+     */
+    public PooledConnection borrow() throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + borrowTimeoutNanos;
+        PooledConnection connection;
+        for (; ; ) {
+            connection = null;
+            lock.lock();
+            try {
+                while (connection == null) {
+                    if (closed) throw new SQLException("Connection pool is closed");
+                    connection = idle.pollLast();
+                    if (connection != null) break;
+                    if (created < size) {
+                        created++;
+                        break;
+                    }
+                    long nanos = deadline - System.nanoTime();
+                    if (nanos <= 0) {
+                        timeouts.increment();
+                        throw new SQLException("No free connection in pool after " + TimeUnit.NANOSECONDS.toMillis(borrowTimeoutNanos) + " ms");
+                    }
+                    available.awaitNanos(nanos);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for connection", e);
+            } finally {
+                lock.unlock();
+            }
+            if (connection == null) {
+                try {
+                    Connection physical = DriverManager.getConnection(url, properties);
+                    connection = new PooledConnection(this, physical,
+                            new StatementCache(physical, statementCacheSize, statementHits, statementMisses));
+                } catch (SQLException e) {
+                    discarded();
+                    throw e;
+                }
+                break;
+            }
+            // проверка выполняется вне блокировки пула
+            if (isUsable(connection)) break;
+            connection.closePhysically();
+            discarded();
+        }
+        connection.lend();
+        long waited = System.nanoTime() - start;
+        borrows.increment();
+        waitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        return connection;
+    }
+
+    /**
+     * Проверка свободного подключения перед выдачей: закрытие после долгого простоя
+     * и проверка связи с БД после простоя дольше интервала проверки
+     * @param connection свободное подключение
+     * @return true, если подключение можно выдать
+     */
+    private boolean isUsable(PooledConnection connection) {
+        long idleNanos = System.nanoTime() - connection.getReleasedAt();
+        if (idleNanos > idleTimeoutNanos) return false;
+        if (idleNanos <= validationIntervalNanos) return true;
+        try {
+            return connection.connection().isValid(validationTimeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Возврат подключения в пул
+     * @param connection подключение, полученное из {@link #borrow()}
+     */
+    void release(PooledConnection connection) {
+        lock.lock();
+        try {
+            if (closed) {
+                connection.closePhysically();
+                created--;
+                return;
+            }
+            idle.addLast(connection);
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Освобождение места в пуле после неудачного открытия или проверки подключения
+     */
+    private void discarded() {
+        lock.lock();
+        try {
+            created--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Количество выданных подключений
+     * @return счетчик выдач
+     */
+    public long getBorrowCount() {
+        return borrows.sum();
+    }
+
+    /**
+     * Среднее время ожидания подключения
+     * @return время в мс
+     */
+    public double getAverageWaitMillis() {
+        long count = borrows.sum();
+        return count == 0 ? 0 : waitNanos.sum() / 1e6 / count;
+    }
+
+    /**
+     * Максимальное время ожидания подключения
+     * @return время в мс
+     */
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1e6;
+    }
+
+    /**
+     * Количество отказов из-за того, что подключение не освободилось вовремя
+     * @return счетчик отказов
+     */
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Количество запросов, взятых из кэша подготовленных запросов
+     * @return счетчик попаданий по всем подключениям
+     */
+    public long getStatementCacheHits() {
+        return statementHits.sum();
+    }
+
+    /**
+     * Количество запросов, подготовленных заново
+     * @return счетчик промахов по всем подключениям
+     */
+    public long getStatementCacheMisses() {
+        return statementMisses.sum();
+    }
+
+    /**
+     * Количество открытых подключений (свободных и выданных)
+     * @return число подключений
+     */
+    public int getOpenCount() {
+        lock.lock();
+        try {
+            return created;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Закрытие пула и всех свободных подключений. Выданные закрываются при возврате
+     */
+    @Override
+    public void close() {
+        reaper.shutdownNow();
+        lock.lock();
+        try {
+            closed = true;
+            for (PooledConnection connection : idle) {
+                connection.closePhysically();
+                created--;
+            }
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
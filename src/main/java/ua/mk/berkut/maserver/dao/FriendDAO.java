@@ -1,62 +1,46 @@
 package ua.mk.berkut.maserver.dao;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.util.HashSet;
-import java.util.Set;
-
-public class FriendDAO {
-    private Connection connection;
-
-    public FriendDAO(Connection connection) {
-        this.connection = connection;
-    }
+/**
+ * Объект доступа к записям о дружбе. Дружба записывается в одну сторону (кто добавил - кого),
+ * друзьями считаются пользователи, дружба с которыми записана в обе стороны
+ */
+public interface FriendDAO {
 
     /**
-     * Находит по id пользователя получает множество id его друзей
+     * Находит по id пользователя множество id его взаимных друзей
      * @param id id пользователя
-     * @return множество ид друзей пользователя, ид которого указан
+     * @return массив ид друзей пользователя, ид которого указан
+     */
+    int[] getFriendsFor(int id);
+
+    /**
+     * Проверка наличия записи о дружбе в одну сторону
+     * @param from кто
+     * @param to с кем
+     * @return true, если from добавил to в друзья
      */
-    public Set<Integer> getFriendsFor(int id) {
-        Set<Integer> result = new HashSet<>();
-        try (PreparedStatement ps1 = connection.prepareStatement("select id2 from friend where id1 = ?");
-             PreparedStatement ps2 = connection.prepareStatement("select id1 from friend where id2 = ?")
-        ) {
-            ps1.setInt(1, id);
-            ps2.setInt(1, id);
-            ResultSet rs = ps1.executeQuery();
-            while (rs.next()) {
-                int val = rs.getInt(1);
-                result.add(val);
-            }
-            Set<Integer> result2 = new HashSet<>();
-            ResultSet rs2 = ps2.executeQuery();
-            while (rs2.next()) {
-                Integer val = rs2.getInt(1);
-                result2.add(val);
-            }
-            result.retainAll(result2);
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return result;
-    }
+    boolean exists(int from, int to);
 
     /**
      * Добавление дружбы
      * @param from кто
      * @param to с кем
+     * @return true, если запись добавлена
      */
-    public void addFriendFor(int from, int to) {
-        try (PreparedStatement preparedStatement = connection.prepareStatement("insert into friend (id1, id2) values (?, ?)")) {
-            preparedStatement.setInt(1, from);
-            preparedStatement.setInt(2, to);
-            preparedStatement.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-    }
+    boolean addFriendFor(int from, int to);
 
+    /**
+     * Добавление нескольких друзей одной операцией
+     * @param from кто
+     * @param to с кем
+     * @return true, если все записи добавлены
+     */
+    boolean addFriendsFor(int from, int[] to);
+
+    /**
+     * Находит всех, кто добавил пользователя в друзья (дружба в одну сторону)
+     * @param id id пользователя
+     * @return массив id добавивших
+     */
+    int[] getAddedBy(int id);
 }
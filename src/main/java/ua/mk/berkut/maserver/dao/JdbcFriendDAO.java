@@ -0,0 +1,96 @@
+package ua.mk.berkut.maserver.dao;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.stream.IntStream;
+
+/**
+ * Объект доступа к таблице friend в БД через JDBC
+ */
+public class JdbcFriendDAO implements FriendDAO {
+    private ConnectionPool pool;
+
+    public JdbcFriendDAO(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public int[] getFriendsFor(int id) {
+        IntStream.Builder result = IntStream.builder();
+        try (PooledConnection connection = pool.borrow();
+             PreparedStatement ps = connection.prepareStatement(
+                     "select f.id2 from friend f join friend b on b.id1 = f.id2 and b.id2 = f.id1 where f.id1 = ?")) {
+            ps.setInt(1, id);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                result.add(rs.getInt(1));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return result.build().toArray();
+    }
+
+    @Override
+    public boolean exists(int from, int to) {
+        try (PooledConnection connection = pool.borrow();
+             PreparedStatement ps = connection.prepareStatement("select 1 from friend where id1 = ? and id2 = ? limit 1")) {
+            ps.setInt(1, from);
+            ps.setInt(2, to);
+            return ps.executeQuery().next();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public boolean addFriendFor(int from, int to) {
+        try (PooledConnection connection = pool.borrow();
+             PreparedStatement preparedStatement = connection.prepareStatement("insert into friend (id1, id2) values (?, ?)")) {
+            preparedStatement.setInt(1, from);
+            preparedStatement.setInt(2, to);
+            preparedStatement.executeUpdate();
+            return true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public boolean addFriendsFor(int from, int[] to) {
+        if (to.length == 0) return true;
+        try (PooledConnection connection = pool.borrow();
+             PreparedStatement preparedStatement = connection.prepareStatement("insert into friend (id1, id2) values (?, ?)")) {
+            for (int id : to) {
+                preparedStatement.setInt(1, from);
+                preparedStatement.setInt(2, id);
+                preparedStatement.addBatch();
+            }
+            preparedStatement.executeBatch();
+            return true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public int[] getAddedBy(int id) {
+        IntStream.Builder result = IntStream.builder();
+        try (PooledConnection connection = pool.borrow();
+             PreparedStatement ps = connection.prepareStatement("select id1 from friend where id2 = ?")) {
+            ps.setInt(1, id);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                result.add(rs.getInt(1));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return result.build().toArray();
+    }
+
+}
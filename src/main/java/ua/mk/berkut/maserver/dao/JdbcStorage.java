@@ -0,0 +1,121 @@
+package ua.mk.berkut.maserver.dao;
+
+import ua.mk.berkut.maserver.db.User;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Хранилище в БД через JDBC с пулом подключений
+ */
+public class JdbcStorage implements Storage {
+    /**
+     * Сколько строк записывается одним insert
+     */
+    private static final int ROWS_PER_INSERT = 128;
+
+    private final ConnectionPool pool;
+    private final UserDAO users;
+    private final FriendDAO friends;
+
+    /**
+     * Создает хранилище над пулом подключений
+     * @param pool пул подключений к БД
+     */
+    public JdbcStorage(ConnectionPool pool) {
+        this.pool = pool;
+        this.users = new JdbcUserDAO(pool);
+        this.friends = new JdbcFriendDAO(pool);
+    }
+
+    /**
+     * Пул подключений (для статистики)
+     * @return пул
+     */
+    public ConnectionPool pool() {
+        return pool;
+    }
+
+    @Override
+    public UserDAO users() {
+        return users;
+    }
+
+    @Override
+    public FriendDAO friends() {
+        return friends;
+    }
+
+    /**
+     * Запись одной транзакцией многострочными insert
+     */
+    @Override
+    public void write(List<User> users, List<int[]> friends) throws SQLException {
+        try (PooledConnection connection = pool.borrow()) {
+            Connection c = connection.connection();
+            c.setAutoCommit(false);
+            try {
+                for (int from = 0; from < users.size(); from += ROWS_PER_INSERT) {
+                    insertUsers(connection, users.subList(from, Math.min(users.size(), from + ROWS_PER_INSERT)));
+                }
+                for (int from = 0; from < friends.size(); from += ROWS_PER_INSERT) {
+                    insertFriends(connection, friends.subList(from, Math.min(friends.size(), from + ROWS_PER_INSERT)));
+                }
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    private static void insertUsers(PooledConnection connection, List<User> users) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(values(
+                "insert into chatuser (id, login, password, username, birthday, city, description) values ",
+                "(?, ?, ?, ?, ?, ?, ?)", users.size()))) {
+            int i = 1;
+            for (User user : users) {
+                ps.setInt(i++, user.getId());
+                ps.setString(i++, user.getLogin());
+                ps.setString(i++, user.getPassword());
+                ps.setString(i++, user.getUsername());
+                ps.setDate(i++, Date.valueOf(user.getBirthday()));
+                ps.setString(i++, user.getCity());
+                ps.setString(i++, user.getDescription());
+            }
+            ps.executeUpdate();
+        }
+    }
+
+    private static void insertFriends(PooledConnection connection, List<int[]> friends) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(values(
+                "insert into friend (id1, id2) values ", "(?, ?)", friends.size()))) {
+            int i = 1;
+            for (int[] pair : friends) {
+                ps.setInt(i++, pair[0]);
+                ps.setInt(i++, pair[1]);
+            }
+            ps.executeUpdate();
+        }
+    }
+
+    private static String values(String insert, String row, int rows) {
+        StringBuilder sql = new StringBuilder(insert.length() + rows * (row.length() + 2));
+        sql.append(insert);
+        for (int i = 0; i < rows; i++) {
+            if (i > 0) sql.append(", ");
+            sql.append(row);
+        }
+        return sql.toString();
+    }
+}
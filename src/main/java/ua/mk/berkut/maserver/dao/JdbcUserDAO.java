@@ -0,0 +1,169 @@
+package ua.mk.berkut.maserver.dao;
+
+import ua.mk.berkut.maserver.db.User;
+
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Объект доступа к таблице chatuser в БД через JDBC
+ */
+public class JdbcUserDAO implements UserDAO {
+    /**
+     * Сколько строк драйвер получает от БД за одно обращение при постраничном чтении
+     */
+    private static final int FETCH_SIZE = 1000;
+
+    private ConnectionPool pool;
+
+    /**
+     * Создает обхект доступа к данным. Подключение берется из пула на время каждого вызова
+     * @param pool пул подключений к БД
+     */
+    public JdbcUserDAO(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public User addUser(User user) {
+        try (PooledConnection connection = pool.borrow();
+             PreparedStatement ps = connection.prepareStatement("insert into chatuser (login, password, username, birthday, city, description) VALUES (?, ?, ?, ?, ?, ?)",
+                Statement.RETURN_GENERATED_KEYS)) {
+            ps.setString(1, user.getLogin());
+            ps.setString(2, user.getPassword());
+            ps.setString(3, user.getUsername());
+            ps.setDate(4, Date.valueOf(user.getBirthday()));
+            ps.setString(5, user.getCity());
+            ps.setString(6, user.getDescription());
+            ps.executeUpdate();
+            ResultSet keys = ps.getGeneratedKeys();
+            if (keys.next()) user.setId(keys.getInt(1));
+            return user;
+        } catch (SQLException e) {
+//            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public int getMaxId() {
+        try (PooledConnection connection = pool.borrow();
+             Statement statement = connection.connection().createStatement()) {
+            ResultSet rs = statement.executeQuery("select max(id) from chatuser");
+            return rs.next() ? rs.getInt(1) : 0;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    @Override
+    public int getUsersAfter(int afterId, int limit, Consumer<User> users) throws SQLException {
+        int count = 0;
+        try (PooledConnection connection = pool.borrow();
+             PreparedStatement ps = connection.prepareStatement("select * from chatuser where id > ? order by id limit ?")) {
+            ps.setInt(1, afterId);
+            ps.setInt(2, limit);
+            // строки страницы читаются частями, а не все сразу в память драйвера
+            ps.setFetchSize(Math.min(limit, FETCH_SIZE));
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                users.accept(getUser(rs, rs.getInt("id"), rs.getString("login")));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public User findUserWithFriends(String login, IntConsumer friends) {
+        try (PooledConnection connection = pool.borrow();
+             PreparedStatement ps = connection.prepareStatement(
+                     "select u.*, f.id2 as friend_id from chatuser u " +
+                     "left join (friend f join friend b on b.id1 = f.id2 and b.id2 = f.id1) on f.id1 = u.id " +
+                     "where u.login = ?")) {
+            ps.setString(1, login);
+            ResultSet rs = ps.executeQuery();
+            if (!rs.next()) return null;
+            User user = getUser(rs, rs.getInt("id"), login);
+            do {
+                int friendId = rs.getInt("friend_id");
+                if (!rs.wasNull()) friends.accept(friendId);
+            } while (rs.next());
+            return user;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public User find(int id) {
+        try (PooledConnection connection = pool.borrow();
+             PreparedStatement ps = connection.prepareStatement("select * from chatuser where id = ?")) {
+            ps.setInt(1, id);
+            ResultSet rs = ps.executeQuery();
+            if (!rs.next()) return null;
+            String login = rs.getString("login");
+            return getUser(rs, id, login);
+        } catch (SQLException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public User findByLogin(String login) {
+        try (PooledConnection connection = pool.borrow();
+             PreparedStatement ps = connection.prepareStatement("select * from chatuser where login = ?")) {
+            ps.setString(1, login);
+            ResultSet rs = ps.executeQuery();
+            if (rs.next()) {
+                int id = rs.getInt("id");
+                return getUser(rs, id, login);
+            } else {
+                return null;
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public boolean updatePassword(int id, String password) {
+        try (PooledConnection connection = pool.borrow();
+             PreparedStatement ps = connection.prepareStatement("update chatuser set password = ? where id = ?")) {
+            ps.setString(1, password);
+            ps.setInt(2, id);
+            return ps.executeUpdate() == 1;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Вспомогательный метод для извлечения пользователей из ResultSet
+     * @param rs ResultSet - результат запроса, из которого надо получить список пользователей
+     * @param id ид пользователя
+     * @param login логин пользователя
+     * @return пользователя по ид или логину
+     * @throws SQLException если случилась проблема с БД
+     */
+    private User getUser(ResultSet rs, int id, String login) throws SQLException {
+        String password = rs.getString("password");
+        String username = rs.getString("username");
+        Date date = rs.getDate("birthday");
+        LocalDate birthday;
+        if (date != null) {
+            birthday = date.toLocalDate();
+        } else {
+            birthday = LocalDate.of(1900, 1, 1);
+        }
+        String city = rs.getString("city");
+        String description = rs.getString("description");
+        return new User(id, login, password, username, birthday, city, description);
+    }
+}
@@ -0,0 +1,85 @@
+package ua.mk.berkut.maserver.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Подключение, выданное {@link ConnectionPool}. Закрытие возвращает его в пул.
+ * Подготовленные запросы сохраняются в кэше подключения и переиспользуются следующими вызовами
+ */
+public class PooledConnection implements AutoCloseable {
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private final StatementCache statements;
+    /**
+     * Выдано ли подключение: устанавливается при выдаче и сбрасывается первым закрытием
+     */
+    private final AtomicBoolean borrowed = new AtomicBoolean();
+    private long releasedAt;
+
+    PooledConnection(ConnectionPool pool, Connection connection, StatementCache statements) {
+        this.pool = pool;
+        this.connection = connection;
+        this.statements = statements;
+    }
+
+    /**
+     * Подключение к БД. Его нельзя закрывать напрямую
+     * @return физическое подключение
+     */
+    public Connection connection() {
+        return connection;
+    }
+
+    /**
+     * Подготовка запроса или получение ранее подготовленного из кэша
+     * @param sql текст запроса
+     * @return подготовленный запрос; его закрытие не освобождает запрос в БД
+     * @throws SQLException если случилась проблема с БД
+     */
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return statements.prepare(sql, Statement.NO_GENERATED_KEYS);
+    }
+
+    /**
+     * Подготовка запроса на вставку с возвратом сгенерированных ключей, с использованием кэша
+     * @param sql текст запроса
+     * @param autoGeneratedKeys {@link Statement#RETURN_GENERATED_KEYS} или {@link Statement#NO_GENERATED_KEYS}
+     * @return подготовленный запрос; его закрытие не освобождает запрос в БД
+     * @throws SQLException если случилась проблема с БД
+     */
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        return statements.prepare(sql, autoGeneratedKeys);
+    }
+
+    void lend() {
+        borrowed.set(true);
+    }
+
+    long getReleasedAt() {
+        return releasedAt;
+    }
+
+    void closePhysically() {
+        statements.clear();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Возврат подключения в пул. Повторное закрытие ничего не делает, иначе подключение
+     * попало бы в пул дважды и досталось бы двум потокам сразу
+     */
+    @Override
+    public void close() {
+        if (!borrowed.compareAndSet(true, false)) return;
+        releasedAt = System.nanoTime();
+        pool.release(this);
+    }
+}
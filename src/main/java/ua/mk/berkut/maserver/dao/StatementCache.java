@@ -0,0 +1,78 @@
+package ua.mk.berkut.maserver.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Кэш подготовленных запросов одного подключения с вытеснением давно не использованных (LRU).
+ * Выдаваемые запросы ({@link CachedStatement}) можно закрывать как обычно: закрытие лишь закрывает
+ * результат и очищает параметры и пакет, а сам запрос остается подготовленным для следующего вызова.
+ * Подключение из пула используется одним потоком, поэтому кэш не синхронизирован
+ */
+class StatementCache {
+    private final Connection connection;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LinkedHashMap<String, CachedStatement> statements;
+
+    /**
+     * Создает кэш
+     * @param connection подключение, для которого готовятся запросы
+     * @param capacity максимальное число запросов в кэше
+     * @param hits общий счетчик попаданий
+     * @param misses общий счетчик промахов
+     */
+    StatementCache(Connection connection, int capacity, LongAdder hits, LongAdder misses) {
+        this.connection = connection;
+        this.hits = hits;
+        this.misses = misses;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() <= capacity) return false;
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Получение подготовленного запроса из кэша или подготовка нового
+     * @param sql текст запроса
+     * @param autoGeneratedKeys {@link java.sql.Statement#RETURN_GENERATED_KEYS} или {@link java.sql.Statement#NO_GENERATED_KEYS}
+     * @return запрос, закрытие которого не освобождает его
+     * @throws SQLException если случилась проблема с БД
+     */
+    PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+        String key = autoGeneratedKeys + sql;
+        CachedStatement statement = statements.get(key);
+        if (statement != null) {
+            hits.increment();
+            return statement;
+        }
+        misses.increment();
+        statement = new CachedStatement(connection.prepareStatement(sql, autoGeneratedKeys));
+        statements.put(key, statement);
+        return statement;
+    }
+
+    /**
+     * Закрытие всех запросов кэша перед закрытием подключения
+     */
+    void clear() {
+        statements.values().forEach(StatementCache::closeQuietly);
+        statements.clear();
+    }
+
+    private static void closeQuietly(CachedStatement statement) {
+        try {
+            statement.closePhysically();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package ua.mk.berkut.maserver.dao;
+
+import ua.mk.berkut.maserver.db.User;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Хранилище данных сервера: объекты доступа к пользователям и к дружбе и пакетная запись.
+ * Реализации - {@link JdbcStorage} (MariaDB и другие БД через JDBC)
+ * и {@link ua.mk.berkut.maserver.dao.embedded.EmbeddedStorage} (локальные файлы, без внешней БД)
+ */
+public interface Storage extends AutoCloseable {
+
+    /**
+     * Объект доступа к пользователям
+     * @return DAO пользователей
+     */
+    UserDAO users();
+
+    /**
+     * Объект доступа к дружбе
+     * @return DAO дружбы
+     */
+    FriendDAO friends();
+
+    /**
+     * Запись пользователей с уже присвоенными id и записей о дружбе одной операцией
+     * (используется {@link WriteBehindQueue})
+     * @param users новые пользователи
+     * @param friends пары {кто, кого}
+     * @throws SQLException если запись не удалась; SQLSTATE классов 22 и 23 означает ошибку в данных
+     */
+    void write(List<User> users, List<int[]> friends) throws SQLException;
+
+    /**
+     * Закрытие хранилища при остановке сервера
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,331 @@
+package ua.mk.berkut.maserver.dao;
+
+import ua.mk.berkut.maserver.db.User;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Справочник пользователей в памяти - кэш над {@link UserDAO} с поиском по логину и по id.
+ * Заполняется после запуска сервера в фоновом потоке, новые пользователи добавляются в справочник при регистрации.
+ * Размер ограничен, при переполнении вытесняются давно не использованные пользователи - приближенный LRU
+ * по алгоритму CLOCK: поиск только отмечает запись как использованную, без блокировок, а вытесняющий поток
+ * обходит записи по кругу, снимает отметки и удаляет первую запись без отметки.
+ * Индекс по логину изменяется внутри {@code compute} индекса по id, поэтому индексы согласованы
+ */
+public class UserDirectory {
+    /**
+     * Пауза перед первым повтором чтения страницы при ошибке БД, затем удваивается до 2^6 раз
+     */
+    private static final long WARM_RETRY_MILLIS = 500;
+    private static final int MAX_BACKOFF_SHIFT = 6;
+
+    private final UserDAO userDAO;
+    private final int capacity;
+
+    private final ConcurrentHashMap<Integer, Entry> byId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> idByLogin = new ConcurrentHashMap<>();
+    /**
+     * Вытеснение выполняет один поток; стрелка часов - итератор по записям, изменяется под этой блокировкой
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private Iterator<Entry> hand;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    /**
+     * Пользователей, добавленных начальным заполнением (пишет только поток заполнения)
+     */
+    private volatile int warmed;
+    private volatile boolean warm;
+
+    /**
+     * Создает пустой справочник
+     * @param userDAO объект доступа к таблице chatuser
+     * @param capacity максимальное число пользователей в памяти
+     */
+    public UserDirectory(UserDAO userDAO, int capacity) {
+        this.userDAO = userDAO;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Пользователь в справочнике и отметка об использовании с прошлого прохода стрелки
+     */
+    private static final class Entry {
+        final User user;
+        volatile boolean referenced;
+
+        Entry(User user) {
+            this.user = user;
+        }
+
+        User touch() {
+            // запись только при изменении, чтобы частые поиски не делали строку кэша "грязной"
+            if (!referenced) referenced = true;
+            return user;
+        }
+    }
+
+    /**
+     * Начальное заполнение справочника в фоновом потоке: пользователи читаются из БД страницами
+     * ({@link UserDAO#getUsersAfter}), без списка всех пользователей в памяти. Сервер тем временем
+     * уже принимает подключения - пользователи, которых еще нет в памяти, загружаются по одному.
+     * Заполнение останавливается, когда справочник заполнен до ограничения размера или прочитана
+     * вся таблица; при ошибке БД та же страница читается повторно с растущей паузой
+     * @param pageSize пользователей в одном запросе
+     */
+    public void startWarm(int pageSize) {
+        Thread thread = new Thread(() -> warm(pageSize), "directory-warm");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void warm(int pageSize) {
+        long start = System.nanoTime();
+        List<User> page = new ArrayList<>(pageSize);
+        int lastId = 0;
+        int attempt = 0;
+        for (; ; ) {
+            page.clear();
+            int count;
+            try {
+                count = userDAO.getUsersAfter(lastId, pageSize, page::add);
+                attempt = 0;
+            } catch (SQLException e) {
+                System.err.println("User directory: cannot read users after id " + lastId + ": " + e.getMessage());
+                try {
+                    Thread.sleep(WARM_RETRY_MILLIS << Math.min(attempt++, MAX_BACKOFF_SHIFT));
+                } catch (InterruptedException interrupted) {
+                    // заполнение прервано - справочник не считается заполненным
+                    return;
+                }
+                continue;
+            }
+            if (count == 0) break;
+            lastId = page.get(count - 1).getId();
+            if (!putAbsent(page) || count < pageSize) break;
+        }
+        warm = true;
+        System.out.printf("User directory: %d users loaded in %d ms%n", warmed, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Добавление страницы пользователей, которых еще нет в справочнике: пользователи, загруженные
+     * или зарегистрированные во время заполнения, новее прочитанных и не заменяются
+     * @param users страница пользователей
+     * @return false, если справочник заполнен
+     */
+    private boolean putAbsent(List<User> users) {
+        for (User user : users) {
+            if (byId.size() >= capacity) return false;
+            if (idByLogin.containsKey(user.getLogin())) continue;
+            boolean[] added = new boolean[1];
+            byId.computeIfAbsent(user.getId(), id -> {
+                if (idByLogin.putIfAbsent(user.getLogin(), id) != null) return null;
+                added[0] = true;
+                return new Entry(user);
+            });
+            if (added[0]) warmed++;
+        }
+        return true;
+    }
+
+    /**
+     * Поиск пользователя только в памяти
+     * @param login логин пользователя
+     * @return пользователя или null, если его нет в справочнике
+     */
+    public User getIfPresent(String login) {
+        Integer id = idByLogin.get(login);
+        Entry entry = id == null ? null : byId.get(id);
+        // индексы меняются не атомарно для читателя - запись проверяется по логину
+        User user = entry == null || !entry.user.getLogin().equals(login) ? null : entry.touch();
+        (user == null ? misses : hits).increment();
+        return user;
+    }
+
+    /**
+     * Поиск пользователя по id только в памяти
+     * @param id идентификатор пользователя
+     * @return пользователя или null, если его нет в справочнике
+     */
+    public User getIfPresent(int id) {
+        Entry entry = byId.get(id);
+        User user = entry == null ? null : entry.touch();
+        (user == null ? misses : hits).increment();
+        return user;
+    }
+
+    /**
+     * Поиск пользователя по логину; при отсутствии в памяти пользователь загружается из БД
+     * @param login логин пользователя
+     * @return найденного пользователя или null, если пользователь с таким login не существует
+     */
+    public User findByLogin(String login) {
+        User user = getIfPresent(login);
+        return user != null ? user : load(() -> userDAO.findByLogin(login));
+    }
+
+    /**
+     * Поиск пользователя по id; при отсутствии в памяти пользователь загружается из БД
+     * @param id идентификатор пользователя
+     * @return найденного пользователя или null, если пользователь с таким id не существует
+     */
+    public User findById(int id) {
+        User user = getIfPresent(id);
+        return user != null ? user : load(() -> userDAO.find(id));
+    }
+
+    /**
+     * Добавление (или замена) пользователя в справочнике
+     * @param user пользователь, прочитанный из БД
+     */
+    public void put(User user) {
+        byId.compute(user.getId(), (id, old) -> {
+            if (old != null && !old.user.getLogin().equals(user.getLogin())) idByLogin.remove(old.user.getLogin(), id);
+            idByLogin.put(user.getLogin(), id);
+            return new Entry(user);
+        });
+        if (byId.size() > capacity) evict();
+    }
+
+    /**
+     * Удаление пользователя из справочника (например, если его регистрация не записана в БД)
+     * @param user пользователь
+     */
+    public void remove(User user) {
+        byId.computeIfPresent(user.getId(), (id, entry) -> {
+            if (!entry.user.equals(user)) return entry;
+            idByLogin.remove(user.getLogin(), id);
+            return null;
+        });
+    }
+
+    /**
+     * Вытеснение до ограничения размера. Поток, заставший вытеснение занятым, не ждет:
+     * после освобождения блокировки размер проверяется снова, так что добавленное
+     * во время чужого прохода не остается сверх ограничения
+     */
+    private void evict() {
+        while (byId.size() > capacity && evictionLock.tryLock()) {
+            try {
+                sweep();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Проход часовой стрелки CLOCK, вызывается под evictionLock
+     */
+    private void sweep() {
+        while (byId.size() > capacity) {
+            if (hand == null || !hand.hasNext()) {
+                hand = byId.values().iterator();
+                if (!hand.hasNext()) return;
+            }
+            Entry entry = hand.next();
+            if (entry.referenced) {
+                // второй шанс: запись использовалась с прошлого прохода
+                entry.referenced = false;
+                continue;
+            }
+            boolean[] removed = new boolean[1];
+            byId.computeIfPresent(entry.user.getId(), (id, current) -> {
+                if (current != entry) return current;
+                idByLogin.remove(entry.user.getLogin(), id);
+                removed[0] = true;
+                return null;
+            });
+            if (removed[0]) evictions.increment();
+        }
+    }
+
+    /**
+     * Загрузка отсутствующего в памяти пользователя из БД с замером времени
+     * @param loader запрос к БД
+     * @return загруженного пользователя или null
+     */
+    private User load(Supplier<User> loader) {
+        long start = System.nanoTime();
+        User user = loader.get();
+        loads.increment();
+        loadNanos.add(System.nanoTime() - start);
+        if (user != null) put(user);
+        return user;
+    }
+
+    /**
+     * Копия содержимого справочника
+     * @return список пользователей в памяти
+     */
+    public List<User> users() {
+        List<User> users = new ArrayList<>(byId.size());
+        for (Entry entry : byId.values()) {
+            users.add(entry.user);
+        }
+        return users;
+    }
+
+    /**
+     * Количество пользователей в памяти
+     * @return размер справочника
+     */
+    public int size() {
+        return byId.size();
+    }
+
+    /**
+     * Проверяет, закончено ли начальное заполнение
+     * @return true, если все пользователи прочитаны или справочник заполнен
+     */
+    public boolean isWarm() {
+        return warm;
+    }
+
+    /**
+     * Количество пользователей, добавленных при начальном заполнении
+     * @return счетчик
+     */
+    public int getWarmedCount() {
+        return warmed;
+    }
+
+    /**
+     * Доля поисков, обслуженных из памяти
+     * @return значение от 0 до 1
+     */
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Среднее время загрузки пользователя из БД
+     * @return время в мс
+     */
+    public double getAverageLoadMillis() {
+        long count = loads.sum();
+        return count == 0 ? 0 : loadNanos.sum() / 1e6 / count;
+    }
+
+    /**
+     * Количество пользователей, вытесненных из-за ограничения размера
+     * @return счетчик вытеснений
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+}
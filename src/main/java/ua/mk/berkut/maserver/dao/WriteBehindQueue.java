@@ -0,0 +1,619 @@
+package ua.mk.berkut.maserver.dao;
+
+import ua.mk.berkut.maserver.db.User;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Отложенная запись в БД (write-behind) регистраций и добавлений друзей. Команда записывается
+ * в локальный журнал и сразу считается принятой, а фоновый поток записывает накопленные команды
+ * в хранилище одной операцией ({@link Storage#write(List, List)}: в БД - одной транзакцией
+ * многострочными insert). При ошибке пакет повторяется с растущей
+ * паузой; если ошибка в данных, команды затем записываются по одной и ошибочная команда отбрасывается.
+ * После записи в журнал добавляется отметка, а когда очередь пуста, журнал очищается; если очередь
+ * не пустеет, а журнал вырос, он переписывается только с незаписанными командами.
+ * При запуске команды из журнала после последней отметки ставятся в очередь заново.
+ * <p>
+ * Сброс журнала на диск групповой: команда добавляется в журнал под блокировкой, а fsync
+ * выполняется вне ее - один поток сбрасывает все добавленные к этому моменту команды,
+ * остальные ждут, пока сброшенный номер не дойдет до их команды
+ * <p>
+ * Пользователи получают id при регистрации (см. {@link UserDAO#getMaxId()}), поэтому вход
+ * нового пользователя не ждет записи в БД. Взаимность дружбы проверяется после записи -
+ * обработчиком {@link Listener}
+ */
+public class WriteBehindQueue {
+    private static final byte USER = 1;
+    private static final byte FRIENDS = 2;
+    private static final byte CHECKPOINT = 3;
+    /**
+     * Пауза между повторами растет до retryDelay * 2^8
+     */
+    private static final int MAX_BACKOFF_SHIFT = 8;
+    /**
+     * Размер журнала, после которого он переписывается при отметке о записи
+     */
+    private static final long COMPACT_SIZE = 4L << 20;
+
+    /**
+     * Обработчик результатов записи в БД
+     */
+    public interface Listener {
+        /**
+         * Вызывается в потоке записи после фиксации транзакции
+         * @param from кто добавил
+         * @param to кого добавил
+         */
+        void friendsAdded(int from, int[] to);
+
+        /**
+         * Вызывается в потоке записи, если регистрацию не удалось записать из-за ошибки в данных:
+         * пользователь уже получил id и, возможно, вошел, но в БД его нет
+         * @param user отвергнутый пользователь
+         */
+        void userRejected(User user);
+    }
+
+    private final Storage storage;
+    private final int maxBatch;
+    private final int retryCount;
+    private final long retryDelayMillis;
+    private final boolean fsync;
+    private final Listener listener;
+
+    private final LinkedBlockingQueue<Command> queue = new LinkedBlockingQueue<>();
+    /**
+     * Зарегистрированные, но еще не записанные пользователи по логину
+     */
+    private final ConcurrentHashMap<String, User> pendingUsers = new ConcurrentHashMap<>();
+    private final Path journalPath;
+    /**
+     * Блокировка добавления в журнал; fsync под ней не выполняется
+     */
+    private final ReentrantLock journalLock = new ReentrantLock();
+    private volatile FileChannel journal;
+    /**
+     * Номер последней команды в журнале; изменяется под блокировкой журнала
+     */
+    private volatile long lastSeq;
+    private volatile int maxUserId;
+
+    /**
+     * Групповой сброс журнала: номер последней сброшенной команды и признак идущего сброса
+     */
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition synced = syncLock.newCondition();
+    private long durableSeq;
+    private boolean syncing;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder commands = new LongAdder();
+    private final LongAdder commitNanos = new LongAdder();
+    private final AtomicLong maxCommitNanos = new AtomicLong();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * Открывает журнал, ставит в очередь незаписанные команды из него и запускает поток записи
+     * @param storage хранилище
+     * @param journalPath файл журнала
+     * @param maxBatch максимальное число команд в одной транзакции
+     * @param retryCount сколько раз повторять пакет при ошибке в данных
+     * @param retryDelayMillis пауза перед первым повтором, затем удваивается
+     * @param fsync сбрасывать ли журнал на диск при каждой команде
+     * @param listener обработчик записанных добавлений друзей и отвергнутых регистраций
+     * @throws IOException если журнал недоступен
+     */
+    public WriteBehindQueue(Storage storage, Path journalPath, int maxBatch, int retryCount, long retryDelayMillis,
+                            boolean fsync, Listener listener) throws IOException {
+        this.storage = storage;
+        this.maxBatch = maxBatch;
+        this.retryCount = retryCount;
+        this.retryDelayMillis = retryDelayMillis;
+        this.fsync = fsync;
+        this.listener = listener;
+        this.journalPath = journalPath;
+        this.journal = FileChannel.open(journalPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover();
+        durableSeq = lastSeq;
+        Thread writer = new Thread(this::writeLoop, "write-behind");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Регистрация пользователя
+     * @param user новый пользователь с уже присвоенным id
+     * @return false, если пользователь с таким логином уже ожидает записи
+     */
+    public boolean register(User user) {
+        if (pendingUsers.putIfAbsent(user.getLogin(), user) != null) return false;
+        if (!enqueue(new Command(USER, user, 0, null))) {
+            pendingUsers.remove(user.getLogin());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Добавление друзей
+     * @param from кто добавляет
+     * @param to кого добавляет
+     * @return false, если команду не удалось записать в журнал
+     */
+    public boolean addFriends(int from, int[] to) {
+        return to.length == 0 || enqueue(new Command(FRIENDS, null, from, to));
+    }
+
+    /**
+     * Поиск пользователя, который зарегистрирован, но еще не записан в БД
+     * @param login логин
+     * @return пользователя или null
+     */
+    public User pendingUser(String login) {
+        return pendingUsers.get(login);
+    }
+
+    /**
+     * Пользователи, которые ожидают записи в БД (в т.ч. восстановленные из журнала)
+     * @return пользователи
+     */
+    public Collection<User> pendingUsers() {
+        return pendingUsers.values();
+    }
+
+    /**
+     * Наибольший id среди пользователей из журнала
+     * @return id или 0
+     */
+    public int getMaxUserId() {
+        return maxUserId;
+    }
+
+    /**
+     * Количество команд в очереди
+     * @return длина очереди
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Среднее число команд в одной транзакции
+     * @return размер пакета
+     */
+    public double getAverageBatchSize() {
+        long count = batches.sum();
+        return count == 0 ? 0 : (double) commands.sum() / count;
+    }
+
+    /**
+     * Среднее время записи пакета в БД, включая повторы
+     * @return время в мс
+     */
+    public double getAverageCommitMillis() {
+        long count = batches.sum();
+        return count == 0 ? 0 : commitNanos.sum() / 1e6 / count;
+    }
+
+    /**
+     * Максимальное время записи пакета в БД
+     * @return время в мс
+     */
+    public double getMaxCommitMillis() {
+        return maxCommitNanos.get() / 1e6;
+    }
+
+    /**
+     * Количество повторов пакетов после ошибок
+     * @return счетчик повторов
+     */
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    /**
+     * Количество отброшенных команд, которые не удалось записать
+     * @return счетчик ошибок
+     */
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    /**
+     * Запись команды в журнал и постановка в очередь
+     * @param command команда без номера
+     * @return false, если журнал недоступен
+     */
+    private boolean enqueue(Command command) {
+        journalLock.lock();
+        try {
+            command.seq = lastSeq + 1;
+            append(command.encode());
+            lastSeq = command.seq;
+            // в очередь под блокировкой: порядок очереди совпадает с порядком журнала
+            queue.add(command);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            journalLock.unlock();
+        }
+        if (!fsync || sync(command.seq)) return true;
+        // поток записи пропустит команду, если еще не записал ее
+        command.cancelled = true;
+        return false;
+    }
+
+    /**
+     * Ожидание сброса журнала на диск до заданной команды. Если сброс не идет, его выполняет
+     * этот поток - сразу для всех команд, добавленных к этому моменту
+     * @param seq номер команды
+     * @return false, если сброс не удался
+     */
+    private boolean sync(long seq) {
+        syncLock.lock();
+        try {
+            while (durableSeq < seq) {
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                long target = lastSeq;
+                FileChannel channel = journal;
+                syncLock.unlock();
+                boolean forced = false;
+                try {
+                    channel.force(false);
+                    forced = true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    syncLock.lock();
+                    syncing = false;
+                    if (forced) durableSeq = Math.max(durableSeq, target);
+                    synced.signalAll();
+                }
+                if (!forced) return false;
+            }
+            return true;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        List<Command> batch = new ArrayList<>(maxBatch);
+        //noinspection InfiniteLoopStatement
+        for (; ; ) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(batch, maxBatch - 1);
+            // в БД записываются только команды, сброшенные на диск
+            if (fsync) sync(batch.get(batch.size() - 1).seq);
+            long start = System.nanoTime();
+            commit(batch);
+            long nanos = System.nanoTime() - start;
+            batches.increment();
+            commands.add(batch.size());
+            commitNanos.add(nanos);
+            maxCommitNanos.accumulateAndGet(nanos, Math::max);
+            checkpoint(batch.get(batch.size() - 1).seq);
+            for (Command command : batch) {
+                if (command.type == USER) {
+                    pendingUsers.remove(command.user.getLogin(), command.user);
+                    if (!command.written && !command.cancelled) listener.userRejected(command.user);
+                } else if (command.written) {
+                    listener.friendsAdded(command.from, command.to);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Запись пакета. Пока БД недоступна, пакет повторяется без ограничения числа попыток;
+     * если пакет отвергнут из-за данных, после retryCount повторов команды записываются по одной
+     * @param batch команды
+     */
+    private void commit(List<Command> batch) {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                write(batch);
+                return;
+            } catch (SQLException e) {
+                if (isDataError(e) && attempt >= retryCount) {
+                    e.printStackTrace();
+                    break;
+                }
+                retries.increment();
+                sleep(retryDelayMillis << Math.min(attempt, MAX_BACKOFF_SHIFT));
+            }
+        }
+        for (Command command : batch) {
+            try {
+                write(Collections.singletonList(command));
+            } catch (SQLException e) {
+                e.printStackTrace();
+                failures.increment();
+            }
+        }
+    }
+
+    /**
+     * Ошибка в данных (нарушение ограничений, недопустимое значение), которая не исчезнет при повторе
+     * @param e исключение
+     * @return true для SQLSTATE классов 22 и 23
+     */
+    private static boolean isDataError(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && (state.startsWith("22") || state.startsWith("23"));
+    }
+
+    /**
+     * Запись команд одной операцией хранилища
+     * @param batch команды
+     * @throws SQLException если запись не удалась
+     */
+    private void write(List<Command> batch) throws SQLException {
+        List<User> users = new ArrayList<>();
+        List<int[]> friends = new ArrayList<>();
+        for (Command command : batch) {
+            if (command.cancelled) continue;
+            if (command.type == USER) {
+                users.add(command.user);
+            } else {
+                for (int id : command.to) {
+                    friends.add(new int[]{command.from, id});
+                }
+            }
+        }
+        storage.write(users, friends);
+        for (Command command : batch) {
+            command.written = true;
+        }
+    }
+
+    /**
+     * Отметка о записи команд до заданной включительно. Если после нее команд нет, журнал очищается,
+     * а если журнал больше {@link #COMPACT_SIZE} - переписывается с командами, которые еще в очереди
+     * @param seq номер последней записанной команды
+     */
+    private void checkpoint(long seq) {
+        // журнал заменяет только этот поток (поток записи), поэтому канал можно сбросить после снятия блокировки
+        FileChannel channel;
+        journalLock.lock();
+        try {
+            if (seq == lastSeq) {
+                journal.truncate(0);
+            } else if (journal.size() > COMPACT_SIZE) {
+                compact();
+                return;
+            } else {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeByte(CHECKPOINT);
+                out.writeLong(seq);
+                append(bytes.toByteArray());
+            }
+            channel = journal;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        } finally {
+            journalLock.unlock();
+        }
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Замена журнала новым, в котором только команды из очереди. Новый файл сбрасывается на диск
+     * и атомарно заменяет старый; выполняется под блокировкой журнала, после завершения текущего сброса
+     * @throws IOException если журнал не удалось переписать
+     */
+    private void compact() throws IOException {
+        Path temp = journalPath.resolveSibling(journalPath.getFileName() + ".tmp");
+        syncLock.lock();
+        try {
+            while (syncing) {
+                synced.awaitUninterruptibly();
+            }
+            FileChannel old = journal;
+            FileChannel compacted = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                journal = compacted;
+                for (Command command : queue) {
+                    if (!command.cancelled) append(command.encode());
+                }
+                compacted.force(false);
+                Files.move(temp, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                journal = old;
+                compacted.close();
+                throw e;
+            }
+            old.close();
+            // все команды очереди уже на диске в новом журнале
+            durableSeq = Math.max(durableSeq, lastSeq);
+            synced.signalAll();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Запись в конец журнала: длина, CRC32, данные
+     * @param payload данные записи
+     * @throws IOException если запись не удалась
+     */
+    private void append(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        long position = journal.size();
+        while (record.hasRemaining()) {
+            position += journal.write(record, position);
+        }
+    }
+
+    /**
+     * Чтение журнала при запуске. Поврежденный хвост отбрасывается
+     * @throws IOException если чтение невозможно
+     */
+    private void recover() throws IOException {
+        List<Command> journaled = new ArrayList<>();
+        long checkpoint = 0;
+        long valid = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(journal.position(0))));
+        CRC32 crc = new CRC32();
+        try {
+            for (; ; ) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length <= 0 || valid + 8 + length > journal.size()) break;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) break;
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte type = record.readByte();
+                if (type == CHECKPOINT) {
+                    checkpoint = record.readLong();
+                } else {
+                    journaled.add(Command.decode(type, record));
+                }
+                valid += 8 + length;
+            }
+        } catch (EOFException e) {
+            // запись оборвана
+        }
+        if (valid < journal.size()) {
+            System.err.println("Write-behind journal: damaged tail at " + valid);
+            journal.truncate(valid);
+        }
+        for (Command command : journaled) {
+            lastSeq = Math.max(lastSeq, command.seq);
+            if (command.seq <= checkpoint) continue;
+            if (command.type == USER) {
+                pendingUsers.put(command.user.getLogin(), command.user);
+                maxUserId = Math.max(maxUserId, command.user.getId());
+            }
+            queue.add(command);
+        }
+        if (!queue.isEmpty()) System.out.println("Write-behind journal: " + queue.size() + " commands to replay");
+    }
+
+    private static void sleep(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Команда записи в БД
+     */
+    private static final class Command {
+        final byte type;
+        final User user;
+        final int from;
+        final int[] to;
+        long seq;
+        /**
+         * Записана ли команда в БД; используется только потоком записи
+         */
+        boolean written;
+        /**
+         * Команду не удалось сбросить на диск и регистрация (добавление друзей) отвергнута
+         */
+        volatile boolean cancelled;
+
+        Command(byte type, User user, int from, int[] to) {
+            this.type = type;
+            this.user = user;
+            this.from = from;
+            this.to = to;
+        }
+
+        byte[] encode() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            out.writeLong(seq);
+            if (type == USER) {
+                out.writeInt(user.getId());
+                out.writeUTF(user.getLogin());
+                out.writeUTF(user.getPassword());
+                out.writeUTF(user.getUsername());
+                out.writeLong(user.getBirthday().toEpochDay());
+                out.writeUTF(user.getCity());
+                out.writeUTF(user.getDescription());
+            } else {
+                out.writeInt(from);
+                out.writeInt(to.length);
+                for (int id : to) {
+                    out.writeInt(id);
+                }
+            }
+            return bytes.toByteArray();
+        }
+
+        static Command decode(byte type, DataInputStream in) throws IOException {
+            long seq = in.readLong();
+            Command command;
+            if (type == USER) {
+                command = new Command(USER, new User(in.readInt(), in.readUTF(), in.readUTF(), in.readUTF(),
+                        LocalDate.ofEpochDay(in.readLong()), in.readUTF(), in.readUTF()), 0, null);
+            } else {
+                int from = in.readInt();
+                int[] to = new int[in.readInt()];
+                for (int i = 0; i < to.length; i++) {
+                    to[i] = in.readInt();
+                }
+                command = new Command(FRIENDS, null, from, to);
+            }
+            command.seq = seq;
+            return command;
+        }
+    }
+}
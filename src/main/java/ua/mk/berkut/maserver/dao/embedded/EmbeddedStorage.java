@@ -0,0 +1,60 @@
+package ua.mk.berkut.maserver.dao.embedded;
+
+import ua.mk.berkut.maserver.dao.FriendDAO;
+import ua.mk.berkut.maserver.dao.Storage;
+import ua.mk.berkut.maserver.dao.UserDAO;
+import ua.mk.berkut.maserver.db.User;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Встроенное хранилище в локальных файлах, без внешней БД: пользователи - в файле users.dat,
+ * отображенном в память ({@link MappedUserStore}), дружба - в файле friends.dat ({@link FriendAdjacencyStore}).
+ * Для небольших установок, стендов нагрузочного тестирования и замеров сервера без БД
+ */
+public class EmbeddedStorage implements Storage {
+    private final FriendAdjacencyStore friends;
+    private final MappedUserStore users;
+
+    /**
+     * Открывает (или создает) хранилище в каталоге
+     * @param directory каталог файлов хранилища
+     * @throws IOException если файлы недоступны
+     */
+    public EmbeddedStorage(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.friends = new FriendAdjacencyStore(directory.resolve("friends.dat"));
+        this.users = new MappedUserStore(directory.resolve("users.dat"), friends);
+    }
+
+    @Override
+    public UserDAO users() {
+        return users;
+    }
+
+    @Override
+    public FriendDAO friends() {
+        return friends;
+    }
+
+    /**
+     * Пакет проверяется целиком до записи, поэтому ошибка в данных не оставляет его записанным частично.
+     * Пользователи записываются раньше дружбы; повтор пакета после сбоя не создает дубликатов
+     */
+    @Override
+    public synchronized void write(List<User> users, List<int[]> friends) throws SQLException {
+        this.users.validate(users);
+        this.users.write(users);
+        this.friends.write(friends);
+    }
+
+    @Override
+    public void close() {
+        users.close();
+        friends.close();
+    }
+}
@@ -0,0 +1,154 @@
+package ua.mk.berkut.maserver.dao.embedded;
+
+import ua.mk.berkut.maserver.dao.FriendDAO;
+import ua.mk.berkut.maserver.friends.SortedIntArrays;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Записи о дружбе в файле: пары (кто, кого) по 8 байт, только дописываются.
+ * При открытии файл читается один раз и в памяти строятся списки смежности в обе стороны -
+ * кого добавил пользователь и кто добавил его (отсортированные массивы), поэтому все запросы
+ * выполняются без обращения к диску. Массивы заменяются целиком, чтение идет без блокировок
+ */
+public class FriendAdjacencyStore implements FriendDAO, AutoCloseable {
+    private static final int PAIR = 8;
+
+    private final FileChannel channel;
+    private final ConcurrentHashMap<Integer, int[]> added = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, int[]> addedBy = new ConcurrentHashMap<>();
+
+    /**
+     * Открывает файл дружбы и строит списки смежности. Неполная последняя пара отбрасывается
+     * @param path файл
+     * @throws IOException если файл недоступен
+     */
+    public FriendAdjacencyStore(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size() / PAIR * PAIR;
+        if (size < channel.size()) channel.truncate(size);
+        int count = (int) (size / PAIR);
+        long[] forward = new long[count];
+        long[] backward = new long[count];
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0)), 64 * 1024));
+        for (int i = 0; i < count; i++) {
+            int from = in.readInt();
+            int to = in.readInt();
+            forward[i] = pack(from, to);
+            backward[i] = pack(to, from);
+        }
+        group(forward, added);
+        group(backward, addedBy);
+    }
+
+    @Override
+    public int[] getFriendsFor(int id) {
+        return SortedIntArrays.intersect(added.getOrDefault(id, SortedIntArrays.EMPTY),
+                addedBy.getOrDefault(id, SortedIntArrays.EMPTY));
+    }
+
+    @Override
+    public boolean exists(int from, int to) {
+        return Arrays.binarySearch(added.getOrDefault(from, SortedIntArrays.EMPTY), to) >= 0;
+    }
+
+    @Override
+    public boolean addFriendFor(int from, int to) {
+        return addFriendsFor(from, new int[]{to});
+    }
+
+    @Override
+    public boolean addFriendsFor(int from, int[] to) {
+        int[][] pairs = new int[to.length][];
+        for (int i = 0; i < to.length; i++) {
+            pairs[i] = new int[]{from, to[i]};
+        }
+        try {
+            write(Arrays.asList(pairs));
+            return true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public int[] getAddedBy(int id) {
+        return addedBy.getOrDefault(id, SortedIntArrays.EMPTY);
+    }
+
+    /**
+     * Запись пар о дружбе; уже существующие пары пропускаются
+     * @param pairs пары {кто, кого}
+     * @throws SQLException при ошибке ввода-вывода
+     */
+    synchronized void write(List<int[]> pairs) throws SQLException {
+        ByteBuffer buffer = ByteBuffer.allocate(pairs.size() * PAIR);
+        Set<Long> written = new HashSet<>();
+        for (int[] pair : pairs) {
+            if (exists(pair[0], pair[1]) || !written.add(pack(pair[0], pair[1]))) continue;
+            buffer.putInt(pair[0]).putInt(pair[1]);
+        }
+        buffer.flip();
+        if (!buffer.hasRemaining()) return;
+        try {
+            long position = channel.size();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            throw new SQLException("Cannot write friend file", "58030", e);
+        }
+        // списки смежности меняются после записи на диск
+        for (int[] pair : pairs) {
+            added.merge(pair[0], new int[]{pair[1]}, (current, value) -> SortedIntArrays.insert(current, value[0]));
+            addedBy.merge(pair[1], new int[]{pair[0]}, (current, value) -> SortedIntArrays.insert(current, value[0]));
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Сортировка пар и построение массивов для каждого первого элемента пары
+     */
+    private static void group(long[] pairs, ConcurrentHashMap<Integer, int[]> target) {
+        Arrays.sort(pairs);
+        int start = 0;
+        while (start < pairs.length) {
+            int key = (int) (pairs[start] >> 32);
+            int end = start;
+            while (end < pairs.length && (int) (pairs[end] >> 32) == key) end++;
+            int[] values = new int[end - start];
+            for (int i = start; i < end; i++) {
+                values[i - start] = (int) pairs[i];
+            }
+            target.put(key, SortedIntArrays.sortedUnique(values));
+            start = end;
+        }
+    }
+
+    private static long pack(int key, int value) {
+        return (long) key << 32 | value & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,294 @@
+package ua.mk.berkut.maserver.dao.embedded;
+
+import ua.mk.berkut.maserver.dao.FriendDAO;
+import ua.mk.berkut.maserver.dao.UserDAO;
+import ua.mk.berkut.maserver.db.User;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Пользователи в файле, отображенном в память. Запись пользователя имеет фиксированный размер
+ * и находится по смещению (id - 1) * {@link #RECORD_SIZE}, поэтому поиск по id - одно чтение из памяти;
+ * индекс логинов строится в памяти при открытии. Файл отображается частями по {@link #CHUNK_RECORDS} записей.
+ * <p>
+ * Запись: id (int, 0 - пустая запись), дата рождения (long, день от 1970-01-01), затем строки
+ * login, password, username, city, description - длина (short) и байты UTF-8
+ */
+public class MappedUserStore implements UserDAO, AutoCloseable {
+    /**
+     * Размер записи пользователя
+     */
+    public static final int RECORD_SIZE = 1024;
+    private static final int CHUNK_RECORDS = 64 * 1024;
+    private static final long CHUNK_SIZE = (long) CHUNK_RECORDS * RECORD_SIZE;
+
+    private final FileChannel channel;
+    private final FriendDAO friends;
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+    private final BitSet dirty = new BitSet();
+    private final Map<String, Integer> idByLogin = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private int maxId;
+
+    /**
+     * Открывает файл пользователей и строит индекс логинов
+     * @param path файл
+     * @param friends дружба - для входа вместе с друзьями
+     * @throws IOException если файл недоступен
+     */
+    public MappedUserStore(Path path, FriendDAO friends) throws IOException {
+        this.friends = friends;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        for (long offset = 0; offset < size; offset += CHUNK_SIZE) {
+            chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, offset, CHUNK_SIZE));
+        }
+        int records = (int) Math.min((long) chunks.size() * CHUNK_RECORDS, Integer.MAX_VALUE);
+        for (int id = 1; id <= records; id++) {
+            User user = read(id);
+            if (user == null) continue;
+            idByLogin.put(user.getLogin(), id);
+            maxId = id;
+        }
+    }
+
+    @Override
+    public User addUser(User user) {
+        lock.writeLock().lock();
+        try {
+            if (user.getId() == 0) user.setId(maxId + 1);
+            put(user);
+            sync();
+            return user;
+        } catch (SQLException e) {
+            return null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int getMaxId() {
+        lock.readLock().lock();
+        try {
+            return maxId;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int getUsersAfter(int afterId, int limit, Consumer<User> users) {
+        List<User> page = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (int id = Math.max(afterId, 0) + 1; id <= maxId && page.size() < limit; id++) {
+                User user = read(id);
+                if (user != null) page.add(user);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        page.forEach(users);
+        return page.size();
+    }
+
+    @Override
+    public User findUserWithFriends(String login, IntConsumer friends) {
+        User user = findByLogin(login);
+        if (user == null) return null;
+        for (int id : this.friends.getFriendsFor(user.getId())) {
+            friends.accept(id);
+        }
+        return user;
+    }
+
+    @Override
+    public User find(int id) {
+        lock.readLock().lock();
+        try {
+            return id > 0 && id <= maxId ? read(id) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public User findByLogin(String login) {
+        lock.readLock().lock();
+        try {
+            Integer id = idByLogin.get(login);
+            return id == null ? null : read(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean updatePassword(int id, String password) {
+        lock.writeLock().lock();
+        try {
+            User user = id > 0 && id <= maxId ? read(id) : null;
+            if (user == null) return false;
+            user.setPassword(password);
+            put(user);
+            sync();
+            return true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Проверка, что пользователей можно записать: логины и id не заняты другими пользователями
+     * и записи помещаются в {@link #RECORD_SIZE}
+     * @param users новые пользователи с присвоенными id
+     * @throws SQLException с SQLSTATE 23000 при повторе логина или id, 22001 - если запись слишком длинная
+     */
+    void validate(List<User> users) throws SQLException {
+        lock.readLock().lock();
+        try {
+            Map<String, Integer> batch = new HashMap<>();
+            for (User user : users) {
+                if (user.getId() <= 0) throw new SQLException("Bad user id " + user.getId(), "22003");
+                encode(user);
+                Integer owner = idByLogin.get(user.getLogin());
+                if (owner == null) owner = batch.put(user.getLogin(), user.getId());
+                if (owner != null && owner != user.getId()) {
+                    throw new SQLException("Duplicate login " + user.getLogin(), "23000");
+                }
+                User existing = user.getId() <= maxId ? read(user.getId()) : null;
+                if (existing != null && !existing.getLogin().equals(user.getLogin())) {
+                    throw new SQLException("Duplicate id " + user.getId(), "23000");
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Запись пользователей, проверенных {@link #validate(List)}, и сброс измененных частей на диск.
+     * Повторная запись того же пользователя (при повторе журнала) перезаписывает его запись
+     * @param users пользователи
+     * @throws SQLException при ошибке ввода-вывода
+     */
+    void write(List<User> users) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            for (User user : users) {
+                put(user);
+            }
+            sync();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            sync();
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Запись пользователя в его слот; вызывается под блокировкой записи
+     */
+    private void put(User user) throws SQLException {
+        Integer owner = idByLogin.get(user.getLogin());
+        if (owner != null && owner != user.getId()) throw new SQLException("Duplicate login " + user.getLogin(), "23000");
+        ByteBuffer record = encode(user);
+        long offset = (long) (user.getId() - 1) * RECORD_SIZE;
+        int chunk = (int) (offset / CHUNK_SIZE);
+        try {
+            while (chunks.size() <= chunk) {
+                chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, chunks.size() * CHUNK_SIZE, CHUNK_SIZE));
+            }
+        } catch (IOException e) {
+            throw new SQLException("Cannot extend user file", "58030", e);
+        }
+        ByteBuffer target = chunks.get(chunk).duplicate();
+        target.position((int) (offset % CHUNK_SIZE));
+        target.put(record);
+        dirty.set(chunk);
+        idByLogin.put(user.getLogin(), user.getId());
+        maxId = Math.max(maxId, user.getId());
+    }
+
+    private void sync() {
+        for (int chunk = dirty.nextSetBit(0); chunk >= 0; chunk = dirty.nextSetBit(chunk + 1)) {
+            chunks.get(chunk).force();
+        }
+        dirty.clear();
+    }
+
+    /**
+     * Чтение пользователя из его слота; вызывается под блокировкой
+     * @return пользователя или null, если слот пуст
+     */
+    private User read(int id) {
+        long offset = (long) (id - 1) * RECORD_SIZE;
+        ByteBuffer record = chunks.get((int) (offset / CHUNK_SIZE)).duplicate();
+        record.position((int) (offset % CHUNK_SIZE));
+        if (record.getInt() == 0) return null;
+        LocalDate birthday = LocalDate.ofEpochDay(record.getLong());
+        String login = getString(record);
+        String password = getString(record);
+        String username = getString(record);
+        String city = getString(record);
+        String description = getString(record);
+        return new User(id, login, password, username, birthday, city, description);
+    }
+
+    private static ByteBuffer encode(User user) throws SQLException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putInt(user.getId()).putLong(user.getBirthday().toEpochDay());
+        try {
+            putString(record, user.getLogin());
+            putString(record, user.getPassword());
+            putString(record, user.getUsername());
+            putString(record, user.getCity());
+            putString(record, user.getDescription());
+        } catch (RuntimeException e) {
+            throw new SQLException("User record too long: " + user.getLogin(), "22001");
+        }
+        return record.flip();
+    }
+
+    private static void putString(ByteBuffer record, String value) {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        record.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getShort()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
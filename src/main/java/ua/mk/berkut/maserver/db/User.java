@@ -1,8 +1,6 @@
 package ua.mk.berkut.maserver.db;
 
 import java.time.LocalDate;
-import java.util.HashSet;
-import java.util.Set;
 
 public class User {
     private int id;
@@ -13,8 +11,6 @@ public class User {
     private String city;
     private String description;
 
-    private Set<Integer> friendsIds;
-
     public User(String login, String password, String username, LocalDate birthday, String city, String description) {
         this(0,login,password,username,birthday,city,description);
     }
@@ -27,7 +23,6 @@ public class User {
         this.birthday = birthday;
         this.city = city;
         this.description = description;
-        friendsIds = new HashSet<>();
     }
 
     public int getId() {
@@ -86,20 +81,11 @@ public class User {
         this.description = description;
     }
 
-    public Set<Integer> getFriendsIds() {
-        return friendsIds;
-    }
-
-    public void setFriendsIds(Set<Integer> friendsIds) {
-        this.friendsIds = friendsIds;
-    }
-
     @Override
     public String toString() {
         return "User{" +
                 "id=" + id +
                 ", login='" + login + '\'' +
-                ", password='" + password + '\'' +
                 ", username='" + username + '\'' +
                 ", birthday=" + birthday +
                 ", city='" + city + '\'' +
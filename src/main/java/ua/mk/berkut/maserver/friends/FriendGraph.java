@@ -0,0 +1,128 @@
+package ua.mk.berkut.maserver.friends;
+
+import ua.mk.berkut.maserver.dao.FriendDAO;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Общий граф взаимной дружбы. Для каждого загруженного пользователя хранится
+ * отсортированный массив int с id его друзей, вместо множества Integer в каждом {@link ua.mk.berkut.maserver.db.User}.
+ * Массивы не изменяются после публикации: добавление друга заменяет массив новым.
+ * Пользователь загружается из БД при первом обращении, дальше граф обновляется
+ * при каждой успешной записи дружбы; после выхода пользователя его друзья удаляются из графа
+ * ({@link #evict(int)}), поэтому граф не больше числа пользователей online
+ */
+public class FriendGraph {
+    private final FriendDAO friendDAO;
+    private final ConcurrentHashMap<Integer, int[]> friends = new ConcurrentHashMap<>();
+    /**
+     * Счетчик изменений графа; позволяет отбросить данные, прочитанные из БД до изменения
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * Создает пустой граф
+     * @param friendDAO объект доступа к таблице friend для загрузки пользователей
+     */
+    public FriendGraph(FriendDAO friendDAO) {
+        this.friendDAO = friendDAO;
+    }
+
+    /**
+     * Друзья пользователя; при первом обращении загружаются из БД.
+     * Запрос выполняется вне блокировок карты; если во время запроса граф изменился
+     * ({@link #addFriendship(int, int)}), прочитанное не сохраняется и запрос повторяется один раз
+     * @param id id пользователя
+     * @return отсортированный массив id друзей; массив нельзя изменять
+     */
+    public int[] friendsOf(int id) {
+        int[] loaded = null;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            int[] current = friends.get(id);
+            if (current != null) return current;
+            long readVersion = version.get();
+            loaded = SortedIntArrays.sortedUnique(friendDAO.getFriendsFor(id));
+            current = store(id, loaded, readVersion);
+            if (current != null) return current;
+        }
+        // граф часто меняется - прочитанное возвращается без сохранения
+        return loaded;
+    }
+
+    /**
+     * Проверка взаимной дружбы
+     * @param id1 id первого пользователя
+     * @param id2 id второго пользователя
+     * @return true, если пользователи - друзья
+     */
+    public boolean areFriends(int id1, int id2) {
+        return Arrays.binarySearch(friendsOf(id1), id2) >= 0;
+    }
+
+    /**
+     * Общие друзья двух пользователей - слияние отсортированных массивов
+     * @param id1 id первого пользователя
+     * @param id2 id второго пользователя
+     * @return отсортированный массив id общих друзей
+     */
+    public int[] commonFriends(int id1, int id2) {
+        return SortedIntArrays.intersect(friendsOf(id1), friendsOf(id2));
+    }
+
+    /**
+     * Текущая версия графа. Запоминается перед чтением друзей из БД в обход графа,
+     * чтобы затем передать прочитанное в {@link #offer(int, int[], long)}
+     * @return номер версии
+     */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * Добавление друзей пользователя, прочитанных из БД вместе с его профилем.
+     * Если после чтения граф изменился, данные отбрасываются и пользователь будет загружен заново
+     * @param id id пользователя
+     * @param loaded id друзей в любом порядке
+     * @param readVersion версия графа до чтения из БД
+     */
+    public void offer(int id, int[] loaded, long readVersion) {
+        store(id, SortedIntArrays.sortedUnique(loaded), readVersion);
+    }
+
+    private int[] store(int id, int[] sorted, long readVersion) {
+        return friends.compute(id, (key, current) -> {
+            if (current != null) return current;
+            return version.get() == readVersion ? sorted : null;
+        });
+    }
+
+    /**
+     * Удаление друзей пользователя из графа после его выхода; при следующем входе они загружаются заново
+     * @param id id пользователя
+     */
+    public void evict(int id) {
+        friends.remove(id);
+    }
+
+    /**
+     * Учет новой взаимной дружбы после ее записи в БД.
+     * Незагруженные пользователи не затрагиваются - они получат дружбу при загрузке
+     * @param id1 id первого пользователя
+     * @param id2 id второго пользователя
+     */
+    public void addFriendship(int id1, int id2) {
+        version.incrementAndGet();
+        friends.computeIfPresent(id1, (key, current) -> SortedIntArrays.insert(current, id2));
+        friends.computeIfPresent(id2, (key, current) -> SortedIntArrays.insert(current, id1));
+    }
+
+    /**
+     * Количество загруженных пользователей
+     * @return число пользователей в графе
+     */
+    public int size() {
+        return friends.size();
+    }
+}
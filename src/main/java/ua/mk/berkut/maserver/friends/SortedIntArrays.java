@@ -0,0 +1,103 @@
+package ua.mk.berkut.maserver.friends;
+
+import java.util.Arrays;
+
+/**
+ * Операции над отсортированными массивами int без повторов.
+ * Массивы не изменяются: каждая операция возвращает новый массив или исходный, если менять нечего
+ */
+public final class SortedIntArrays {
+    public static final int[] EMPTY = new int[0];
+
+    private SortedIntArrays() {
+    }
+
+    /**
+     * Вставка значения
+     * @param sorted отсортированный массив без повторов
+     * @param value новое значение
+     * @return новый массив или тот же, если значение уже есть
+     */
+    public static int[] insert(int[] sorted, int value) {
+        int pos = Arrays.binarySearch(sorted, value);
+        if (pos >= 0) return sorted;
+        pos = -pos - 1;
+        int[] result = new int[sorted.length + 1];
+        System.arraycopy(sorted, 0, result, 0, pos);
+        result[pos] = value;
+        System.arraycopy(sorted, pos, result, pos + 1, sorted.length - pos);
+        return result;
+    }
+
+    /**
+     * Удаление значения
+     * @param sorted отсортированный массив без повторов
+     * @param value удаляемое значение
+     * @return новый массив или тот же, если значения нет
+     */
+    public static int[] remove(int[] sorted, int value) {
+        int pos = Arrays.binarySearch(sorted, value);
+        if (pos < 0) return sorted;
+        int[] result = new int[sorted.length - 1];
+        System.arraycopy(sorted, 0, result, 0, pos);
+        System.arraycopy(sorted, pos + 1, result, pos, sorted.length - pos - 1);
+        return result;
+    }
+
+    /**
+     * Пересечение слиянием
+     * @param a отсортированный массив без повторов
+     * @param b отсортированный массив без повторов
+     * @return значения, которые есть в обоих массивах
+     */
+    public static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Объединение слиянием
+     * @param a отсортированный массив без повторов
+     * @param b отсортированный массив без повторов
+     * @return значения, которые есть хотя бы в одном из массивов
+     */
+    public static int[] union(int[] a, int[] b) {
+        int[] result = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || i < a.length && a[i] < b[j]) result[n++] = a[i++];
+            else if (i == a.length || b[j] < a[i]) result[n++] = b[j++];
+            else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Сортировка с удалением повторов
+     * @param values массив значений в любом порядке (изменяется)
+     * @return отсортированный массив без повторов
+     */
+    public static int[] sortedUnique(int[] values) {
+        if (values.length == 0) return EMPTY;
+        Arrays.sort(values);
+        int n = 1;
+        for (int i = 1; i < values.length; i++) {
+            if (values[i] != values[n - 1]) values[n++] = values[i];
+        }
+        return n == values.length ? values : Arrays.copyOf(values, n);
+    }
+}
@@ -0,0 +1,89 @@
+package ua.mk.berkut.maserver.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма длительностей с фиксированными границами диапазонов, как histogram в Prometheus.
+ * Запись без блокировок: счетчик диапазона и сумма - {@link LongAdder}, поэтому одновременная
+ * запись из многих потоков не конкурирует за одну ячейку памяти
+ */
+public final class Histogram {
+    /**
+     * Верхние границы диапазонов в секундах: от 50 мкс (разбор и пересылка сообщения)
+     * до 10 с (вход при перегрузке)
+     */
+    static final double[] BOUNDS = {
+            0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01,
+            0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final long[] BOUND_NANOS = new long[BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUND_NANOS[i] = Math.round(BOUNDS[i] * 1e9);
+        }
+    }
+
+    /**
+     * Счетчики диапазонов; последний - значения больше всех границ
+     */
+    private final LongAdder[] counts = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Учет одного значения
+     * @param nanos длительность в наносекундах
+     */
+    public void record(long nanos) {
+        // короткие значения встречаются чаще всего, поэтому поиск линейный от начала
+        int i = 0;
+        while (i < BOUND_NANOS.length && nanos > BOUND_NANOS[i]) i++;
+        counts[i].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Учет длительности от заданного момента до текущего
+     * @param startNanos начало, полученное из {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Количество значений
+     * @return счетчик
+     */
+    public long getCount() {
+        long count = 0;
+        for (LongAdder adder : counts) {
+            count += adder.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Счетчики по диапазонам (не накопленные)
+     * @return массив длиной на 1 больше числа границ
+     */
+    long[] counts() {
+        long[] result = new long[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            result[i] = counts[i].sum();
+        }
+        return result;
+    }
+
+    /**
+     * Сумма значений
+     * @return сумма в секундах
+     */
+    double sumSeconds() {
+        return sumNanos.sum() / 1e9;
+    }
+}
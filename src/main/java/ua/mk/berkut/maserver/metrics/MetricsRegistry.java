@@ -0,0 +1,171 @@
+package ua.mk.berkut.maserver.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Набор метрик сервера и их вывод в текстовом формате Prometheus.
+ * Гистограммы заполняются на горячих путях, а счетчики и значения компонентов,
+ * у которых уже есть своя статистика (пул, справочник, очереди), читаются только при запросе метрик
+ */
+public class MetricsRegistry {
+
+    private static final String COUNTER = "counter";
+    private static final String GAUGE = "gauge";
+    private static final String HISTOGRAM = "histogram";
+
+    /**
+     * Метрика с одним именем и разными значениями метки
+     */
+    private static final class Family {
+        final String help;
+        final String type;
+        final List<Sample> samples = new ArrayList<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Источник значения: {@link LongSupplier}, {@link DoubleSupplier} или {@link Histogram}
+     */
+    private static final class Sample {
+        final String labels;
+        final Object source;
+
+        Sample(String labels, Object source) {
+            this.labels = labels;
+            this.source = source;
+        }
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    /**
+     * Новая гистограмма длительностей
+     * @param name имя метрики, например {@code chat_route_seconds}
+     * @param help описание
+     * @return гистограмму для записи
+     */
+    public Histogram histogram(String name, String help) {
+        return histogram(name, help, null, null);
+    }
+
+    /**
+     * Новая гистограмма длительностей с меткой
+     * @param name имя метрики
+     * @param help описание
+     * @param label имя метки, например {@code command}
+     * @param value значение метки
+     * @return гистограмму для записи
+     */
+    public Histogram histogram(String name, String help, String label, String value) {
+        Histogram histogram = new Histogram();
+        add(name, help, HISTOGRAM, label, value, histogram);
+        return histogram;
+    }
+
+    /**
+     * Счетчик, значение которого только растет
+     * @param name имя метрики, оканчивается на {@code _total}
+     * @param help описание
+     * @param value источник значения
+     */
+    public void counter(String name, String help, LongSupplier value) {
+        counter(name, help, null, null, value);
+    }
+
+    /**
+     * Счетчик с меткой
+     * @param name имя метрики
+     * @param help описание
+     * @param label имя метки
+     * @param labelValue значение метки
+     * @param value источник значения
+     */
+    public void counter(String name, String help, String label, String labelValue, LongSupplier value) {
+        add(name, help, COUNTER, label, labelValue, value);
+    }
+
+    /**
+     * Текущее значение (размер, средняя длительность)
+     * @param name имя метрики
+     * @param help описание
+     * @param value источник значения
+     */
+    public void gauge(String name, String help, DoubleSupplier value) {
+        gauge(name, help, null, null, value);
+    }
+
+    /**
+     * Текущее значение с меткой
+     * @param name имя метрики
+     * @param help описание
+     * @param label имя метки
+     * @param labelValue значение метки
+     * @param value источник значения
+     */
+    public void gauge(String name, String help, String label, String labelValue, DoubleSupplier value) {
+        add(name, help, GAUGE, label, labelValue, value);
+    }
+
+    private synchronized void add(String name, String help, String type, String label, String value, Object source) {
+        Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+        if (!family.type.equals(type)) throw new IllegalArgumentException(name + " is a " + family.type);
+        family.samples.add(new Sample(label == null ? "" : label + "=\"" + escape(value) + '"', source));
+    }
+
+    /**
+     * Вывод всех метрик в текстовом формате Prometheus (версия 0.0.4)
+     * @param out получатель текста
+     */
+    public synchronized void write(StringBuilder out) {
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Sample sample : family.samples) {
+                if (sample.source instanceof Histogram) {
+                    writeHistogram(out, name, sample.labels, (Histogram) sample.source);
+                } else {
+                    out.append(name);
+                    if (!sample.labels.isEmpty()) out.append('{').append(sample.labels).append('}');
+                    out.append(' ');
+                    if (sample.source instanceof LongSupplier) {
+                        out.append(((LongSupplier) sample.source).getAsLong());
+                    } else {
+                        out.append(((DoubleSupplier) sample.source).getAsDouble());
+                    }
+                    out.append('\n');
+                }
+            }
+        }
+    }
+
+    private static void writeHistogram(StringBuilder out, String name, String labels, Histogram histogram) {
+        String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+        String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+        long[] counts = histogram.counts();
+        long cumulative = 0;
+        for (int i = 0; i < Histogram.BOUNDS.length; i++) {
+            cumulative += counts[i];
+            out.append(name).append("_bucket").append(prefix).append("le=\"").append(Histogram.BOUNDS[i]).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        cumulative += counts[Histogram.BOUNDS.length];
+        out.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append(name).append("_sum").append(suffix).append(' ').append(histogram.sumSeconds()).append('\n');
+        out.append(name).append("_count").append(suffix).append(' ').append(cumulative).append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,64 @@
+package ua.mk.berkut.maserver.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * HTTP-сервер метрик: {@code GET /metrics} отдает {@link MetricsRegistry} в текстовом формате Prometheus.
+ * Обслуживается одним фоновым потоком и не влияет на обработку клиентов чата
+ */
+public class MetricsServer implements AutoCloseable {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+    private final MetricsRegistry registry;
+
+    /**
+     * Запуск сервера метрик
+     * @param address адрес, например 127.0.0.1 - только локальные запросы
+     * @param port порт
+     * @param registry метрики
+     * @throws IOException если порт занят
+     */
+    public MetricsServer(String address, int port, MetricsRegistry registry) throws IOException {
+        this.registry = registry;
+        server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext("/metrics", this::handle);
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder text = new StringBuilder(16 * 1024);
+            registry.write(text);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,199 @@
+package ua.mk.berkut.maserver.metrics;
+
+import ua.mk.berkut.maserver.dao.FriendDAO;
+import ua.mk.berkut.maserver.dao.Storage;
+import ua.mk.berkut.maserver.dao.UserDAO;
+import ua.mk.berkut.maserver.db.User;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Хранилище, которое замеряет время каждого запроса DAO. Каждый метод DAO - один запрос,
+ * поэтому гистограммы {@code chat_dao_query_seconds} различаются меткой statement по имени метода.
+ * Подходит для любой реализации {@link Storage}
+ */
+public class TimedStorage implements Storage {
+    private static final String NAME = "chat_dao_query_seconds";
+    private static final String HELP = "Storage query duration by statement";
+
+    private final Storage storage;
+    private final UserDAO users;
+    private final FriendDAO friends;
+    private final Histogram write;
+
+    /**
+     * Создает хранилище с замером времени
+     * @param storage хранилище, запросы которого замеряются
+     * @param registry метрики
+     */
+    public TimedStorage(Storage storage, MetricsRegistry registry) {
+        this.storage = storage;
+        this.users = new TimedUserDAO(storage.users(), registry);
+        this.friends = new TimedFriendDAO(storage.friends(), registry);
+        this.write = registry.histogram(NAME, HELP, "statement", "write");
+    }
+
+    @Override
+    public UserDAO users() {
+        return users;
+    }
+
+    @Override
+    public FriendDAO friends() {
+        return friends;
+    }
+
+    @Override
+    public void write(List<User> users, List<int[]> friends) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            storage.write(users, friends);
+        } finally {
+            write.recordSince(start);
+        }
+    }
+
+    @Override
+    public void close() {
+        storage.close();
+    }
+
+    private static final class TimedUserDAO implements UserDAO {
+        private final UserDAO dao;
+        private final Histogram addUser;
+        private final Histogram getMaxId;
+        private final Histogram getUsersAfter;
+        private final Histogram findUserWithFriends;
+        private final Histogram find;
+        private final Histogram findByLogin;
+        private final Histogram updatePassword;
+
+        TimedUserDAO(UserDAO dao, MetricsRegistry registry) {
+            this.dao = dao;
+            addUser = registry.histogram(NAME, HELP, "statement", "addUser");
+            getMaxId = registry.histogram(NAME, HELP, "statement", "getMaxId");
+            getUsersAfter = registry.histogram(NAME, HELP, "statement", "getUsersAfter");
+            findUserWithFriends = registry.histogram(NAME, HELP, "statement", "findUserWithFriends");
+            find = registry.histogram(NAME, HELP, "statement", "find");
+            findByLogin = registry.histogram(NAME, HELP, "statement", "findByLogin");
+            updatePassword = registry.histogram(NAME, HELP, "statement", "updatePassword");
+        }
+
+        @Override
+        public User addUser(User user) {
+            long start = System.nanoTime();
+            User result = dao.addUser(user);
+            addUser.recordSince(start);
+            return result;
+        }
+
+        @Override
+        public int getMaxId() {
+            long start = System.nanoTime();
+            int result = dao.getMaxId();
+            getMaxId.recordSince(start);
+            return result;
+        }
+
+        @Override
+        public int getUsersAfter(int afterId, int limit, Consumer<User> users) throws SQLException {
+            long start = System.nanoTime();
+            int result = dao.getUsersAfter(afterId, limit, users);
+            getUsersAfter.recordSince(start);
+            return result;
+        }
+
+        @Override
+        public User findUserWithFriends(String login, IntConsumer friends) {
+            long start = System.nanoTime();
+            User result = dao.findUserWithFriends(login, friends);
+            findUserWithFriends.recordSince(start);
+            return result;
+        }
+
+        @Override
+        public User find(int id) {
+            long start = System.nanoTime();
+            User result = dao.find(id);
+            find.recordSince(start);
+            return result;
+        }
+
+        @Override
+        public User findByLogin(String login) {
+            long start = System.nanoTime();
+            User result = dao.findByLogin(login);
+            findByLogin.recordSince(start);
+            return result;
+        }
+
+        @Override
+        public boolean updatePassword(int id, String password) {
+            long start = System.nanoTime();
+            boolean result = dao.updatePassword(id, password);
+            updatePassword.recordSince(start);
+            return result;
+        }
+    }
+
+    private static final class TimedFriendDAO implements FriendDAO {
+        private final FriendDAO dao;
+        private final Histogram getFriendsFor;
+        private final Histogram exists;
+        private final Histogram addFriendFor;
+        private final Histogram addFriendsFor;
+        private final Histogram getAddedBy;
+
+        TimedFriendDAO(FriendDAO dao, MetricsRegistry registry) {
+            this.dao = dao;
+            getFriendsFor = registry.histogram(NAME, HELP, "statement", "getFriendsFor");
+            exists = registry.histogram(NAME, HELP, "statement", "exists");
+            addFriendFor = registry.histogram(NAME, HELP, "statement", "addFriendFor");
+            addFriendsFor = registry.histogram(NAME, HELP, "statement", "addFriendsFor");
+            getAddedBy = registry.histogram(NAME, HELP, "statement", "getAddedBy");
+        }
+
+        @Override
+        public int[] getFriendsFor(int id) {
+            long start = System.nanoTime();
+            int[] result = dao.getFriendsFor(id);
+            getFriendsFor.recordSince(start);
+            return result;
+        }
+
+        @Override
+        public boolean exists(int from, int to) {
+            long start = System.nanoTime();
+            boolean result = dao.exists(from, to);
+            exists.recordSince(start);
+            return result;
+        }
+
+        @Override
+        public boolean addFriendFor(int from, int to) {
+            long start = System.nanoTime();
+            boolean result = dao.addFriendFor(from, to);
+            addFriendFor.recordSince(start);
+            return result;
+        }
+
+        @Override
+        public boolean addFriendsFor(int from, int[] to) {
+            long start = System.nanoTime();
+            boolean result = dao.addFriendsFor(from, to);
+            addFriendsFor.recordSince(start);
+            return result;
+        }
+
+        @Override
+        public int[] getAddedBy(int id) {
+            long start = System.nanoTime();
+            int[] result = dao.getAddedBy(id);
+            getAddedBy.recordSince(start);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,781 @@
+package ua.mk.berkut.maserver.offline;
+
+import ua.mk.berkut.maserver.clients.Client;
+import ua.mk.berkut.maserver.online.OnlineRegistry;
+import ua.mk.berkut.maserver.protocol.ByteSlice;
+import ua.mk.berkut.maserver.protocol.ChatMessageView;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Хранилище сообщений для пользователей, которые не online. Сообщения дописываются в журнал -
+ * файлы-сегменты фиксированного размера в каталоге хранилища. Запись выполняет один поток:
+ * он забирает все накопленные сообщения и пишет их одной групповой записью с одним fsync
+ * (group commit), поэтому отправители не ждут диска и всплески нагрузки не снижают пропускную способность.
+ * <p>
+ * Получатель проверяется (а по логину - находится) потоком записи через {@link Receivers}, поэтому
+ * сообщения сохраняются и для пользователей, которых нет в справочнике в памяти, а отправитель не ждет БД.
+ * <p>
+ * Для каждого получателя в памяти хранятся только позиции его сообщений в журнале.
+ * При входе пользователя сообщения читаются из журнала блоками и ставятся в очередь его подключения
+ * по мере ее освобождения, частями по {@link #REPLAY_CHUNK} сообщений с отметкой о доставке после
+ * каждой части, поэтому большой журнал не загружается в память целиком.
+ * Доставленными считаются сообщения, которые подключение записало в сокет: если клиент отключился
+ * во время доставки, сообщения из его очереди будут доставлены при следующем входе (возможно, повторно).
+ * Доставленные сообщения отмечаются в журнале записью-отметкой; сегмент удаляется, когда
+ * он самый старый и в нем не осталось недоставленных сообщений.
+ * <p>
+ * Запись журнала: длина (int, без первых 8 байт), CRC32 (int), тип (byte), id получателя (int), затем
+ * для сообщения - длина отправителя (short), отправитель и текст в UTF-8,
+ * для отметки о доставке - позиция последнего доставленного сообщения (long).
+ * Позиция - номер сегмента в старших 32 битах и смещение в младших
+ */
+public class OfflineStore implements AutoCloseable {
+    private static final byte MESSAGE = 1;
+    private static final byte CONSUMED = 2;
+    private static final int HEADER = 8;
+    private static final int MAX_BATCH = 1024;
+    /**
+     * Размер блока чтения при доставке
+     */
+    private static final int REPLAY_BLOCK = 64 * 1024;
+    /**
+     * Сколько кадров может ждать в очереди подключения, пока доставка продолжается
+     */
+    private static final int REPLAY_WINDOW = 256;
+    /**
+     * Сколько сообщений доставляется за один проход (часть очереди получателя)
+     */
+    private static final int REPLAY_CHUNK = 4096;
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;
+    private final long segmentSize;
+    private final boolean fsync;
+    private final OnlineRegistry registry;
+    private final Receivers receivers;
+    private final ExecutorService replayers;
+    private final LinkedBlockingQueue<Object> commands = new LinkedBlockingQueue<>();
+    private final Thread writer;
+
+    /**
+     * Сегменты по номерам. Изменяется только потоком записи, читается и при доставке
+     */
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    // состояние потока записи
+    private Segment active;
+    private final Map<Integer, Positions> index = new HashMap<>();
+    private final Set<Integer> replaying = new HashSet<>();
+    private final Map<Integer, Client> pendingReplays = new HashMap<>();
+    private volatile boolean closed;
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder committed = new LongAdder();
+    private final AtomicLong pending = new AtomicLong();
+
+    /**
+     * Поиск получателей сообщений. Вызывается потоком записи и может обращаться к БД
+     */
+    public interface Receivers {
+        /**
+         * Поиск пользователя по логину
+         * @param login логин получателя
+         * @return id пользователя или 0, если такого пользователя нет
+         */
+        int idOf(String login);
+
+        /**
+         * Проверка, что пользователь существует
+         * @param id id получателя
+         * @return true, если пользователь с таким id есть
+         */
+        boolean exists(int id);
+    }
+
+    /**
+     * Открывает хранилище: читает существующие сегменты, восстанавливает индекс
+     * (поврежденный хвост последнего сегмента отбрасывается) и запускает поток записи
+     * @param directory каталог сегментов
+     * @param segmentSize размер сегмента, после которого начинается новый
+     * @param fsync сбрасывать ли каждую групповую запись на диск
+     * @param replayThreads сколько потоков доставляют сообщения вошедшим пользователям
+     * @param registry реестр подключений online
+     * @param receivers поиск получателей
+     * @throws IOException если каталог или сегменты недоступны
+     */
+    public OfflineStore(Path directory, long segmentSize, boolean fsync, int replayThreads,
+                        OnlineRegistry registry, Receivers receivers) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+        this.registry = registry;
+        this.receivers = receivers;
+        Files.createDirectories(directory);
+        recover();
+        this.replayers = Executors.newFixedThreadPool(replayThreads, r -> {
+            Thread thread = new Thread(r, "offline-replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.writer = new Thread(this::writeLoop, "offline-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Сохранение сообщения для пользователя, который не online. Не ждет записи на диск;
+     * сообщение пользователю, которого нет, отбрасывается потоком записи
+     * @param receiverId id получателя
+     * @param sender логин отправителя в UTF-8
+     * @param text текст сообщения в UTF-8
+     */
+    public void append(int receiverId, ByteSlice sender, ByteSlice text) {
+        append(receiverId, null, sender, text);
+    }
+
+    /**
+     * Сохранение сообщения для пользователя, который не online, по логину получателя
+     * @param receiver логин получателя
+     * @param sender логин отправителя в UTF-8
+     * @param text текст сообщения в UTF-8
+     */
+    public void append(String receiver, ByteSlice sender, ByteSlice text) {
+        append(0, receiver, sender, text);
+    }
+
+    private void append(int receiverId, String receiver, ByteSlice sender, ByteSlice text) {
+        if (closed) return;
+        int bodyLength = 1 + 4 + 2 + sender.length() + text.length();
+        ByteBuffer record = ByteBuffer.allocate(HEADER + bodyLength);
+        record.putInt(bodyLength).putInt(0);
+        // id получателя и контрольная сумма записываются потоком записи после проверки получателя
+        record.put(MESSAGE).putInt(0).putShort((short) sender.length());
+        sender.copyTo(record);
+        text.copyTo(record);
+        appended.increment();
+        commands.add(new Append(receiverId, receiver, record));
+    }
+
+    /**
+     * Доставка накопленных сообщений вошедшему пользователю. Вызывается после того, как подключение
+     * добавлено в реестр online: все сообщения, сохраненные до этого, будут доставлены
+     * @param userId id пользователя
+     * @param client подключение пользователя
+     */
+    public void replay(int userId, Client client) {
+        if (!closed) commands.add(new Replay(userId, client));
+    }
+
+    /**
+     * Количество сохраненных сообщений
+     * @return счетчик
+     */
+    public long getAppendedCount() {
+        return appended.sum();
+    }
+
+    /**
+     * Количество сообщений, которые не удалось записать в журнал
+     * @return счетчик
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * Количество сообщений, доставленных при входе получателей
+     * @return счетчик
+     */
+    public long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    /**
+     * Среднее число сообщений в одной групповой записи
+     * @return размер группы
+     */
+    public double getAverageCommitSize() {
+        long count = commits.sum();
+        return count == 0 ? 0 : (double) committed.sum() / count;
+    }
+
+    /**
+     * Количество недоставленных сообщений
+     * @return число сообщений в индексе
+     */
+    public long getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Количество файлов-сегментов журнала
+     * @return число сегментов
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Завершение работы: уже принятые сообщения записываются, сегменты закрываются
+     */
+    @Override
+    public void close() {
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        replayers.shutdownNow();
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+    }
+
+    // --- поток записи ---
+
+    private void writeLoop() {
+        List<Object> batch = new ArrayList<>(MAX_BATCH);
+        List<Append> appends = new ArrayList<>(MAX_BATCH);
+        for (; ; ) {
+            try {
+                batch.add(commands.take());
+            } catch (InterruptedException e) {
+                if (!closed) continue;
+            }
+            commands.drainTo(batch, MAX_BATCH - batch.size());
+            for (Object command : batch) {
+                if (command instanceof Append) {
+                    appends.add((Append) command);
+                    continue;
+                }
+                // сообщения, принятые раньше команды, должны попасть в индекс до ее выполнения
+                commit(appends);
+                if (command instanceof Replay) {
+                    startReplay((Replay) command);
+                } else {
+                    consumed((Consumed) command);
+                }
+            }
+            commit(appends);
+            batch.clear();
+            if (closed && commands.isEmpty()) return;
+        }
+    }
+
+    /**
+     * Групповая запись сообщений: одна запись в файл, один fsync, затем обновление индекса
+     * @param appends накопленные сообщения; список очищается
+     */
+    private void commit(List<Append> appends) {
+        resolve(appends);
+        if (appends.isEmpty()) return;
+        try {
+            long bytes = 0;
+            for (Append append : appends) {
+                bytes += append.record.remaining();
+            }
+            if (active.size > 0 && active.size + bytes > segmentSize) rotate();
+            ByteBuffer[] buffers = new ByteBuffer[appends.size()];
+            long[] positions = new long[appends.size()];
+            long offset = active.size;
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = appends.get(i).record;
+                positions[i] = position(active.id, offset);
+                offset += buffers[i].remaining();
+            }
+            active.write(buffers, fsync);
+            for (int i = 0; i < buffers.length; i++) {
+                index.computeIfAbsent(appends.get(i).receiverId, id -> new Positions()).add(positions[i]);
+            }
+            active.live += buffers.length;
+            pending.addAndGet(buffers.length);
+            commits.increment();
+            committed.add(buffers.length);
+        } catch (IOException e) {
+            e.printStackTrace();
+            // сообщения потеряны: они не сохранены и не попадут в индекс
+            appended.add(-appends.size());
+            failed.add(appends.size());
+        } finally {
+            appends.clear();
+        }
+    }
+
+    /**
+     * Проверка получателей накопленных сообщений; сообщения несуществующим пользователям отбрасываются.
+     * Записи получают id получателя и контрольную сумму
+     * @param appends накопленные сообщения
+     */
+    private void resolve(List<Append> appends) {
+        Map<String, Integer> ids = new HashMap<>();
+        Map<Integer, Boolean> known = new HashMap<>();
+        int unknown = 0;
+        for (Iterator<Append> it = appends.iterator(); it.hasNext(); ) {
+            Append append = it.next();
+            try {
+                if (append.receiver != null) {
+                    append.receiverId = ids.computeIfAbsent(append.receiver, receivers::idOf);
+                } else if (!known.computeIfAbsent(append.receiverId, receivers::exists)) {
+                    append.receiverId = 0;
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                append.receiverId = 0;
+            }
+            if (append.receiverId == 0) {
+                unknown++;
+                it.remove();
+                continue;
+            }
+            append.record.putInt(HEADER + 1, append.receiverId);
+            seal(append.record);
+        }
+        appended.add(-unknown);
+    }
+
+    private void rotate() throws IOException {
+        active.closeForWrite();
+        active = Segment.create(directory, active.id + 1);
+        segments.put(active.id, active);
+    }
+
+    private void startReplay(Replay replay) {
+        if (replaying.contains(replay.userId)) {
+            // предыдущая доставка еще идет - повторить после нее для нового подключения
+            pendingReplays.put(replay.userId, replay.client);
+            return;
+        }
+        Positions positions = index.get(replay.userId);
+        if (positions == null || positions.size == 0) return;
+        long[] snapshot = positions.toArray(REPLAY_CHUNK);
+        replaying.add(replay.userId);
+        replayers.execute(() -> stream(replay.userId, replay.client, snapshot));
+    }
+
+    /**
+     * Учет доставленных сообщений: удаление из индекса, запись отметки и удаление старых сегментов
+     * @param consumed отметка о доставке
+     */
+    private void consumed(Consumed consumed) {
+        replaying.remove(consumed.userId);
+        Positions positions = index.get(consumed.userId);
+        int removed = positions == null ? 0 : positions.removeUpTo(consumed.upTo, segments);
+        if (removed > 0) {
+            if (positions.size == 0) index.remove(consumed.userId);
+            pending.addAndGet(-removed);
+            writeConsumed(consumed);
+            deleteDeadSegments();
+        }
+        Client next = pendingReplays.remove(consumed.userId);
+        // после доставленной части - следующая часть тому же подключению
+        if (next == null) next = consumed.next;
+        if (next != null) startReplay(new Replay(consumed.userId, next));
+    }
+
+    private void writeConsumed(Consumed consumed) {
+        int bodyLength = 1 + 4 + 8;
+        ByteBuffer record = ByteBuffer.allocate(HEADER + bodyLength);
+        record.putInt(bodyLength).putInt(0);
+        record.put(CONSUMED).putInt(consumed.userId).putLong(consumed.upTo);
+        seal(record);
+        try {
+            if (active.size > 0 && active.size + record.remaining() > segmentSize) rotate();
+            // отметку достаточно сбросить на диск вместе со следующей группой сообщений
+            active.write(new ByteBuffer[]{record}, false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Удаление самых старых сегментов без недоставленных сообщений. Сегменты удаляются только
+     * по порядку, чтобы отметки о доставке не пропали раньше отмеченных сообщений
+     */
+    private void deleteDeadSegments() {
+        for (Segment segment : segments.values()) {
+            if (segment == active || segment.live > 0) return;
+            segments.remove(segment.id);
+            segment.close();
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // --- доставка ---
+
+    /**
+     * Чтение сообщений пользователя из журнала блоками и постановка в очередь подключения.
+     * Если очередь заполнена, доставка ждет ее освобождения; если пользователь отключился, доставка
+     * прекращается, а недоставленные сообщения остаются до следующего входа.
+     * Отметка о доставке ставится после последнего сообщения, которое подключение записало в сокет;
+     * если часть доставлена целиком, вместе с отметкой запрашивается следующая часть
+     * @param positions позиции части сообщений, не больше {@link #REPLAY_CHUNK}
+     */
+    private void stream(int userId, Client client, long[] positions) {
+        ByteBuffer block = ByteBuffer.allocate(REPLAY_BLOCK);
+        ChatMessageView view = new ChatMessageView();
+        long blockStart = -1;
+        // позиции сообщений, поставленных в очередь, и номера их кадров в очереди подключения
+        long[] queued = new long[positions.length];
+        long[] numbers = new long[positions.length];
+        int sent = 0;
+        int flushed = 0;
+        try {
+            for (long position : positions) {
+                while (client.pendingFrames() > REPLAY_WINDOW && registry.findById(userId) == client) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                }
+                flushed = flushed(client, numbers, sent, flushed);
+                if (registry.findById(userId) != client) break;
+                Segment segment = segments.get(segmentOf(position));
+                if (segment == null) continue;
+                long offset = offsetOf(position);
+                // запись ищется в уже прочитанном блоке, иначе читается новый блок с начала записи
+                if (blockStart < 0 || segmentOf(blockStart) != segment.id || offset < offsetOf(blockStart)
+                        || !contains(block, (int) (offset - offsetOf(blockStart)))) {
+                    block.clear();
+                    segment.read(block, offset);
+                    block.flip();
+                    blockStart = position;
+                }
+                int at = (int) (offset - offsetOf(blockStart));
+                int bodyLength = block.getInt(at);
+                int senderLength = block.getShort(at + HEADER + 5);
+                int senderAt = at + HEADER + 7;
+                int textAt = senderAt + senderLength;
+                view.sender().set(block, senderAt, senderLength);
+                view.text().set(block, textAt, at + HEADER + bodyLength - textAt);
+                long number = client.sendCounted(client.codec().relay(view));
+                if (number == 0) break;
+                queued[sent] = position;
+                numbers[sent++] = number;
+            }
+            // ожидание записи поставленных сообщений, пока клиент подключен
+            while ((flushed = flushed(client, numbers, sent, flushed)) < sent && registry.findById(userId) == client) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            delivered.add(flushed);
+            boolean more = positions.length == REPLAY_CHUNK && flushed == positions.length;
+            commands.add(new Consumed(userId, flushed == 0 ? -1 : queued[flushed - 1], more ? client : null));
+        }
+    }
+
+    /**
+     * Сколько первых поставленных в очередь сообщений подключение уже записало в сокет
+     * @param client подключение
+     * @param numbers номера кадров сообщений в очереди подключения
+     * @param sent сколько сообщений поставлено в очередь
+     * @param flushed сколько сообщений записано по предыдущей проверке
+     * @return новое количество записанных сообщений
+     */
+    private static int flushed(Client client, long[] numbers, int sent, int flushed) {
+        long written = client.flushedFrames();
+        while (flushed < sent && numbers[flushed] <= written) {
+            flushed++;
+        }
+        return flushed;
+    }
+
+    /**
+     * Проверка, что запись по смещению целиком находится в блоке
+     */
+    private static boolean contains(ByteBuffer block, int at) {
+        return at + HEADER <= block.limit() && at + HEADER + block.getInt(at) <= block.limit();
+    }
+
+    // --- восстановление ---
+
+    private void recover() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    ids.add(Integer.parseInt(name.substring(0, name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // чужой файл
+                }
+            }
+        }
+        ids.sort(null);
+        for (int i = 0; i < ids.size(); i++) {
+            Segment segment = Segment.open(directory, ids.get(i));
+            segments.put(segment.id, segment);
+            long valid = scan(segment);
+            if (valid < segment.size) {
+                System.err.println("Offline store: damaged tail of " + segment.path + " at " + valid);
+                if (i == ids.size() - 1) segment.truncate(valid);
+            }
+        }
+        if (segments.isEmpty()) {
+            active = Segment.create(directory, 1);
+            segments.put(active.id, active);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+        deleteDeadSegments();
+    }
+
+    /**
+     * Последовательное чтение сегмента с применением записей к индексу
+     * @param segment сегмент
+     * @return длину правильной части сегмента
+     * @throws IOException если чтение невозможно
+     */
+    private long scan(Segment segment) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(segment.channel.position(0)), REPLAY_BLOCK));
+        CRC32 crc = new CRC32();
+        byte[] body = new byte[REPLAY_BLOCK];
+        long offset = 0;
+        try {
+            while (offset < segment.size) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 9 || offset + HEADER + length > segment.size) break;
+                if (body.length < length) body = new byte[length];
+                in.readFully(body, 0, length);
+                crc.reset();
+                crc.update(body, 0, length);
+                if ((int) crc.getValue() != checksum) break;
+                ByteBuffer record = ByteBuffer.wrap(body, 0, length);
+                byte type = record.get();
+                int userId = record.getInt();
+                if (type == MESSAGE) {
+                    index.computeIfAbsent(userId, id -> new Positions()).add(position(segment.id, offset));
+                    segment.live++;
+                    pending.incrementAndGet();
+                } else if (type == CONSUMED) {
+                    Positions positions = index.get(userId);
+                    if (positions != null) {
+                        pending.addAndGet(-positions.removeUpTo(record.getLong(), segments));
+                        if (positions.size == 0) index.remove(userId);
+                    }
+                }
+                offset += HEADER + length;
+            }
+        } catch (EOFException e) {
+            // запись оборвана
+        }
+        return offset;
+    }
+
+    // --- вспомогательное ---
+
+    private static void seal(ByteBuffer record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER, record.position() - HEADER);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+    }
+
+    private static long position(int segment, long offset) {
+        return (long) segment << 32 | offset;
+    }
+
+    private static int segmentOf(long position) {
+        return (int) (position >>> 32);
+    }
+
+    private static long offsetOf(long position) {
+        return position & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Позиции сообщений одного получателя в порядке записи
+     */
+    private static final class Positions {
+        private long[] values = new long[4];
+        private int size;
+
+        void add(long position) {
+            if (size == values.length) {
+                long[] grown = new long[size * 2];
+                System.arraycopy(values, 0, grown, 0, size);
+                values = grown;
+            }
+            values[size++] = position;
+        }
+
+        /**
+         * Первые позиции
+         * @param max сколько позиций нужно
+         * @return копию не больше max первых позиций
+         */
+        long[] toArray(int max) {
+            long[] copy = new long[Math.min(size, max)];
+            System.arraycopy(values, 0, copy, 0, copy.length);
+            return copy;
+        }
+
+        /**
+         * Удаление позиций до заданной включительно с уменьшением счетчиков их сегментов
+         * @return количество удаленных позиций
+         */
+        int removeUpTo(long upTo, Map<Integer, Segment> segments) {
+            int n = 0;
+            while (n < size && values[n] <= upTo) {
+                Segment segment = segments.get(segmentOf(values[n]));
+                if (segment != null) segment.live--;
+                n++;
+            }
+            System.arraycopy(values, n, values, 0, size - n);
+            size -= n;
+            return n;
+        }
+    }
+
+    private static final class Append {
+        /**
+         * id получателя; для сообщения по логину определяется потоком записи
+         */
+        int receiverId;
+        final String receiver;
+        final ByteBuffer record;
+
+        Append(int receiverId, String receiver, ByteBuffer record) {
+            this.receiverId = receiverId;
+            this.receiver = receiver;
+            this.record = record;
+        }
+    }
+
+    private static final class Replay {
+        final int userId;
+        final Client client;
+
+        Replay(int userId, Client client) {
+            this.userId = userId;
+            this.client = client;
+        }
+    }
+
+    private static final class Consumed {
+        final int userId;
+        final long upTo;
+        /**
+         * Подключение, которому доставляется следующая часть, или null
+         */
+        final Client next;
+
+        Consumed(int userId, long upTo, Client next) {
+            this.userId = userId;
+            this.upTo = upTo;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Файл-сегмент журнала
+     */
+    private static final class Segment {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        /**
+         * Длина записанной части. Изменяется только потоком записи
+         */
+        volatile long size;
+        /**
+         * Количество недоставленных сообщений в сегменте
+         */
+        int live;
+
+        private Segment(int id, Path path, FileChannel channel, long size) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        static Segment create(Path directory, int id) throws IOException {
+            Path path = directory.resolve(String.format("%010d%s", id, SUFFIX));
+            return new Segment(id, path, FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE), 0);
+        }
+
+        static Segment open(Path directory, int id) throws IOException {
+            Path path = directory.resolve(String.format("%010d%s", id, SUFFIX));
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(id, path, channel, channel.size());
+        }
+
+        void write(ByteBuffer[] buffers, boolean force) throws IOException {
+            long position = size;
+            long total = 0;
+            for (ByteBuffer buffer : buffers) {
+                total += buffer.remaining();
+            }
+            channel.position(position);
+            long written = 0;
+            while (written < total) {
+                written += channel.write(buffers);
+            }
+            if (force) channel.force(false);
+            size = position + total;
+        }
+
+        void read(ByteBuffer target, long offset) throws IOException {
+            long end = size;
+            while (target.hasRemaining() && offset < end) {
+                int n = channel.read(target, offset);
+                if (n < 0) break;
+                offset += n;
+            }
+        }
+
+        void truncate(long length) throws IOException {
+            channel.truncate(length);
+            size = length;
+        }
+
+        void closeForWrite() throws IOException {
+            channel.force(false);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ua.mk.berkut.maserver.online;
+
+import ua.mk.berkut.maserver.clients.Client;
+import ua.mk.berkut.maserver.clients.OutboundQueue;
+import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.protocol.Codec;
+import ua.mk.berkut.maserver.protocol.Frame;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Сессия, подключение которой оборвалось, пока она ждет возобновления.
+ * Занимает место подключения в реестре online, поэтому пользователь не выходит из online
+ * для друзей и комнат, а адресованные ему кадры копятся в очереди. При возобновлении
+ * кадры передаются новому подключению, а кадры, отправленные позже, пересылаются ему же.
+ * Пересылка идет без блокировки: блокировка держится только на время передачи накопленных кадров,
+ * поэтому медленное новое подключение не задерживает отправителей под монитором
+ */
+public class DetachedClient implements Client {
+    private final User user;
+    private final Codec codec;
+    private final OutboundQueue queue;
+    /**
+     * Подключение, возобновившее сессию; null, пока сессия ждет
+     */
+    private volatile Client target;
+    /**
+     * Передача очереди новому подключению: кадр, отправленный во время передачи, ставится после накопленных
+     */
+    private final ReentrantLock handoff = new ReentrantLock();
+
+    /**
+     * Создает ожидающую сессию
+     * @param user пользователь сессии
+     * @param codec протокол оборвавшегося подключения - им закодированы кадры очереди
+     * @param queue очередь для кадров, пока подключения нет
+     */
+    DetachedClient(User user, Codec codec, OutboundQueue queue) {
+        this.user = user;
+        this.codec = codec;
+        this.queue = queue;
+    }
+
+    @Override
+    public User getUser() {
+        return user;
+    }
+
+    @Override
+    public Codec codec() {
+        return codec;
+    }
+
+    @Override
+    public void sendFrame(Frame frame) {
+        Client forward = target;
+        if (forward == null) {
+            handoff.lock();
+            try {
+                forward = target;
+                if (forward == null) {
+                    // очередь с политикой DROP не блокирует отправителя
+                    queue.offer(frame);
+                    return;
+                }
+            } finally {
+                handoff.unlock();
+            }
+        }
+        forward.sendFrame(frame);
+    }
+
+    @Override
+    public int pendingFrames() {
+        return queue.size();
+    }
+
+    /**
+     * Передача накопленных кадров подключению, возобновившему сессию; дальнейшие кадры
+     * пересылаются ему же, порядок кадров сохраняется
+     * @param client новое подключение пользователя
+     */
+    void attach(Client client) {
+        handoff.lock();
+        try {
+            queue.transferTo(client);
+            target = client;
+        } finally {
+            handoff.unlock();
+        }
+    }
+
+    /**
+     * Освобождение накопленных кадров, если сессия так и не была возобновлена
+     */
+    void discard() {
+        handoff.lock();
+        try {
+            queue.close();
+            queue.discard();
+        } finally {
+            handoff.unlock();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package ua.mk.berkut.maserver.online;
+
+import ua.mk.berkut.maserver.clients.Client;
+import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.protocol.ByteSlice;
+import ua.mk.berkut.maserver.protocol.ChatMessageView;
+import ua.mk.berkut.maserver.protocol.Frame;
+import ua.mk.berkut.maserver.protocol.FramePool;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Маршрутизация сообщений между пользователями online.
+ * Получатель ищется в {@link OnlineRegistry} без блокировок, а сообщение ставится в очередь
+ * его подключения, поэтому сообщения разным получателям доставляются параллельно.
+ * Порядок сообщений от одного отправителя одному получателю сохраняется очередью получателя.
+ * Кадр кодируется протоколом получателя, поэтому текстовые и двоичные клиенты переписываются между собой.
+ * Пакет сообщений ({@link Batch}) группируется по получателям, и каждый получатель
+ * получает свою часть пакета одним кадром - одной записью в сокет.
+ * Сообщения получателям, которые не online, передаются {@link UndeliveredHandler}
+ */
+public class MessageRouter {
+    /**
+     * Разделитель слов в строках
+     */
+    private static final char SEPARATOR = ';';
+
+    private final OnlineRegistry registry;
+    private final UndeliveredHandler undelivered;
+
+    /**
+     * Создает маршрутизатор, который отбрасывает сообщения получателям не online
+     * @param registry реестр пользователей online
+     */
+    public MessageRouter(OnlineRegistry registry) {
+        this(registry, UndeliveredHandler.DROP);
+    }
+
+    /**
+     * Создает маршрутизатор
+     * @param registry реестр пользователей online
+     * @param undelivered обработчик сообщений получателям, которые не online
+     */
+    public MessageRouter(OnlineRegistry registry, UndeliveredHandler undelivered) {
+        this.registry = registry;
+        this.undelivered = undelivered;
+    }
+
+    /**
+     * Пересылка сообщения получателю
+     * @param message сообщение в формате: получатель;отправитель;текст
+     * @return true, если получатель online и сообщение поставлено в его очередь
+     */
+    public boolean route(String message) {
+        return route(message, null);
+    }
+
+    /**
+     * Пересылка сообщения, разобранного прямо в буфере чтения, без создания строк
+     * @param message сообщение из буфера чтения
+     * @return true, если получатель online и сообщение поставлено в его очередь
+     */
+    public boolean route(ChatMessageView message) {
+        return route(message, null);
+    }
+
+    /**
+     * Пересылка сообщения от вошедшего пользователя по id получателя
+     * @param sender отправитель
+     * @param receiverId id получателя
+     * @param text текст сообщения в UTF-8
+     * @return true, если получатель online и сообщение поставлено в его очередь
+     */
+    public boolean route(User sender, int receiverId, ByteSlice text) {
+        return route(sender, receiverId, text, null);
+    }
+
+    /**
+     * Новый пакет сообщений
+     * @return пустой пакет
+     */
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    private boolean route(String message, Batch batch) {
+        // поля ищутся без split: как и split(";"), пустые поля в конце строки не учитываются
+        int end = message.length();
+        while (end > 0 && message.charAt(end - 1) == SEPARATOR) end--;
+        int first = message.indexOf(SEPARATOR);
+        if (first < 0 || first >= end) return false;
+        int second = message.indexOf(SEPARATOR, first + 1);
+        if (second < 0 || second >= end) return false;
+        int third = message.indexOf(SEPARATOR, second + 1);
+        if (third >= 0 && third < end) return false;
+        String receiver = message.substring(0, first);
+        Client client = registry.findByLogin(receiver);
+        if (client == null) {
+            undelivered.undelivered(receiver, ByteSlice.of(message.substring(first + 1, second)),
+                    ByteSlice.of(message.substring(second + 1, end)));
+            return false;
+        }
+        deliver(client, client.codec().relay(message, first + 1, second, second + 1, end), batch);
+        return true;
+    }
+
+    private boolean route(ChatMessageView message, Batch batch) {
+        Client client = registry.findByLogin(message.receiver());
+        if (client == null) {
+            undelivered.undelivered(message.receiver().toString(), message.sender(), message.text());
+            return false;
+        }
+        deliver(client, client.codec().relay(message), batch);
+        return true;
+    }
+
+    private boolean route(User sender, int receiverId, ByteSlice text, Batch batch) {
+        Client client = registry.findById(receiverId);
+        if (client == null) {
+            undelivered.undelivered(receiverId, ByteSlice.of(sender.getLogin()), text);
+            return false;
+        }
+        deliver(client, client.codec().chat(sender, text), batch);
+        return true;
+    }
+
+    private static void deliver(Client client, Frame frame, Batch batch) {
+        if (batch == null) client.sendFrame(frame);
+        else batch.frames.computeIfAbsent(client, c -> new ArrayList<>()).add(frame);
+    }
+
+    /**
+     * Пакет сообщений от одного клиента. Сообщения кодируются при добавлении,
+     * а отправляются все вместе методом {@link #deliver()}. Пакет используется одним потоком
+     */
+    public final class Batch {
+        private final Map<Client, List<Frame>> frames = new LinkedHashMap<>();
+
+        private Batch() {
+        }
+
+        /**
+         * Добавление сообщения в пакет
+         * @param message сообщение в формате: получатель;отправитель;текст
+         * @return true, если получатель online
+         */
+        public boolean add(String message) {
+            return route(message, this);
+        }
+
+        /**
+         * Добавление сообщения из буфера чтения в пакет
+         * @param message сообщение из буфера чтения
+         * @return true, если получатель online
+         */
+        public boolean add(ChatMessageView message) {
+            return route(message, this);
+        }
+
+        /**
+         * Добавление сообщения от вошедшего пользователя в пакет
+         * @param sender отправитель
+         * @param receiverId id получателя
+         * @param text текст сообщения в UTF-8
+         * @return true, если получатель online
+         */
+        public boolean add(User sender, int receiverId, ByteSlice text) {
+            return route(sender, receiverId, text, this);
+        }
+
+        /**
+         * Отправка пакета: сообщения каждому получателю объединяются в один кадр
+         * в порядке добавления
+         * @return количество получателей
+         */
+        public int deliver() {
+            int receivers = frames.size();
+            for (Map.Entry<Client, List<Frame>> entry : frames.entrySet()) {
+                entry.getKey().sendFrame(FramePool.SHARED.join(entry.getValue()));
+            }
+            frames.clear();
+            return receivers;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package ua.mk.berkut.maserver.online;
+
+import ua.mk.berkut.maserver.clients.Client;
+import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.protocol.ByteSlice;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Реестр подключенных пользователей с индексами по логину и по id.
+ * Поиск выполняется за O(1) и без блокировок, добавление и удаление безопасны
+ * при одновременных подключениях и отключениях: основной индекс - по id, индексы по логину
+ * изменяются внутри {@code compute} основного индекса, т.е. под блокировкой его ячейки,
+ * поэтому одновременные входы одного пользователя не оставляют индексы указывающими на разные подключения.
+ * Индекс по байтам логина позволяет искать получателя прямо по окну в буфер чтения
+ */
+public class OnlineRegistry {
+    private final ConcurrentHashMap<String, Client> byLogin = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Client> byId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ByteSlice, Client> byLoginBytes = new ConcurrentHashMap<>();
+
+    /**
+     * Регистрирует подключение вошедшего пользователя.
+     * Повторный вход с тем же логином заменяет прежнее подключение в индексах
+     * @param client подключение с уже известным пользователем
+     */
+    public void add(Client client) {
+        User user = client.getUser();
+        ByteSlice loginBytes = ByteSlice.of(user.getLogin());
+        byId.compute(user.getId(), (id, current) -> {
+            byLogin.put(user.getLogin(), client);
+            byLoginBytes.put(loginBytes, client);
+            return client;
+        });
+    }
+
+    /**
+     * Удаляет подключение из реестра. Если пользователь успел войти повторно
+     * через другое подключение, новое подключение не затрагивается
+     * @param client отключившийся клиент
+     * @return true, если пользователь больше не online
+     */
+    public boolean remove(Client client) {
+        User user = client.getUser();
+        if (user == null) return false;
+        ByteSlice loginBytes = ByteSlice.of(user.getLogin());
+        boolean[] removed = new boolean[1];
+        byId.computeIfPresent(user.getId(), (id, current) -> {
+            if (current != client) return current;
+            byLogin.remove(user.getLogin(), client);
+            byLoginBytes.remove(loginBytes, client);
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Замена подключения пользователя другим без выхода пользователя из online
+     * (например, при обрыве и возобновлении сессии)
+     * @param current подключение, которое сейчас в реестре
+     * @param replacement подключение того же пользователя
+     * @return false, если в реестре уже другое подключение пользователя или его там нет
+     */
+    public boolean replace(Client current, Client replacement) {
+        User user = current.getUser();
+        ByteSlice loginBytes = ByteSlice.of(user.getLogin());
+        boolean[] replaced = new boolean[1];
+        byId.computeIfPresent(user.getId(), (id, client) -> {
+            if (client != current) return client;
+            byLogin.put(user.getLogin(), replacement);
+            byLoginBytes.put(loginBytes, replacement);
+            replaced[0] = true;
+            return replacement;
+        });
+        return replaced[0];
+    }
+
+    /**
+     * Поиск подключения по логину
+     * @param login логин пользователя
+     * @return подключение или null, если пользователь не online
+     */
+    public Client findByLogin(String login) {
+        return byLogin.get(login);
+    }
+
+    /**
+     * Поиск подключения по логину в UTF-8 без создания строки
+     * @param login логин пользователя (например, окно в буфер чтения)
+     * @return подключение или null, если пользователь не online
+     */
+    public Client findByLogin(ByteSlice login) {
+        return byLoginBytes.get(login);
+    }
+
+    /**
+     * Поиск подключения по id пользователя
+     * @param id идентификатор пользователя
+     * @return подключение или null, если пользователь не online
+     */
+    public Client findById(int id) {
+        return byId.get(id);
+    }
+
+    /**
+     * Все подключения online
+     * @return неизменяемое представление, отражающее текущее состояние реестра
+     */
+    public Collection<Client> clients() {
+        return Collections.unmodifiableCollection(byId.values());
+    }
+
+    /**
+     * Количество пользователей online
+     * @return размер реестра
+     */
+    public int size() {
+        return byId.size();
+    }
+}
@@ -0,0 +1,123 @@
+package ua.mk.berkut.maserver.online;
+
+import ua.mk.berkut.maserver.clients.Client;
+import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.friends.FriendGraph;
+import ua.mk.berkut.maserver.friends.SortedIntArrays;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Индекс присутствия: для каждого пользователя online хранится отсортированный массив id
+ * его друзей, которые сейчас online. Индекс обновляется при входе и выходе пользователей,
+ * поэтому ответ на {@code <<<} стоит O(друзей online), а не O(всех пользователей online).
+ * Подписавшиеся клиенты получают уведомления о входе и выходе друзей:
+ * {@code <<<+id;username;login} и {@code <<<-id;username;login} (двоичные клиенты - кадры ONLINE и OFFLINE)
+ */
+public class PresenceIndex {
+    private final OnlineRegistry registry;
+    private final FriendGraph friendGraph;
+    private final ConcurrentHashMap<Integer, int[]> onlineFriends = new ConcurrentHashMap<>();
+    private final Set<Integer> subscribers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Создает пустой индекс
+     * @param registry реестр подключений online
+     * @param friendGraph граф дружбы
+     */
+    public PresenceIndex(OnlineRegistry registry, FriendGraph friendGraph) {
+        this.registry = registry;
+        this.friendGraph = friendGraph;
+    }
+
+    /**
+     * Учет входа пользователя. Вызывается после добавления подключения в реестр.
+     * Запись пользователя появляется в индексе до просмотра друзей: друг, который входит одновременно
+     * и которого просмотр уже не застал в реестре, сам добавит себя в эту запись
+     * @param user вошедший пользователь
+     */
+    public void online(User user) {
+        int id = user.getId();
+        onlineFriends.putIfAbsent(id, SortedIntArrays.EMPTY);
+        int[] friends = friendGraph.friendsOf(id);
+        int[] own = new int[friends.length];
+        int n = 0;
+        for (int friendId : friends) {
+            if (registry.findById(friendId) == null) continue;
+            own[n++] = friendId;
+            onlineFriends.computeIfPresent(friendId, (key, current) -> SortedIntArrays.insert(current, id));
+            notify(friendId, true, user);
+        }
+        int[] result = Arrays.copyOf(own, n);
+        onlineFriends.merge(id, result, SortedIntArrays::union);
+    }
+
+    /**
+     * Учет выхода пользователя. Вызывается после удаления подключения из реестра
+     * @param user вышедший пользователь
+     */
+    public void offline(User user) {
+        int id = user.getId();
+        subscribers.remove(id);
+        int[] own = onlineFriends.remove(id);
+        if (own == null) return;
+        for (int friendId : own) {
+            onlineFriends.computeIfPresent(friendId, (key, current) -> SortedIntArrays.remove(current, id));
+            notify(friendId, false, user);
+        }
+    }
+
+    /**
+     * Учет новой взаимной дружбы: если оба пользователя online, они попадают в списки друг друга
+     * @param user1 первый пользователь
+     * @param user2 второй пользователь
+     */
+    public void friendshipAdded(User user1, User user2) {
+        int id1 = user1.getId();
+        int id2 = user2.getId();
+        if (onlineFriends.computeIfPresent(id1, (key, current) -> SortedIntArrays.insert(current, id2)) == null) return;
+        if (onlineFriends.computeIfPresent(id2, (key, current) -> SortedIntArrays.insert(current, id1)) == null) {
+            onlineFriends.computeIfPresent(id1, (key, current) -> SortedIntArrays.remove(current, id2));
+            return;
+        }
+        notify(id1, true, user2);
+        notify(id2, true, user1);
+    }
+
+    /**
+     * Друзья пользователя, которые сейчас online.
+     * Индекс может ненадолго отставать от реестра при одновременном входе и выходе,
+     * поэтому каждый друг дополнительно проверяется в реестре
+     * @param id id пользователя
+     * @return список пользователей online
+     */
+    public List<User> onlineFriendsOf(int id) {
+        int[] friends = onlineFriends.getOrDefault(id, SortedIntArrays.EMPTY);
+        List<User> result = new ArrayList<>(friends.length);
+        for (int friendId : friends) {
+            Client friend = registry.findById(friendId);
+            if (friend != null) result.add(friend.getUser());
+        }
+        return result;
+    }
+
+    /**
+     * Подписка пользователя на уведомления о входе и выходе друзей
+     * @param id id пользователя
+     */
+    public void subscribe(int id) {
+        subscribers.add(id);
+    }
+
+    private void notify(int subscriberId, boolean online, User user) {
+        if (!subscribers.contains(subscriberId)) return;
+        Client client = registry.findById(subscriberId);
+        if (client != null) {
+            client.sendFrame(client.codec().presence(online, user));
+        }
+    }
+}
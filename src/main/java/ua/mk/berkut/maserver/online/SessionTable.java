@@ -0,0 +1,234 @@
+package ua.mk.berkut.maserver.online;
+
+import ua.mk.berkut.maserver.clients.Client;
+import ua.mk.berkut.maserver.clients.OutboundQueue;
+import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.protocol.Codec;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Сессии, которые можно возобновить после обрыва подключения без проверки пароля и без обращения к БД.
+ * При входе клиент получает случайный токен. Если подключение обрывается, сессия не завершается,
+ * а ждет возобновления заданное время ({@link DetachedClient}); клиент, предъявивший токен,
+ * получает ту же сессию - пользователя, друзей online, комнаты и накопленные кадры - и новый токен.
+ * У пользователя не больше одного действующего токена. Таблица в памяти и теряется при перезапуске сервера.
+ * Таблица защищена {@link ReentrantLock}, а не монитором, и под блокировкой не вызываются другие клиенты
+ */
+public class SessionTable {
+    private static final int TOKEN_BYTES = 24;
+
+    private final long ttlMillis;
+    private final int queueCapacity;
+    private final Consumer<DetachedClient> expired;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Session> sessions = new HashMap<>();
+    private final Map<Integer, String> tokenByUser = new HashMap<>();
+    private final ScheduledThreadPoolExecutor timer;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final LongAdder detachedCount = new LongAdder();
+    private final LongAdder resumedCount = new LongAdder();
+    private final LongAdder expiredCount = new LongAdder();
+
+    private static final class Session {
+        final User user;
+        final Codec codec;
+        DetachedClient parked;
+        ScheduledFuture<?> expiry;
+
+        Session(User user, Codec codec) {
+            this.user = user;
+            this.codec = codec;
+        }
+    }
+
+    /**
+     * Создает пустую таблицу
+     * @param ttlSeconds сколько секунд оборванная сессия ждет возобновления
+     * @param queueCapacity сколько кадров копится для оборванной сессии; лишние отбрасываются
+     * @param expired вызывается для сессии, которую не возобновили вовремя, - пользователь выходит из online
+     */
+    public SessionTable(long ttlSeconds, int queueCapacity, Consumer<DetachedClient> expired) {
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        this.queueCapacity = queueCapacity;
+        this.expired = expired;
+        this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "session-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Выдача токена вошедшему пользователю. Прежний токен пользователя перестает действовать
+     * @param user пользователь
+     * @param codec протокол подключения
+     * @return новый токен
+     */
+    public String open(User user, Codec codec) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        Session previous;
+        lock.lock();
+        try {
+            sessions.put(token, new Session(user, codec));
+            String previousToken = tokenByUser.put(user.getId(), token);
+            previous = previousToken == null ? null : sessions.remove(previousToken);
+        } finally {
+            lock.unlock();
+        }
+        discard(previous);
+        return token;
+    }
+
+    /**
+     * Обрыв подключения: сессия начинает ждать возобновления
+     * @param token токен сессии
+     * @return клиента, который замещает подключение в реестре online, или null, если токен не действует
+     */
+    public DetachedClient detach(String token) {
+        lock.lock();
+        try {
+            Session session = sessions.get(token);
+            if (session == null || session.parked != null) return null;
+            session.parked = new DetachedClient(session.user, session.codec,
+                    new OutboundQueue(queueCapacity, OutboundQueue.OverflowPolicy.DROP, 0));
+            session.expiry = timer.schedule(() -> expire(token, session), ttlMillis, TimeUnit.MILLISECONDS);
+            detachedCount.increment();
+            return session.parked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Возобновление ожидающей сессии. Токен при этом перестает действовать
+     * @param token предъявленный токен
+     * @param codec протокол нового подключения - должен совпадать с протоколом сессии
+     * @return ожидающую сессию или null, если токен не действует или сессия не ждет возобновления
+     */
+    public DetachedClient resume(String token, Codec codec) {
+        lock.lock();
+        try {
+            Session session = sessions.get(token);
+            if (session == null || session.parked == null || session.codec != codec) return null;
+            sessions.remove(token);
+            tokenByUser.remove(session.user.getId(), token);
+            session.expiry.cancel(false);
+            resumedCount.increment();
+            return session.parked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Передача накопленных кадров подключению, возобновившему сессию
+     * @param parked сессия, полученная из {@link #resume(String, Codec)}
+     * @param client новое подключение
+     */
+    public void attach(DetachedClient parked, Client client) {
+        parked.attach(client);
+    }
+
+    /**
+     * Завершение сессии (выход клиента). Накопленные кадры освобождаются
+     * @param token токен сессии
+     */
+    public void close(String token) {
+        Session session;
+        lock.lock();
+        try {
+            session = sessions.remove(token);
+            if (session == null) return;
+            tokenByUser.remove(session.user.getId(), token);
+        } finally {
+            lock.unlock();
+        }
+        discard(session);
+    }
+
+    /**
+     * Завершение сессии пользователя, если она есть
+     * @param userId id пользователя
+     */
+    public void closeUser(int userId) {
+        String token;
+        lock.lock();
+        try {
+            token = tokenByUser.get(userId);
+        } finally {
+            lock.unlock();
+        }
+        if (token != null) close(token);
+    }
+
+    private void expire(String token, Session session) {
+        lock.lock();
+        try {
+            if (sessions.get(token) != session) return;
+            sessions.remove(token);
+            tokenByUser.remove(session.user.getId(), token);
+            expiredCount.increment();
+        } finally {
+            lock.unlock();
+        }
+        expired.accept(session.parked);
+        session.parked.discard();
+    }
+
+    private static void discard(Session session) {
+        if (session == null || session.parked == null) return;
+        session.expiry.cancel(false);
+        session.parked.discard();
+    }
+
+    /**
+     * Количество действующих токенов
+     * @return размер таблицы
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return sessions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Количество оборванных сессий
+     * @return счетчик
+     */
+    public long getDetachedCount() {
+        return detachedCount.sum();
+    }
+
+    /**
+     * Количество возобновленных сессий
+     * @return счетчик
+     */
+    public long getResumedCount() {
+        return resumedCount.sum();
+    }
+
+    /**
+     * Количество сессий, которые не возобновили вовремя
+     * @return счетчик
+     */
+    public long getExpiredCount() {
+        return expiredCount.sum();
+    }
+}
@@ -0,0 +1,38 @@
+package ua.mk.berkut.maserver.online;
+
+import ua.mk.berkut.maserver.protocol.ByteSlice;
+
+/**
+ * Обработка сообщений, получатель которых не online. Вызывается {@link MessageRouter}
+ * в потоке отправителя, поэтому не должна блокироваться
+ */
+public interface UndeliveredHandler {
+    /**
+     * Обработчик, который отбрасывает сообщения
+     */
+    UndeliveredHandler DROP = new UndeliveredHandler() {
+        @Override
+        public void undelivered(String receiver, ByteSlice sender, ByteSlice text) {
+        }
+
+        @Override
+        public void undelivered(int receiverId, ByteSlice sender, ByteSlice text) {
+        }
+    };
+
+    /**
+     * Сообщение получателю, указанному логином
+     * @param receiver логин получателя
+     * @param sender отправитель в UTF-8
+     * @param text текст в UTF-8
+     */
+    void undelivered(String receiver, ByteSlice sender, ByteSlice text);
+
+    /**
+     * Сообщение получателю, указанному id
+     * @param receiverId id получателя
+     * @param sender логин отправителя в UTF-8
+     * @param text текст в UTF-8
+     */
+    void undelivered(int receiverId, ByteSlice sender, ByteSlice text);
+}
@@ -0,0 +1,359 @@
+package ua.mk.berkut.maserver.protocol;
+
+import ua.mk.berkut.maserver.db.User;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Компактный двоичный протокол. Включается клиентом строкой {@code binary} сразу после
+ * {@code Server Ok}; сервер отвечает строкой {@code Binary Ok}, после чего обе стороны
+ * обмениваются только двоичными кадрами.
+ * <p>
+ * Кадр: длина (varint, вместе с типом), тип (1 байт), данные. Числа кодируются varint,
+ * строки - длиной (varint) и байтами UTF-8. Последнее поле кадра (текст сообщения)
+ * занимает остаток кадра и передается без длины. Получатели и отправители сообщений
+ * указываются id пользователя, поэтому текст может содержать любые символы, в т.ч. ';'
+ */
+public final class BinaryCodec implements Codec {
+    /**
+     * Кодек двоичных подключений
+     */
+    public static final BinaryCodec BINARY = new BinaryCodec();
+
+    /**
+     * Строка, которой клиент переключает подключение на двоичный протокол
+     */
+    public static final String HANDSHAKE = "binary";
+    /**
+     * Ответ сервера на переключение
+     */
+    public static final String HANDSHAKE_OK = "Binary Ok";
+
+    // клиент -> сервер
+    /**
+     * Вход: строка login, строка password, необязательный байт 1 - выдать токен возобновления сессии
+     */
+    public static final byte LOGIN = 1;
+    /**
+     * Регистрация: строки login, password, username, дата рождения, city
+     */
+    public static final byte REGISTER = 2;
+    /**
+     * Сообщение: varint id получателя, текст
+     */
+    public static final byte CHAT = 3;
+    /**
+     * Запрос списка друзей online: 1 байт - подписаться ли на изменения (0/1)
+     */
+    public static final byte LIST = 4;
+    /**
+     * Добавление друзей: одна или несколько строк login до конца кадра
+     * (id друга клиент узнает позже из списка)
+     */
+    public static final byte ADD_FRIEND = 5;
+    /**
+     * Завершение сессии
+     */
+    public static final byte EXIT = 6;
+    /**
+     * Пакет сообщений: до конца кадра повторяются varint id получателя и строка текста
+     */
+    public static final byte BATCH = 7;
+    /**
+     * Вход в комнату: строка названия комнаты
+     */
+    public static final byte JOIN = 8;
+    /**
+     * Выход из комнаты: строка названия комнаты
+     */
+    public static final byte LEAVE = 9;
+    /**
+     * Сообщение в комнату: строка названия комнаты, текст
+     */
+    public static final byte ROOM = 10;
+    /**
+     * Возобновление сессии после обрыва подключения: строка токена
+     */
+    public static final byte RESUME = 11;
+
+    // сервер -> клиент
+    /**
+     * Служебное сообщение: текст
+     */
+    public static final byte STATUS = 16;
+    /**
+     * Сообщение от пользователя: varint id отправителя, текст
+     */
+    public static final byte CHAT_FROM_ID = 17;
+    /**
+     * Сообщение от текстового клиента: строка отправителя, текст
+     */
+    public static final byte CHAT_FROM_NAME = 18;
+    /**
+     * Список друзей online: varint количество, затем для каждого varint id, строки username и login
+     */
+    public static final byte FRIENDS = 19;
+    /**
+     * Друг вошел: varint id, строки username и login
+     */
+    public static final byte ONLINE = 20;
+    /**
+     * Друг вышел: varint id, строки username и login
+     */
+    public static final byte OFFLINE = 21;
+    /**
+     * Сообщение в комнате: строка названия комнаты, varint id отправителя, текст
+     */
+    public static final byte ROOM_MESSAGE = 22;
+
+    /**
+     * Максимальный размер varint для int
+     */
+    private static final int MAX_VARINT = 5;
+
+    private BinaryCodec() {
+    }
+
+    @Override
+    public Frame status(String text) {
+        Frame frame = start(STATUS, Utf8.length(text));
+        Utf8.encode(text, frame.buffer());
+        return frame.flip();
+    }
+
+    @Override
+    public Frame chat(User sender, ByteSlice text) {
+        Frame frame = start(CHAT_FROM_ID, varintLength(sender.getId()) + text.length());
+        ByteBuffer buffer = frame.buffer();
+        putVarint(sender.getId(), buffer);
+        text.copyTo(buffer);
+        return frame.flip();
+    }
+
+    @Override
+    public Frame relay(ChatMessageView message) {
+        ByteSlice sender = message.sender();
+        ByteSlice text = message.text();
+        Frame frame = start(CHAT_FROM_NAME, varintLength(sender.length()) + sender.length() + text.length());
+        ByteBuffer buffer = frame.buffer();
+        putVarint(sender.length(), buffer);
+        sender.copyTo(buffer);
+        text.copyTo(buffer);
+        return frame.flip();
+    }
+
+    @Override
+    public Frame relay(String message, int senderFrom, int senderTo, int textFrom, int textTo) {
+        int senderLength = Utf8.length(message, senderFrom, senderTo);
+        Frame frame = start(CHAT_FROM_NAME,
+                varintLength(senderLength) + senderLength + Utf8.length(message, textFrom, textTo));
+        ByteBuffer buffer = frame.buffer();
+        putVarint(senderLength, buffer);
+        Utf8.encode(message, senderFrom, senderTo, buffer);
+        Utf8.encode(message, textFrom, textTo, buffer);
+        return frame.flip();
+    }
+
+    @Override
+    public Frame room(String room, User sender, ByteSlice text) {
+        Frame frame = start(ROOM_MESSAGE, stringLength(room) + varintLength(sender.getId()) + text.length());
+        ByteBuffer buffer = frame.buffer();
+        putString(room, buffer);
+        putVarint(sender.getId(), buffer);
+        text.copyTo(buffer);
+        return frame.flip();
+    }
+
+    @Override
+    public Frame friends(List<User> users) {
+        int size = varintLength(users.size());
+        for (User user : users) {
+            size += userLength(user);
+        }
+        Frame frame = start(FRIENDS, size);
+        ByteBuffer buffer = frame.buffer();
+        putVarint(users.size(), buffer);
+        for (User user : users) {
+            putUser(user, buffer);
+        }
+        return frame.flip();
+    }
+
+    @Override
+    public Frame presence(boolean online, User user) {
+        Frame frame = start(online ? ONLINE : OFFLINE, userLength(user));
+        putUser(user, frame.buffer());
+        return frame.flip();
+    }
+
+    /**
+     * Кадр с заголовком: длиной и типом
+     * @param type тип кадра
+     * @param payload размер данных после типа
+     * @return кадр в режиме записи, готовый к записи данных
+     */
+    private static Frame start(byte type, int payload) {
+        Frame frame = FramePool.SHARED.acquire(MAX_VARINT + 1 + payload);
+        ByteBuffer buffer = frame.buffer();
+        putVarint(payload + 1, buffer);
+        buffer.put(type);
+        return frame;
+    }
+
+    private static int userLength(User user) {
+        return varintLength(user.getId()) + stringLength(user.getUsername()) + stringLength(user.getLogin());
+    }
+
+    private static void putUser(User user, ByteBuffer buffer) {
+        putVarint(user.getId(), buffer);
+        putString(user.getUsername(), buffer);
+        putString(user.getLogin(), buffer);
+    }
+
+    private static int stringLength(String s) {
+        int length = Utf8.length(s);
+        return varintLength(length) + length;
+    }
+
+    private static void putString(String s, ByteBuffer buffer) {
+        putVarint(Utf8.length(s), buffer);
+        Utf8.encode(s, buffer);
+    }
+
+    /**
+     * Размер числа в кодировке varint
+     * @param value неотрицательное число
+     * @return количество байт
+     */
+    public static int varintLength(int value) {
+        int n = 1;
+        while ((value >>>= 7) != 0) n++;
+        return n;
+    }
+
+    /**
+     * Запись числа в кодировке varint: по 7 бит, старший бит байта - признак продолжения
+     * @param value неотрицательное число
+     * @param buffer буфер в режиме записи
+     */
+    public static void putVarint(int value, ByteBuffer buffer) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Чтение длины кадра из начала данных
+     * @param buffer буфер с принятыми байтами
+     * @param offset начало кадра (абсолютный индекс)
+     * @param limit конец принятых данных
+     * @param header массив из одного элемента для размера заголовка длины
+     * @return длину кадра (тип и данные), -1 - если заголовок еще не получен целиком,
+     * -2 - если заголовок некорректен
+     */
+    public static int frameLength(ByteBuffer buffer, int offset, int limit, int[] header) {
+        int value = 0;
+        for (int i = 0; i < MAX_VARINT; i++) {
+            if (offset + i >= limit) return -1;
+            byte b = buffer.get(offset + i);
+            value |= (b & 0x7F) << 7 * i;
+            if (b >= 0) {
+                header[0] = i + 1;
+                return value > 0 ? value : -2;
+            }
+        }
+        return -2;
+    }
+
+    /**
+     * Последовательное чтение полей одного кадра. Многоразовый объект: перенастраивается
+     * на каждый кадр методом {@link #reset(ByteBuffer, int, int)}
+     */
+    public static final class Reader {
+        private ByteBuffer buffer;
+        private int position;
+        private int end;
+
+        /**
+         * Начало чтения кадра
+         * @param buffer буфер с кадром
+         * @param offset начало кадра после заголовка длины (абсолютный индекс типа)
+         * @param length длина кадра вместе с типом
+         * @return этот объект
+         */
+        public Reader reset(ByteBuffer buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.position = offset;
+            this.end = offset + length;
+            return this;
+        }
+
+        /**
+         * Проверка, остались ли в кадре непрочитанные поля
+         * @return true, если кадр прочитан не до конца
+         */
+        public boolean hasRemaining() {
+            return position < end;
+        }
+
+        /**
+         * Чтение одного байта (например, типа кадра)
+         * @return байт
+         * @throws IllegalArgumentException если кадр закончился
+         */
+        public byte readByte() {
+            if (position >= end) throw new IllegalArgumentException("Truncated frame");
+            return buffer.get(position++);
+        }
+
+        /**
+         * Чтение числа varint
+         * @return число
+         * @throws IllegalArgumentException если число некорректно или кадр закончился
+         */
+        public int readVarint() {
+            int value = 0;
+            for (int i = 0; i < MAX_VARINT; i++) {
+                byte b = readByte();
+                value |= (b & 0x7F) << 7 * i;
+                if (b >= 0) return value;
+            }
+            throw new IllegalArgumentException("Bad varint");
+        }
+
+        /**
+         * Чтение строки (создает String - для редких команд)
+         * @return строку
+         */
+        public String readString() {
+            return readSlice(new ByteSlice()).toString();
+        }
+
+        /**
+         * Чтение строки без декодирования
+         * @param target окно, которое настраивается на байты строки
+         * @return target
+         */
+        public ByteSlice readSlice(ByteSlice target) {
+            int length = readVarint();
+            if (length < 0 || length > end - position) throw new IllegalArgumentException("Truncated frame");
+            target.set(buffer, position, length);
+            position += length;
+            return target;
+        }
+
+        /**
+         * Остаток кадра - последнее поле без длины
+         * @param target окно, которое настраивается на остаток
+         * @return target
+         */
+        public ByteSlice rest(ByteSlice target) {
+            target.set(buffer, position, end - position);
+            position = end;
+            return target;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package ua.mk.berkut.maserver.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Участок байтового буфера - строка протокола в UTF-8 без декодирования.
+ * Изменяемый экземпляр используется как многоразовое "окно" в буфер чтения,
+ * неизменяемые копии ({@link #of(String)}) служат ключами в хеш-таблицах:
+ * хеш и сравнение определены по байтам, поэтому окно можно искать среди ключей без создания String
+ */
+public final class ByteSlice {
+    private ByteBuffer buffer;
+    private int offset;
+    private int length;
+    private int hash;
+
+    /**
+     * Создает пустое окно
+     */
+    public ByteSlice() {
+    }
+
+    /**
+     * Неизменяемый ключ для строки
+     * @param value строка
+     * @return участок, содержащий строку в UTF-8
+     */
+    public static ByteSlice of(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return new ByteSlice().set(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    /**
+     * Перенастройка окна на другой участок буфера
+     * @param buffer буфер
+     * @param offset начало участка (абсолютный индекс)
+     * @param length длина участка
+     * @return это окно
+     */
+    public ByteSlice set(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        int h = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            h = 31 * h + buffer.get(i);
+        }
+        this.hash = h;
+        return this;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Байт участка
+     * @param index индекс от начала участка
+     * @return байт
+     */
+    public byte byteAt(int index) {
+        return buffer.get(offset + index);
+    }
+
+    /**
+     * Проверяет, есть ли в участке перевод строки. Такой текст нельзя пересылать
+     * текстовым клиентам: остаток после перевода строки был бы принят за отдельную строку протокола
+     * @return true, если участок содержит '\n' или '\r'
+     */
+    public boolean hasLineBreak() {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b == '\n' || b == '\r') return true;
+        }
+        return false;
+    }
+
+    /**
+     * Копирование участка в буфер записи
+     * @param target буфер в режиме записи
+     */
+    public void copyTo(ByteBuffer target) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            target.put(buffer.get(i));
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ByteSlice)) return false;
+        ByteSlice other = (ByteSlice) o;
+        if (length != other.length || hash != other.hash) return false;
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + i) != other.buffer.get(other.offset + i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Декодирование участка (создает строку - не для горячего пути)
+     * @return строку
+     */
+    @Override
+    public String toString() {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
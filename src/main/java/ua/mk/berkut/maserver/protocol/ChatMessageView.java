@@ -0,0 +1,35 @@
+package ua.mk.berkut.maserver.protocol;
+
+/**
+ * Многоразовое представление сообщения {@code получатель;отправитель;текст}
+ * поверх буфера чтения. Поля указывают прямо в буфер и действительны до его следующего изменения
+ */
+public final class ChatMessageView {
+    private final ByteSlice receiver = new ByteSlice();
+    private final ByteSlice sender = new ByteSlice();
+    private final ByteSlice text = new ByteSlice();
+
+    /**
+     * Логин получателя
+     * @return окно в буфер чтения
+     */
+    public ByteSlice receiver() {
+        return receiver;
+    }
+
+    /**
+     * Логин отправителя
+     * @return окно в буфер чтения
+     */
+    public ByteSlice sender() {
+        return sender;
+    }
+
+    /**
+     * Текст сообщения
+     * @return окно в буфер чтения
+     */
+    public ByteSlice text() {
+        return text;
+    }
+}
@@ -0,0 +1,69 @@
+package ua.mk.berkut.maserver.protocol;
+
+import ua.mk.berkut.maserver.db.User;
+
+import java.util.List;
+
+/**
+ * Формат исходящих кадров подключения. Отправитель не знает, каким протоколом пользуется
+ * получатель, и кодирует кадр кодеком получателя: {@link LineCodec#TEXT} или {@link BinaryCodec#BINARY}
+ */
+public interface Codec {
+
+    /**
+     * Служебное сообщение: {@code Server Ok}, {@code Login Ok}, {@code Login failed 3} и т.п.
+     * @param text текст сообщения
+     * @return кадр
+     */
+    Frame status(String text);
+
+    /**
+     * Сообщение от вошедшего пользователя (отправитель известен серверу)
+     * @param sender отправитель
+     * @param text текст сообщения в UTF-8
+     * @return кадр
+     */
+    Frame chat(User sender, ByteSlice text);
+
+    /**
+     * Пересылка текстового сообщения, разобранного в буфере чтения
+     * @param message сообщение {@code получатель;отправитель;текст}
+     * @return кадр
+     */
+    Frame relay(ChatMessageView message);
+
+    /**
+     * Пересылка текстового сообщения, полученного строкой
+     * @param message строка {@code получатель;отправитель;текст}
+     * @param senderFrom начало отправителя
+     * @param senderTo конец отправителя (не включая)
+     * @param textFrom начало текста
+     * @param textTo конец текста (не включая)
+     * @return кадр
+     */
+    Frame relay(String message, int senderFrom, int senderTo, int textFrom, int textTo);
+
+    /**
+     * Сообщение в комнату. Кадр кодируется один раз и раздается всем участникам через {@link Frame#share()}
+     * @param room название комнаты
+     * @param sender отправитель
+     * @param text текст сообщения в UTF-8
+     * @return кадр
+     */
+    Frame room(String room, User sender, ByteSlice text);
+
+    /**
+     * Список друзей online
+     * @param users пользователи
+     * @return один кадр со всем списком
+     */
+    Frame friends(List<User> users);
+
+    /**
+     * Уведомление о входе или выходе друга
+     * @param online true - друг вошел, false - вышел
+     * @param user друг
+     * @return кадр
+     */
+    Frame presence(boolean online, User user);
+}
@@ -0,0 +1,86 @@
+package ua.mk.berkut.maserver.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Исходящий кадр - готовые к отправке байты. Кадр принадлежит одному получателю:
+ * писатель подключения сдвигает позицию буфера по мере отправки и освобождает кадр,
+ * после чего кадр из {@link FramePool} возвращается в пул.
+ * Один закодированный кадр можно раздать нескольким получателям через {@link #share()}:
+ * каждый получает свое окно только для чтения над общими байтами, а кадр возвращается
+ * в пул после освобождения всех окон и исходной ссылки
+ */
+public final class Frame {
+    private final ByteBuffer buffer;
+    private final FramePool pool;
+    /**
+     * Кадр, над байтами которого открыто это окно, или null
+     */
+    private final Frame parent;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    Frame(ByteBuffer buffer, FramePool pool) {
+        this(buffer, pool, null);
+    }
+
+    private Frame(ByteBuffer buffer, FramePool pool, Frame parent) {
+        this.buffer = buffer;
+        this.pool = pool;
+        this.parent = parent;
+    }
+
+    /**
+     * Кадр над готовым буфером, не связанный с пулом
+     * @param buffer буфер в режиме чтения
+     * @return кадр
+     */
+    public static Frame wrap(ByteBuffer buffer) {
+        return new Frame(buffer, null);
+    }
+
+    /**
+     * Буфер кадра. После {@link FramePool#acquire(int)} находится в режиме записи,
+     * после {@link #flip()} - в режиме чтения
+     * @return буфер
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Окончание записи кадра
+     * @return этот кадр
+     */
+    public Frame flip() {
+        buffer.flip();
+        return this;
+    }
+
+    /**
+     * Окно для еще одного получателя: собственная позиция над теми же байтами, без копирования.
+     * Окно освобождается как обычный кадр
+     * @return новый кадр-окно
+     */
+    public Frame share() {
+        Frame owner = parent != null ? parent : this;
+        owner.refs.incrementAndGet();
+        return new Frame(buffer.asReadOnlyBuffer(), null, owner);
+    }
+
+    /**
+     * Освобождение отправленного или отброшенного кадра. После вызова кадр использовать нельзя
+     */
+    public void release() {
+        if (parent != null) {
+            parent.release();
+        } else if (refs.decrementAndGet() == 0 && pool != null) {
+            pool.recycle(this);
+        }
+    }
+
+    void reset() {
+        buffer.clear();
+        refs.set(1);
+    }
+}
@@ -0,0 +1,94 @@
+package ua.mk.berkut.maserver.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Пул кадров двух размеров на прямых буферах. Кадры больше крупного размера
+ * создаются без пула. Пустой пул выделяет новый кадр, переполненный - отпускает лишний сборщику мусора
+ */
+public final class FramePool {
+    /**
+     * Общий пул сервера
+     */
+    public static final FramePool SHARED = new FramePool(512, 4096, 17 * 1024, 256);
+
+    private final int smallSize;
+    private final int largeSize;
+    private final ArrayBlockingQueue<Frame> small;
+    private final ArrayBlockingQueue<Frame> large;
+    private final LongAdder allocations = new LongAdder();
+
+    /**
+     * Создает пул
+     * @param smallSize размер малого кадра
+     * @param smallCount сколько малых кадров хранить
+     * @param largeSize размер крупного кадра
+     * @param largeCount сколько крупных кадров хранить
+     */
+    public FramePool(int smallSize, int smallCount, int largeSize, int largeCount) {
+        this.smallSize = smallSize;
+        this.largeSize = largeSize;
+        this.small = new ArrayBlockingQueue<>(smallCount);
+        this.large = new ArrayBlockingQueue<>(largeCount);
+    }
+
+    /**
+     * Получение кадра для записи
+     * @param size необходимый размер в байтах
+     * @return кадр, буфер которого в режиме записи
+     */
+    public Frame acquire(int size) {
+        Frame frame;
+        if (size <= smallSize) {
+            frame = small.poll();
+            if (frame == null) frame = allocate(smallSize);
+        } else if (size <= largeSize) {
+            frame = large.poll();
+            if (frame == null) frame = allocate(largeSize);
+        } else {
+            allocations.increment();
+            frame = new Frame(ByteBuffer.allocate(size), null);
+        }
+        frame.reset();
+        return frame;
+    }
+
+    /**
+     * Объединение нескольких кадров в один, чтобы отправить их одной записью
+     * @param frames кадры в режиме чтения; освобождаются после копирования
+     * @return общий кадр (или единственный кадр списка)
+     */
+    public Frame join(List<Frame> frames) {
+        if (frames.size() == 1) return frames.get(0);
+        int size = 0;
+        for (Frame frame : frames) {
+            size += frame.buffer().remaining();
+        }
+        Frame joined = acquire(size);
+        for (Frame frame : frames) {
+            joined.buffer().put(frame.buffer());
+            frame.release();
+        }
+        return joined.flip();
+    }
+
+    private Frame allocate(int size) {
+        allocations.increment();
+        return new Frame(ByteBuffer.allocateDirect(size), this);
+    }
+
+    void recycle(Frame frame) {
+        (frame.buffer().capacity() == smallSize ? small : large).offer(frame);
+    }
+
+    /**
+     * Количество кадров, созданных заново (а не взятых из пула)
+     * @return счетчик выделений
+     */
+    public long getAllocationCount() {
+        return allocations.sum();
+    }
+}
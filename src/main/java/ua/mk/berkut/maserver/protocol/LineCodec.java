@@ -0,0 +1,265 @@
+package ua.mk.berkut.maserver.protocol;
+
+import ua.mk.berkut.maserver.db.User;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Кодек строкового протокола без промежуточных строк и массивов.
+ * Входящие сообщения разбираются прямо в буфере чтения в {@link ChatMessageView},
+ * исходящие строки кодируются в кадры из {@link FramePool#SHARED}.
+ * Разбор повторяет поведение {@code String.split(";")}: пустые поля в конце строки отбрасываются
+ */
+public final class LineCodec implements Codec {
+    /**
+     * Кодек текстовых подключений
+     */
+    public static final LineCodec TEXT = new LineCodec();
+
+    private static final byte SEPARATOR = ';';
+    private static final byte[] CHAT_PREFIX = {'>', '>', '>'};
+    private static final byte[] ROOM_PREFIX = {'#', '#', '#'};
+    private static final byte[] LIST_BORDER = {'<', '<', '<', '\n'};
+
+    private LineCodec() {
+    }
+
+    @Override
+    public Frame status(String text) {
+        return line(text);
+    }
+
+    @Override
+    public Frame chat(User sender, ByteSlice text) {
+        String login = sender.getLogin();
+        Frame frame = FramePool.SHARED.acquire(2 * CHAT_PREFIX.length + Utf8.length(login) + text.length() + 1);
+        ByteBuffer buffer = frame.buffer();
+        buffer.put(CHAT_PREFIX);
+        Utf8.encode(login, buffer);
+        buffer.put(CHAT_PREFIX);
+        text.copyTo(buffer);
+        buffer.put((byte) '\n');
+        return frame.flip();
+    }
+
+    @Override
+    public Frame relay(ChatMessageView message) {
+        return chat(message);
+    }
+
+    @Override
+    public Frame relay(String message, int senderFrom, int senderTo, int textFrom, int textTo) {
+        return chat(message, senderFrom, senderTo, message, textFrom, textTo);
+    }
+
+    /**
+     * Сообщение в формате {@code ###комната>>>отправитель>>>текст}
+     */
+    @Override
+    public Frame room(String room, User sender, ByteSlice text) {
+        String login = sender.getLogin();
+        int size = ROOM_PREFIX.length + Utf8.length(room) + 2 * CHAT_PREFIX.length + Utf8.length(login)
+                + text.length() + 1;
+        Frame frame = FramePool.SHARED.acquire(size);
+        ByteBuffer buffer = frame.buffer();
+        buffer.put(ROOM_PREFIX);
+        Utf8.encode(room, buffer);
+        buffer.put(CHAT_PREFIX);
+        Utf8.encode(login, buffer);
+        buffer.put(CHAT_PREFIX);
+        text.copyTo(buffer);
+        buffer.put((byte) '\n');
+        return frame.flip();
+    }
+
+    /**
+     * Список в формате {@code <<<}, строки {@code id;username;login}, {@code <<<}
+     */
+    @Override
+    public Frame friends(List<User> users) {
+        int size = 2 * LIST_BORDER.length;
+        for (User user : users) {
+            size += userLength("", user);
+        }
+        Frame frame = FramePool.SHARED.acquire(size);
+        ByteBuffer buffer = frame.buffer();
+        buffer.put(LIST_BORDER);
+        for (User user : users) {
+            putUser("", user, buffer);
+        }
+        buffer.put(LIST_BORDER);
+        return frame.flip();
+    }
+
+    /**
+     * Уведомление {@code <<<+id;username;login} или {@code <<<-id;username;login}
+     */
+    @Override
+    public Frame presence(boolean online, User user) {
+        return user(online ? "<<<+" : "<<<-", user);
+    }
+
+    /**
+     * Разбор сообщения {@code получатель;отправитель;текст}
+     * @param buffer буфер с байтами строки
+     * @param offset начало строки (абсолютный индекс)
+     * @param length длина строки без перевода строки
+     * @param view представление, которое настраивается на поля строки
+     * @return true, если в строке ровно три поля
+     */
+    public static boolean parseChat(ByteBuffer buffer, int offset, int length, ChatMessageView view) {
+        int end = offset + length;
+        while (end > offset && buffer.get(end - 1) == SEPARATOR) end--;
+        int first = -1;
+        int second = -1;
+        for (int i = offset; i < end; i++) {
+            if (buffer.get(i) != SEPARATOR) continue;
+            if (first < 0) first = i;
+            else if (second < 0) second = i;
+            else return false;
+        }
+        if (second < 0) return false;
+        view.receiver().set(buffer, offset, first - offset);
+        view.sender().set(buffer, first + 1, second - first - 1);
+        view.text().set(buffer, second + 1, end - second - 1);
+        return true;
+    }
+
+    /**
+     * Кодирование строки протокола
+     * @param line строка без перевода строки
+     * @return кадр, завершенный переводом строки
+     */
+    public static Frame line(String line) {
+        Frame frame = FramePool.SHARED.acquire(Utf8.length(line) + 1);
+        ByteBuffer buffer = frame.buffer();
+        Utf8.encode(line, buffer);
+        buffer.put((byte) '\n');
+        return frame.flip();
+    }
+
+    /**
+     * Кодирование сообщения для получателя: {@code >>>отправитель>>>текст}
+     * @param sender от кого
+     * @param text текст сообщения
+     * @return кадр, завершенный переводом строки
+     */
+    public static Frame chat(CharSequence sender, CharSequence text) {
+        return chat(sender, 0, sender.length(), text, 0, text.length());
+    }
+
+    /**
+     * Кодирование сообщения для получателя из частей строк
+     * @param sender строка, содержащая отправителя
+     * @param senderFrom начало отправителя
+     * @param senderTo конец отправителя (не включая)
+     * @param text строка, содержащая текст
+     * @param textFrom начало текста
+     * @param textTo конец текста (не включая)
+     * @return кадр, завершенный переводом строки
+     */
+    public static Frame chat(CharSequence sender, int senderFrom, int senderTo,
+                             CharSequence text, int textFrom, int textTo) {
+        int size = 2 * CHAT_PREFIX.length + Utf8.length(sender, senderFrom, senderTo)
+                + Utf8.length(text, textFrom, textTo) + 1;
+        Frame frame = FramePool.SHARED.acquire(size);
+        ByteBuffer buffer = frame.buffer();
+        buffer.put(CHAT_PREFIX);
+        Utf8.encode(sender, senderFrom, senderTo, buffer);
+        buffer.put(CHAT_PREFIX);
+        Utf8.encode(text, textFrom, textTo, buffer);
+        buffer.put((byte) '\n');
+        return frame.flip();
+    }
+
+    /**
+     * Кодирование разобранного сообщения для получателя байт в байт, без декодирования
+     * @param view сообщение из буфера чтения
+     * @return кадр, завершенный переводом строки
+     */
+    public static Frame chat(ChatMessageView view) {
+        int size = 2 * CHAT_PREFIX.length + view.sender().length() + view.text().length() + 1;
+        Frame frame = FramePool.SHARED.acquire(size);
+        ByteBuffer buffer = frame.buffer();
+        buffer.put(CHAT_PREFIX);
+        view.sender().copyTo(buffer);
+        buffer.put(CHAT_PREFIX);
+        view.text().copyTo(buffer);
+        buffer.put((byte) '\n');
+        return frame.flip();
+    }
+
+    /**
+     * Кодирование информации о пользователе: {@code префикс id;username;login}
+     * @param prefix начало строки (может быть пустым)
+     * @param user пользователь
+     * @return кадр, завершенный переводом строки
+     */
+    public static Frame user(String prefix, User user) {
+        Frame frame = FramePool.SHARED.acquire(userLength(prefix, user));
+        putUser(prefix, user, frame.buffer());
+        return frame.flip();
+    }
+
+    private static int userLength(String prefix, User user) {
+        return Utf8.length(prefix) + digits(user.getId()) + Utf8.length(user.getUsername())
+                + Utf8.length(user.getLogin()) + 3;
+    }
+
+    private static void putUser(String prefix, User user, ByteBuffer buffer) {
+        Utf8.encode(prefix, buffer);
+        putInt(user.getId(), buffer);
+        buffer.put(SEPARATOR);
+        Utf8.encode(user.getUsername(), buffer);
+        buffer.put(SEPARATOR);
+        Utf8.encode(user.getLogin(), buffer);
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * Разбор даты из трех групп цифр, разделенных любыми другими символами (например, 2000-01-31)
+     * @param s строка с датой
+     * @return дату
+     * @throws IllegalArgumentException если в строке нет трех групп цифр
+     * @throws java.time.DateTimeException если дата не существует
+     */
+    public static LocalDate parseDate(CharSequence s) {
+        int[] parts = new int[3];
+        int count = 0;
+        int i = 0;
+        int len = s.length();
+        while (count < parts.length && i < len) {
+            int start = i;
+            int value = 0;
+            while (i < len && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+                value = value * 10 + s.charAt(i++) - '0';
+            }
+            if (i == start) throw new IllegalArgumentException("Bad date: " + s);
+            parts[count++] = value;
+            i++; // разделитель
+        }
+        if (count < parts.length) throw new IllegalArgumentException("Bad date: " + s);
+        return LocalDate.of(parts[0], parts[1], parts[2]);
+    }
+
+    private static int digits(int value) {
+        int n = value < 0 ? 2 : 1;
+        for (long v = Math.abs((long) value); v >= 10; v /= 10) n++;
+        return n;
+    }
+
+    private static void putInt(int value, ByteBuffer buffer) {
+        long v = value;
+        if (v < 0) {
+            buffer.put((byte) '-');
+            v = -v;
+        }
+        long div = 1;
+        while (div * 10 <= v) div *= 10;
+        for (; div > 0; div /= 10) {
+            buffer.put((byte) ('0' + v / div % 10));
+        }
+    }
+}
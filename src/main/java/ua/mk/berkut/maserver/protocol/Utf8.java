@@ -0,0 +1,87 @@
+package ua.mk.berkut.maserver.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Кодирование строк в UTF-8 прямо в буфер, без промежуточного массива байт
+ */
+public final class Utf8 {
+
+    private Utf8() {
+    }
+
+    /**
+     * Длина строки в UTF-8
+     * @param s строка
+     * @return количество байт
+     */
+    public static int length(CharSequence s) {
+        return length(s, 0, s.length());
+    }
+
+    /**
+     * Длина части строки в UTF-8
+     * @param s строка
+     * @param from начало части
+     * @param to конец части (не включая)
+     * @return количество байт
+     */
+    public static int length(CharSequence s, int from, int to) {
+        int n = 0;
+        for (int i = from, len = to; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) n++;
+            else if (c < 0x800) n += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                n += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) n++;
+            else n += 3;
+        }
+        return n;
+    }
+
+    /**
+     * Запись строки в буфер
+     * @param s строка
+     * @param target буфер в режиме записи с достаточным местом ({@link #length(CharSequence)})
+     */
+    public static void encode(CharSequence s, ByteBuffer target) {
+        encode(s, 0, s.length(), target);
+    }
+
+    /**
+     * Запись части строки в буфер
+     * @param s строка
+     * @param from начало части
+     * @param to конец части (не включая)
+     * @param target буфер в режиме записи с достаточным местом
+     */
+    public static void encode(CharSequence s, int from, int to, ByteBuffer target) {
+        for (int i = from, len = to; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                target.put((byte) c);
+            } else if (c < 0x800) {
+                target.put((byte) (0xC0 | c >> 6));
+                target.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                target.put((byte) (0xF0 | cp >> 18));
+                target.put((byte) (0x80 | cp >> 12 & 0x3F));
+                target.put((byte) (0x80 | cp >> 6 & 0x3F));
+                target.put((byte) (0x80 | cp & 0x3F));
+            } else {
+                // одиночный суррогат кодируется как '?', как это делает String.getBytes
+                if (Character.isSurrogate(c)) c = '?';
+                if (c < 0x80) {
+                    target.put((byte) c);
+                    continue;
+                }
+                target.put((byte) (0xE0 | c >> 12));
+                target.put((byte) (0x80 | c >> 6 & 0x3F));
+                target.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+}
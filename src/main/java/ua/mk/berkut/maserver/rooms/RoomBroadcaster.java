@@ -0,0 +1,196 @@
+package ua.mk.berkut.maserver.rooms;
+
+import ua.mk.berkut.maserver.clients.Client;
+import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.online.OnlineRegistry;
+import ua.mk.berkut.maserver.protocol.BinaryCodec;
+import ua.mk.berkut.maserver.protocol.ByteSlice;
+import ua.mk.berkut.maserver.protocol.Codec;
+import ua.mk.berkut.maserver.protocol.Frame;
+import ua.mk.berkut.maserver.protocol.LineCodec;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Рассылка сообщений участникам комнаты. Сообщение кодируется один раз для каждого протокола,
+ * и каждый участник получает окно над теми же байтами ({@link Frame#share()}).
+ * Небольшие комнаты обслуживаются в потоке отправителя, крупные - параллельно несколькими
+ * "полосами": участник всегда обслуживается полосой id % число полос, а каждая полоса - один поток,
+ * поэтому порядок сообщений для участника сохраняется. Пока в полосах есть сообщения комнаты,
+ * следующие сообщения в нее тоже идут через полосы, даже если комната стала меньше порога, -
+ * иначе сообщение из потока отправителя обогнало бы предыдущее, еще ждущее в полосе.
+ * Для каждого диапазона размеров комнат собирается время рассылки - от получения сообщения
+ * до постановки кадра в очередь последнего участника
+ */
+public class RoomBroadcaster {
+    private static final Codec[] CODECS = {LineCodec.TEXT, BinaryCodec.BINARY};
+    /**
+     * Верхние границы диапазонов размеров комнат для статистики
+     */
+    private static final int[] BUCKET_LIMITS = {10, 100, 1_000, 10_000, Integer.MAX_VALUE};
+
+    private final OnlineRegistry registry;
+    private final RoomRegistry rooms;
+    private final int parallelThreshold;
+    private final ExecutorService[] lanes;
+    /**
+     * Число сообщений комнаты, рассылка которых в полосах еще не завершена
+     */
+    private final ConcurrentHashMap<String, Integer> inLanes = new ConcurrentHashMap<>();
+
+    private final LongAdder[] counts = new LongAdder[BUCKET_LIMITS.length];
+    private final LongAdder[] totalNanos = new LongAdder[BUCKET_LIMITS.length];
+    private final AtomicLong[] maxNanos = new AtomicLong[BUCKET_LIMITS.length];
+
+    /**
+     * Создает рассыльщик
+     * @param registry реестр подключений online
+     * @param rooms индекс участников комнат
+     * @param laneCount число потоков для рассылки в крупные комнаты
+     * @param parallelThreshold с какого числа участников рассылка выполняется параллельно
+     */
+    public RoomBroadcaster(OnlineRegistry registry, RoomRegistry rooms, int laneCount, int parallelThreshold) {
+        this.registry = registry;
+        this.rooms = rooms;
+        this.parallelThreshold = parallelThreshold;
+        this.lanes = new ExecutorService[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            String name = "fanout-" + i;
+            lanes[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        for (int i = 0; i < BUCKET_LIMITS.length; i++) {
+            counts[i] = new LongAdder();
+            totalNanos[i] = new LongAdder();
+            maxNanos[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Рассылка сообщения всем участникам комнаты, кроме отправителя
+     * @param room название комнаты
+     * @param sender отправитель; должен быть участником комнаты
+     * @param text текст сообщения в UTF-8
+     * @return false, если отправитель не состоит в комнате
+     */
+    public boolean broadcast(String room, User sender, ByteSlice text) {
+        long start = System.nanoTime();
+        int[] members = rooms.members(room);
+        if (Arrays.binarySearch(members, sender.getId()) < 0) return false;
+        Frame[] frames = new Frame[CODECS.length];
+        for (int i = 0; i < CODECS.length; i++) {
+            frames[i] = CODECS[i].room(room, sender, text);
+        }
+        if (lanes.length < 2 || members.length < parallelThreshold && !inLanes.containsKey(room)) {
+            deliver(members, sender.getId(), frames, 0, 1);
+            finish(members.length, start, frames);
+            return true;
+        }
+        inLanes.merge(room, 1, Integer::sum);
+        AtomicInteger remaining = new AtomicInteger(lanes.length);
+        for (int lane = 0; lane < lanes.length; lane++) {
+            int index = lane;
+            lanes[lane].execute(() -> {
+                try {
+                    deliver(members, sender.getId(), frames, index, lanes.length);
+                } finally {
+                    if (remaining.decrementAndGet() == 0) {
+                        inLanes.computeIfPresent(room, (name, count) -> count == 1 ? null : count - 1);
+                        finish(members.length, start, frames);
+                    }
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Постановка кадра в очереди участников одной полосы
+     * @param members участники комнаты
+     * @param senderId id отправителя, которому сообщение не отправляется
+     * @param frames кадры для каждого протокола
+     * @param lane номер полосы
+     * @param laneCount число полос
+     */
+    private void deliver(int[] members, int senderId, Frame[] frames, int lane, int laneCount) {
+        for (int id : members) {
+            if (id == senderId || id % laneCount != lane) continue;
+            Client client = registry.findById(id);
+            if (client == null) continue;
+            Codec codec = client.codec();
+            for (int i = 0; i < CODECS.length; i++) {
+                if (CODECS[i] == codec) {
+                    client.sendFrame(frames[i].share());
+                    break;
+                }
+            }
+        }
+    }
+
+    private void finish(int size, long start, Frame[] frames) {
+        for (Frame frame : frames) {
+            frame.release();
+        }
+        long nanos = System.nanoTime() - start;
+        int bucket = 0;
+        while (size > BUCKET_LIMITS[bucket]) bucket++;
+        counts[bucket].increment();
+        totalNanos[bucket].add(nanos);
+        maxNanos[bucket].accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Количество диапазонов размеров комнат в статистике
+     * @return число диапазонов
+     */
+    public int getBucketCount() {
+        return BUCKET_LIMITS.length;
+    }
+
+    /**
+     * Название диапазона размеров комнат, например {@code 11-100}
+     * @param bucket номер диапазона
+     * @return название
+     */
+    public String getBucketLabel(int bucket) {
+        int from = bucket == 0 ? 1 : BUCKET_LIMITS[bucket - 1] + 1;
+        return BUCKET_LIMITS[bucket] == Integer.MAX_VALUE ? from + "+" : from + "-" + BUCKET_LIMITS[bucket];
+    }
+
+    /**
+     * Количество рассылок в комнаты данного размера
+     * @param bucket номер диапазона
+     * @return счетчик рассылок
+     */
+    public long getCount(int bucket) {
+        return counts[bucket].sum();
+    }
+
+    /**
+     * Среднее время рассылки в комнаты данного размера
+     * @param bucket номер диапазона
+     * @return время в мкс
+     */
+    public double getAverageMicros(int bucket) {
+        long count = counts[bucket].sum();
+        return count == 0 ? 0 : totalNanos[bucket].sum() / 1e3 / count;
+    }
+
+    /**
+     * Максимальное время рассылки в комнаты данного размера
+     * @param bucket номер диапазона
+     * @return время в мкс
+     */
+    public double getMaxMicros(int bucket) {
+        return maxNanos[bucket].get() / 1e3;
+    }
+}
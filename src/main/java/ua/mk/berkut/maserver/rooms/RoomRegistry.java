@@ -0,0 +1,117 @@
+package ua.mk.berkut.maserver.rooms;
+
+import ua.mk.berkut.maserver.friends.SortedIntArrays;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Индекс участников комнат. Для каждой комнаты хранится отсортированный массив id участников,
+ * который заменяется целиком при входе и выходе, поэтому рассылка читает снимок без блокировок.
+ * Участие действует, пока пользователь online: при отключении он выходит из всех комнат,
+ * а пустая комната удаляется
+ */
+public class RoomRegistry {
+    /**
+     * Максимальная длина названия комнаты
+     */
+    private static final int MAX_NAME = 64;
+
+    private final ConcurrentHashMap<String, int[]> members = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Set<String>> roomsByUser = new ConcurrentHashMap<>();
+
+    /**
+     * Проверка названия комнаты: от 1 до 64 символов, без ';', '>' и управляющих символов
+     * @param room название
+     * @return true, если название допустимо
+     */
+    public static boolean isValidName(String room) {
+        if (room.isEmpty() || room.length() > MAX_NAME) return false;
+        for (int i = 0; i < room.length(); i++) {
+            char c = room.charAt(i);
+            if (c == ';' || c == '>' || Character.isISOControl(c)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Вход пользователя в комнату; комната создается при первом входе
+     * @param room название комнаты
+     * @param userId id пользователя
+     * @return false, если название комнаты недопустимо
+     */
+    public boolean join(String room, int userId) {
+        if (!isValidName(room)) return false;
+        roomsByUser.computeIfAbsent(userId, id -> ConcurrentHashMap.newKeySet()).add(room);
+        members.compute(room, (name, ids) -> SortedIntArrays.insert(ids == null ? SortedIntArrays.EMPTY : ids, userId));
+        return true;
+    }
+
+    /**
+     * Выход пользователя из комнаты
+     * @param room название комнаты
+     * @param userId id пользователя
+     */
+    public void leave(String room, int userId) {
+        Set<String> rooms = roomsByUser.get(userId);
+        if (rooms != null) rooms.remove(room);
+        members.computeIfPresent(room, (name, ids) -> {
+            int[] left = SortedIntArrays.remove(ids, userId);
+            return left.length == 0 ? null : left;
+        });
+    }
+
+    /**
+     * Выход отключившегося пользователя из всех комнат
+     * @param userId id пользователя
+     */
+    public void leaveAll(int userId) {
+        Set<String> rooms = roomsByUser.remove(userId);
+        if (rooms == null) return;
+        for (String room : rooms) {
+            members.computeIfPresent(room, (name, ids) -> {
+                int[] left = SortedIntArrays.remove(ids, userId);
+                return left.length == 0 ? null : left;
+            });
+        }
+    }
+
+    /**
+     * Снимок участников комнаты
+     * @param room название комнаты
+     * @return отсортированный массив id участников; его нельзя изменять
+     */
+    public int[] members(String room) {
+        return members.getOrDefault(room, SortedIntArrays.EMPTY);
+    }
+
+    /**
+     * Проверка участия в комнате
+     * @param room название комнаты
+     * @param userId id пользователя
+     * @return true, если пользователь в комнате
+     */
+    public boolean isMember(String room, int userId) {
+        return Arrays.binarySearch(members(room), userId) >= 0;
+    }
+
+    /**
+     * Комнаты пользователя
+     * @param userId id пользователя
+     * @return неизменяемое представление названий комнат
+     */
+    public Set<String> roomsOf(int userId) {
+        Set<String> rooms = roomsByUser.get(userId);
+        return rooms == null ? Collections.emptySet() : Collections.unmodifiableSet(rooms);
+    }
+
+    /**
+     * Количество непустых комнат
+     * @return число комнат
+     */
+    public int size() {
+        return members.size();
+    }
+}
@@ -0,0 +1,105 @@
+package ua.mk.berkut.maserver.tools;
+
+import ua.mk.berkut.maserver.clients.Client;
+import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.online.MessageRouter;
+import ua.mk.berkut.maserver.online.OnlineRegistry;
+import ua.mk.berkut.maserver.protocol.ChatMessageView;
+import ua.mk.berkut.maserver.protocol.Frame;
+import ua.mk.berkut.maserver.protocol.FramePool;
+import ua.mk.berkut.maserver.protocol.LineCodec;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+/**
+ * Объем памяти, выделяемой на одно пересылаемое сообщение.
+ * Сравнивается прежний путь (декодирование строки, split, конкатенация, getBytes)
+ * и кодек {@link LineCodec}: разбор в буфере чтения, поиск получателя по байтам логина
+ * и кодирование в кадр из пула. Замер - по счетчику выделенной памяти текущего потока.
+ * Запуск: {@code java -cp target/classes ua.mk.berkut.maserver.tools.AllocationBenchmark [users] [messages]}
+ */
+public class AllocationBenchmark {
+
+    public static void main(String[] args) {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        OnlineRegistry registry = new OnlineRegistry();
+        byte[][] lines = new byte[users][];
+        for (int i = 0; i < users; i++) {
+            registry.add(new SinkClient(new User(i + 1, "user" + i, "", "User " + i, LocalDate.now(), "", "")));
+            lines[i] = ("user" + i + ";sender" + i + ";привет, как дела?").getBytes(StandardCharsets.UTF_8);
+        }
+        MessageRouter router = new MessageRouter(registry);
+
+        // буфер чтения подключения, в который "приходят" строки
+        ByteBuffer in = ByteBuffer.allocateDirect(16 * 1024);
+        byte[] lineBytes = new byte[16 * 1024];
+        ChatMessageView view = new ChatMessageView();
+
+        Path legacy = i -> {
+            byte[] line = lines[i];
+            in.clear();
+            in.put(line).flip();
+            in.get(lineBytes, 0, line.length);
+            String message = new String(lineBytes, 0, line.length, StandardCharsets.UTF_8);
+            String[] split = message.split(";");
+            Client client = registry.findByLogin(split[0]);
+            byte[] frame = (">>>" + split[1] + ">>>" + split[2] + "\n").getBytes(StandardCharsets.UTF_8);
+            client.sendFrame(Frame.wrap(ByteBuffer.wrap(frame)));
+        };
+        Path codec = i -> {
+            byte[] line = lines[i];
+            in.clear();
+            in.put(line).flip();
+            if (LineCodec.parseChat(in, 0, line.length, view)) router.route(view);
+        };
+
+        // прогрев JIT и пула кадров
+        measure(legacy, users, messages);
+        measure(codec, users, messages);
+
+        System.out.println("path\tbytes/msg");
+        System.out.printf("legacy\t%.1f%n", measure(legacy, users, messages));
+        System.out.printf("codec\t%.1f%n", measure(codec, users, messages));
+        System.out.println("frames allocated by pool: " + FramePool.SHARED.getAllocationCount());
+    }
+
+    private interface Path {
+        void process(int i);
+    }
+
+    private static double measure(Path path, int users, int messages) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int n = 0; n < messages; n++) {
+            path.process(n % users);
+        }
+        return (threads.getThreadAllocatedBytes(threadId) - before) / (double) messages;
+    }
+
+    /**
+     * Клиент без сокета: кадр считается отправленным сразу
+     */
+    private static class SinkClient implements Client {
+        private final User user;
+
+        SinkClient(User user) {
+            this.user = user;
+        }
+
+        @Override
+        public User getUser() {
+            return user;
+        }
+
+        @Override
+        public void sendFrame(Frame frame) {
+            frame.release();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package ua.mk.berkut.maserver.tools;
+
+import ua.mk.berkut.maserver.Main;
+import ua.mk.berkut.maserver.clients.ClientThread;
+import ua.mk.berkut.maserver.clients.ConnectionExecutors;
+import ua.mk.berkut.maserver.clients.NioServer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Сравнение режимов обслуживания подключений (thread, virtual, nio) по числу
+ * удерживаемых соединений и расходу памяти.
+ * Открывает заданное число подключений к серверу в этом же процессе; каждое подключение
+ * получает {@code Server Ok} и ждет входа, как клиент, который держит сессию открытой.
+ * Каждый режим надо запускать в отдельной JVM:
+ * {@code java -cp target/classes ua.mk.berkut.maserver.tools.ConnectionModeComparison virtual 10000}
+ */
+public class ConnectionModeComparison {
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "thread";
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 12345;
+
+        // сервер без БД: до входа пользователя сессия к ней не обращается
+        Main main = new Main();
+        startServer(main, mode, port);
+
+        long heapBefore = usedHeap();
+        long rssBefore = rss();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        long start = System.nanoTime();
+        List<SocketChannel> channels = new ArrayList<>(count);
+        ByteBuffer greeting = ByteBuffer.allocate(64);
+        for (int i = 0; i < count; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+            greeting.clear();
+            while (greeting.position() == 0 || greeting.get(greeting.position() - 1) != '\n') {
+                if (channel.read(greeting) < 0) throw new IOException("Connection closed by server");
+            }
+            channels.add(channel);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("mode=%s connections=%d connectMs=%d platformThreads=+%d heapMB=+%.1f rssMB=+%.1f%n",
+                mode, channels.size(), elapsed / 1_000_000,
+                ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore,
+                (usedHeap() - heapBefore) / 1048576.0,
+                (rss() - rssBefore) / 1048576.0);
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        System.exit(0);
+    }
+
+    private static void startServer(Main main, String mode, int port) throws Exception {
+        if ("nio".equals(mode)) {
+            NioServer server = new NioServer(main, port, Runtime.getRuntime().availableProcessors(), 1);
+            Thread thread = new Thread(() -> {
+                try {
+                    server.run();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+            Thread.sleep(200);
+            return;
+        }
+        Executor executor = ConnectionExecutors.forMode(mode);
+        ServerSocket serverSocket = new ServerSocket(port, 1024);
+        Thread acceptor = new Thread(() -> {
+            try {
+                //noinspection InfiniteLoopStatement
+                for (; ; ) {
+                    Socket socket = serverSocket.accept();
+                    executor.execute(new ClientThread(socket, main, executor));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Резидентная память процесса (только Linux)
+     * @return размер в байтах или 0, если недоступен
+     */
+    private static long rss() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+                }
+            }
+        } catch (IOException ignored) {
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,91 @@
+package ua.mk.berkut.maserver.tools;
+
+import ua.mk.berkut.maserver.clients.Client;
+import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.online.OnlineRegistry;
+import ua.mk.berkut.maserver.protocol.ByteSlice;
+import ua.mk.berkut.maserver.protocol.Frame;
+import ua.mk.berkut.maserver.protocol.FramePool;
+import ua.mk.berkut.maserver.rooms.RoomBroadcaster;
+import ua.mk.berkut.maserver.rooms.RoomRegistry;
+
+import java.time.LocalDate;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Время рассылки в комнаты разного размера. Участники - клиенты без сокета, которые сразу
+ * освобождают полученный кадр. Печатает статистику {@link RoomBroadcaster} по размерам комнат.
+ * Запуск: {@code java -cp target/classes ua.mk.berkut.maserver.tools.FanOutBenchmark [messages] [lanes] [parallel]}
+ */
+public class FanOutBenchmark {
+    private static final int[] ROOM_SIZES = {10, 100, 1_000, 10_000, 50_000};
+
+    public static void main(String[] args) {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int lanes = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int parallel = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+
+        int users = ROOM_SIZES[ROOM_SIZES.length - 1];
+        OnlineRegistry registry = new OnlineRegistry();
+        LongAdder received = new LongAdder();
+        User[] all = new User[users];
+        for (int i = 0; i < users; i++) {
+            all[i] = new User(i + 1, "user" + i, "", "User " + i, LocalDate.now(), "", "");
+            registry.add(new SinkClient(all[i], received));
+        }
+        RoomRegistry rooms = new RoomRegistry();
+        for (int size : ROOM_SIZES) {
+            for (int i = 0; i < size; i++) {
+                rooms.join("room" + size, all[i].getId());
+            }
+        }
+        RoomBroadcaster broadcaster = new RoomBroadcaster(registry, rooms, lanes, parallel);
+        ByteSlice text = ByteSlice.of("hello, room");
+
+        // следующее сообщение отправляется после доставки предыдущего, чтобы замерять рассылку, а не очередь
+        long expected = 0;
+        for (int size : ROOM_SIZES) {
+            for (int m = 0; m < messages; m++) {
+                broadcaster.broadcast("room" + size, all[0], text);
+                expected += size - 1;
+                while (received.sum() < expected) {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+
+        System.out.println("lanes=" + lanes + " parallel from " + parallel + " members");
+        System.out.println("room size\tmessages\tavg us\tmax us\tus per member");
+        for (int b = 0; b < broadcaster.getBucketCount(); b++) {
+            if (broadcaster.getCount(b) == 0) continue;
+            System.out.printf("%s\t%d\t%.1f\t%.1f\t%.3f%n", broadcaster.getBucketLabel(b), broadcaster.getCount(b),
+                    broadcaster.getAverageMicros(b), broadcaster.getMaxMicros(b),
+                    broadcaster.getAverageMicros(b) / ROOM_SIZES[b]);
+        }
+        System.out.println("frames allocated by pool: " + FramePool.SHARED.getAllocationCount());
+    }
+
+    /**
+     * Клиент без сокета: кадр считается отправленным сразу
+     */
+    private static class SinkClient implements Client {
+        private final User user;
+        private final LongAdder received;
+
+        SinkClient(User user, LongAdder received) {
+            this.user = user;
+            this.received = received;
+        }
+
+        @Override
+        public User getUser() {
+            return user;
+        }
+
+        @Override
+        public void sendFrame(Frame frame) {
+            frame.release();
+            received.increment();
+        }
+    }
+}
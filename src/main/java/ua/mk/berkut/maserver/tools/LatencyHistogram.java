@@ -0,0 +1,105 @@
+package ua.mk.berkut.maserver.tools;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Гистограмма задержек с логарифмически-линейными диапазонами, как в HdrHistogram:
+ * значения в микросекундах хранятся с точностью до двух значащих цифр (ошибка меньше 1%)
+ * в диапазоне от 1 мкс до нескольких часов, в массиве фиксированного размера.
+ * Запись без блокировок, из любого числа потоков
+ */
+public class LatencyHistogram {
+    /**
+     * Значений в диапазоне: до 127 - точно, дальше каждый диапазон вдвое шире предыдущего
+     */
+    private static final int SUB_BUCKETS = 128;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int SUB_BITS = 7;
+    private static final int MAX_SHIFT = 30;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_SHIFT + 2) * HALF);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Учет одного значения
+     * @param nanos задержка в наносекундах; отрицательные значения считаются нулем
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(index(micros));
+        total.incrementAndGet();
+        sum.addAndGet(micros);
+        max.accumulateAndGet(micros, Math::max);
+    }
+
+    /**
+     * Сброс всех значений (например, после прогрева)
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Количество значений
+     * @return счетчик
+     */
+    public long getCount() {
+        return total.get();
+    }
+
+    /**
+     * Среднее значение
+     * @return задержка в мс
+     */
+    public double getMeanMillis() {
+        long count = total.get();
+        return count == 0 ? 0 : sum.get() / 1000.0 / count;
+    }
+
+    /**
+     * Наибольшее значение
+     * @return задержка в мс
+     */
+    public double getMaxMillis() {
+        return max.get() / 1000.0;
+    }
+
+    /**
+     * Значение, которого не превышает заданная доля значений
+     * @param percentile процентиль, например 99.9
+     * @return верхнюю границу диапазона в мс
+     */
+    public double getPercentileMillis(double percentile) {
+        long count = total.get();
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upperBound(i), max.get()) / 1000.0;
+        }
+        return getMaxMillis();
+    }
+
+    private static int index(long micros) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(micros) - SUB_BITS);
+        if (shift > MAX_SHIFT) return (MAX_SHIFT + 2) * HALF - 1;
+        int sub = (int) (micros >>> shift);
+        return shift == 0 ? sub : shift * HALF + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / HALF - 1;
+        long sub = index - shift * HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,677 @@
+package ua.mk.berkut.maserver.tools;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Нагрузочный клиент: имитирует множество пользователей, работающих с сервером по текстовому протоколу
+ * ({@code Server Ok}, {@code register;}/{@code login;}, {@code +++}, {@code <<<}, {@code получатель;отправитель;текст},
+ * {@code >>>exit<<<}). Подключения обслуживаются несколькими неблокирующими потоками, поэтому десятки тысяч
+ * пользователей помещаются в один процесс.
+ * <p>
+ * Порядок работы: пользователи регистрируются (уже зарегистрированные входят), добавляют друзей по заданной
+ * форме графа, после прогрева идет замер. Каждый пользователь отправляет сообщения друзьям (без друзей - случайным
+ * пользователям) в случайные моменты (пуассоновский поток), иногда запрашивает список друзей online
+ * и переподключается. В тексте сообщения - запланированное время отправки, поэтому задержка отставания
+ * самого клиента тоже учитывается (без "coordinated omission"). Сообщения, доставленные из хранилища
+ * после переподключения получателя, учитываются с полной задержкой.
+ * <p>
+ * Параметры - {@code ключ=значение}: host, port, users, prefix (начало логинов), threads,
+ * graph (none, ring, random, cliques, hubs), friends (друзей у пользователя), rate (сообщений в секунду
+ * на пользователя), size (байт текста), list.rate (запросов {@code <<<} в секунду на пользователя),
+ * churn (переподключений в секунду на пользователя), churn.pause (мс без подключения), resume (true -
+ * переподключение по токену возобновления сессии), register, friends.setup, connect.rate (подключений в секунду),
+ * local.addresses (сколько адресов 127.0.0.x использовать - по 28 тыс. портов на адрес),
+ * warmup и duration (с).
+ * <p>
+ * Сервер для замера: {@code auth.rate.address=0} (все подключения с одного адреса), {@code auth.pbkdf2.iterations}
+ * поменьше, если пользователи регистрируются заново, и {@code ulimit -n} больше числа пользователей.
+ * Запуск: {@code java -cp target/classes ua.mk.berkut.maserver.tools.LoadGenerator users=20000 rate=0.5 graph=random friends=20}
+ */
+public class LoadGenerator {
+    private static final byte[] MESSAGE_PREFIX = ">>>".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_LINE = 16 * 1024;
+    /**
+     * Логинов в одной строке {@code +++}
+     */
+    private static final int FRIENDS_PER_LINE = 100;
+
+    private final String host;
+    private final int port;
+    private final int users;
+    private final String prefix;
+    private final int[][] friends;
+    private final double rate;
+    private final int size;
+    private final double listRate;
+    private final double churn;
+    private final long churnPauseNanos;
+    private final boolean resume;
+    private final boolean register;
+    private final int localAddresses;
+
+    private final LatencyHistogram messageLatency = new LatencyHistogram();
+    private final LatencyHistogram loginLatency = new LatencyHistogram();
+    private final LatencyHistogram listLatency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder logins = new LongAdder();
+    private final LongAdder loginFailures = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicInteger online = new AtomicInteger();
+
+    /**
+     * Идет трафик: пользователи подключились и добавили друзей
+     */
+    private volatile boolean traffic;
+
+    private LoadGenerator(Properties options) {
+        host = options.getProperty("host", "localhost");
+        port = Integer.parseInt(options.getProperty("port", "1234"));
+        users = Integer.parseInt(options.getProperty("users", "1000"));
+        prefix = options.getProperty("prefix", "load");
+        rate = Double.parseDouble(options.getProperty("rate", "1"));
+        size = Integer.parseInt(options.getProperty("size", "64"));
+        listRate = Double.parseDouble(options.getProperty("list.rate", "0.05"));
+        churn = Double.parseDouble(options.getProperty("churn", "0.001"));
+        churnPauseNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(options.getProperty("churn.pause", "500")));
+        resume = Boolean.parseBoolean(options.getProperty("resume", "false"));
+        register = Boolean.parseBoolean(options.getProperty("register", "true"));
+        localAddresses = Integer.parseInt(options.getProperty("local.addresses", "1"));
+        friends = buildGraph(options.getProperty("graph", "random"),
+                Integer.parseInt(options.getProperty("friends", "10")), users, new Random(42));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties options = new Properties();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator > 0) options.setProperty(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        new LoadGenerator(options).run(
+                Integer.parseInt(options.getProperty("threads", String.valueOf(Runtime.getRuntime().availableProcessors()))),
+                Integer.parseInt(options.getProperty("connect.rate", "2000")),
+                Boolean.parseBoolean(options.getProperty("friends.setup", "true")),
+                Integer.parseInt(options.getProperty("warmup", "10")),
+                Integer.parseInt(options.getProperty("duration", "60")));
+    }
+
+    private void run(int threads, int connectRate, boolean friendsSetup, int warmup, int duration) throws Exception {
+        Loop[] loops = new Loop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new Loop();
+            Thread thread = new Thread(loops[i], "load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Connection[] connections = new Connection[users];
+        for (int i = 0; i < users; i++) {
+            connections[i] = new Connection(i, loops[i % threads]);
+        }
+
+        // подключение с ограниченной частотой, чтобы не переполнить очередь приема сервера
+        long start = System.nanoTime();
+        for (int i = 0; i < users; i++) {
+            long due = start + TimeUnit.SECONDS.toNanos(i) / connectRate;
+            long wait = due - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            Connection connection = connections[i];
+            connection.loop.submit(connection::connect);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60 + users / Math.max(1, connectRate));
+        while (online.get() < users && System.nanoTime() < deadline) {
+            Thread.sleep(500);
+            System.out.printf("connecting: online %d of %d, login failures %d%n", online.get(), users, loginFailures.sum());
+        }
+        System.out.printf("connected %d users in %.1f s, login p50 %.2f ms, p99 %.2f ms%n", online.get(),
+                (System.nanoTime() - start) / 1e9, loginLatency.getPercentileMillis(50), loginLatency.getPercentileMillis(99));
+
+        if (friendsSetup) {
+            for (Connection connection : connections) {
+                connection.loop.submit(connection::addFriends);
+            }
+            // дружба записывается сервером в БД в фоне
+            Thread.sleep(3000);
+        }
+
+        traffic = true;
+        for (Connection connection : connections) {
+            connection.loop.submit(connection::scheduleTraffic);
+        }
+        report("warmup", warmup);
+        messageLatency.reset();
+        loginLatency.reset();
+        listLatency.reset();
+        long sentBefore = sent.sum();
+        long receivedBefore = received.sum();
+        long measureStart = System.nanoTime();
+        report("measure", duration);
+        double seconds = (System.nanoTime() - measureStart) / 1e9;
+        traffic = false;
+
+        System.out.println();
+        System.out.printf("users %d, threads %d, duration %.1f s%n", users, threads, seconds);
+        System.out.printf("sent %.0f msg/s, received %.0f msg/s, dropped by client %d%n",
+                (sent.sum() - sentBefore) / seconds, (received.sum() - receivedBefore) / seconds, dropped.sum());
+        System.out.printf("logins %d (resumed %d), login failures %d, reconnects %d, errors %d%n",
+                logins.sum(), resumed.sum(), loginFailures.sum(), reconnects.sum(), errors.sum());
+        System.out.println("latency\tcount\tmean\tp50\tp90\tp99\tp99.9\tp99.99\tmax (ms)");
+        print("message", messageLatency);
+        print("login", loginLatency);
+        print("list", listLatency);
+
+        for (Connection connection : connections) {
+            connection.loop.submit(connection::exit);
+        }
+        Thread.sleep(1000);
+    }
+
+    private void report(String phase, int seconds) throws InterruptedException {
+        long lastSent = sent.sum();
+        long lastReceived = received.sum();
+        for (int t = 1; t <= seconds; t++) {
+            Thread.sleep(1000);
+            long s = sent.sum();
+            long r = received.sum();
+            System.out.printf("%s %3d s: online %d, sent %d/s, received %d/s, p99 %.2f ms%n", phase, t, online.get(),
+                    s - lastSent, r - lastReceived, messageLatency.getPercentileMillis(99));
+            lastSent = s;
+            lastReceived = r;
+        }
+    }
+
+    private static void print(String name, LatencyHistogram histogram) {
+        System.out.printf("%s\t%d\t%.2f\t%.2f\t%.2f\t%.2f\t%.2f\t%.2f\t%.2f%n", name, histogram.getCount(),
+                histogram.getMeanMillis(), histogram.getPercentileMillis(50), histogram.getPercentileMillis(90),
+                histogram.getPercentileMillis(99), histogram.getPercentileMillis(99.9),
+                histogram.getPercentileMillis(99.99), histogram.getMaxMillis());
+    }
+
+    /**
+     * Граф взаимной дружбы заданной формы
+     * @param shape none - без друзей, ring - соседи по кругу, random - случайные пары, cliques - группы,
+     *              в которых все дружат со всеми, hubs - дружба с немногими популярными пользователями
+     * @param degree сколько друзей у пользователя (в среднем)
+     * @return отсортированные массивы номеров друзей для каждого пользователя
+     */
+    static int[][] buildGraph(String shape, int degree, int users, Random random) {
+        List<List<Integer>> lists = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            lists.add(new ArrayList<>());
+        }
+        int hubs = Math.max(1, (int) Math.sqrt(users));
+        for (int i = 0; i < users; i++) {
+            for (int k = 0; k < degree / 2; k++) {
+                int friend;
+                switch (shape) {
+                    case "ring":
+                        friend = (i + k + 1) % users;
+                        break;
+                    case "random":
+                        friend = random.nextInt(users);
+                        break;
+                    case "cliques":
+                        friend = i / (degree + 1) * (degree + 1) + (i % (degree + 1) + k + 1) % (degree + 1);
+                        break;
+                    case "hubs":
+                        friend = random.nextInt(hubs);
+                        break;
+                    default:
+                        continue;
+                }
+                if (friend == i || friend >= users) continue;
+                lists.get(i).add(friend);
+                lists.get(friend).add(i);
+            }
+        }
+        int[][] result = new int[users][];
+        for (int i = 0; i < users; i++) {
+            result[i] = lists.get(i).stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+        }
+        return result;
+    }
+
+    /**
+     * Поток, обслуживающий часть подключений: ожидание событий сокетов и запланированных действий
+     */
+    private final class Loop implements Runnable {
+        private final Selector selector;
+        private final PriorityQueue<Event> events = new PriorityQueue<>();
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+        private final byte[] line = new byte[MAX_LINE];
+
+        Loop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void submit(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void schedule(long time, Connection connection, int type) {
+            events.add(new Event(time, connection, connection.generation, type));
+        }
+
+        @Override
+        public void run() {
+            //noinspection InfiniteLoopStatement
+            for (; ; ) {
+                try {
+                    Event next = events.peek();
+                    long wait = next == null ? 1000 : TimeUnit.NANOSECONDS.toMillis(next.time - System.nanoTime());
+                    if (!tasks.isEmpty()) wait = -1;
+                    if (wait > 0) selector.select(wait);
+                    else selector.selectNow();
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Connection connection = (Connection) key.attachment();
+                        if (!key.isValid()) continue;
+                        if (key.isConnectable()) connection.onConnect();
+                        else {
+                            if (key.isValid() && key.isWritable()) connection.flush();
+                            if (key.isValid() && key.isReadable()) connection.onReadable();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    long now = System.nanoTime();
+                    while ((next = events.peek()) != null && next.time <= now) {
+                        events.poll();
+                        if (next.generation == next.connection.generation) next.connection.onEvent(next);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    errors.increment();
+                }
+            }
+        }
+    }
+
+    private static final int SEND = 0;
+    private static final int LIST = 1;
+    private static final int CHURN = 2;
+    private static final int RECONNECT = 3;
+
+    private static final class Event implements Comparable<Event> {
+        final long time;
+        final Connection connection;
+        final int generation;
+        final int type;
+
+        Event(long time, Connection connection, int generation, int type) {
+            this.time = time;
+            this.connection = connection;
+            this.generation = generation;
+            this.type = type;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            return Long.compare(time, o.time);
+        }
+    }
+
+    /**
+     * Один имитируемый пользователь. Все поля меняются только потоком его {@link Loop}
+     */
+    private final class Connection {
+        private static final int HELLO = 0;
+        private static final int REGISTERING = 1;
+        private static final int LOGGING_IN = 2;
+        private static final int ONLINE = 3;
+
+        final int index;
+        final Loop loop;
+        final String login;
+        final byte[] loginBytes;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private int state;
+        private boolean registered = !register;
+        private String token;
+        private boolean resuming;
+        /**
+         * Подключение, для которого уже запланирован трафик
+         */
+        private int trafficGeneration = -1;
+        /**
+         * Номер подключения: события прошлых подключений пропускаются
+         */
+        int generation;
+        private long loginStart;
+        private long listStart;
+        private boolean inList;
+        private final ByteBuffer out = ByteBuffer.allocate(4096);
+        private byte[] partial = new byte[0];
+
+        Connection(int index, Loop loop) {
+            this.index = index;
+            this.loop = loop;
+            this.login = prefix + index;
+            this.loginBytes = login.getBytes(StandardCharsets.UTF_8);
+        }
+
+        void connect() {
+            generation++;
+            state = HELLO;
+            inList = false;
+            partial = new byte[0];
+            out.clear();
+            loginStart = System.nanoTime();
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if (localAddresses > 1) {
+                    channel.bind(new InetSocketAddress("127.0.0." + (1 + index % localAddresses), 0));
+                }
+                channel.connect(new InetSocketAddress(host, port));
+                key = channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+            } catch (IOException e) {
+                failed();
+            }
+        }
+
+        void onConnect() {
+            try {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                failed();
+            }
+        }
+
+        void onReadable() {
+            ByteBuffer in = loop.in;
+            in.clear();
+            in.put(partial);
+            int read;
+            try {
+                read = channel.read(in);
+            } catch (IOException e) {
+                read = -1;
+            }
+            if (read < 0) {
+                closed();
+                return;
+            }
+            in.flip();
+            int start = 0;
+            for (int i = 0; i < in.limit(); i++) {
+                if (in.get(i) != '\n') continue;
+                int length = i - start;
+                if (length > 0 && in.get(i - 1) == '\r') length--;
+                in.position(start);
+                in.get(loop.line, 0, Math.min(length, MAX_LINE));
+                onLine(loop.line, length);
+                if (channel == null) return;
+                start = i + 1;
+            }
+            partial = new byte[in.limit() - start];
+            in.position(start);
+            in.get(partial);
+        }
+
+        private void onLine(byte[] bytes, int length) {
+            if (startsWith(bytes, length, MESSAGE_PREFIX)) {
+                onMessage(bytes, length);
+                return;
+            }
+            String text = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            if (text.startsWith("Session ")) {
+                token = text.substring(8);
+            } else if ("<<<".equals(text)) {
+                inList = !inList;
+                if (!inList) onListEnd();
+            } else if ("Server Ok".equals(text)) {
+                onHello();
+            } else if ("Login Ok".equals(text)) {
+                onLogin();
+            } else if ("Login failed 6".equals(text)) {
+                // токен не действует - обычный вход в том же подключении
+                token = null;
+                resuming = false;
+                send(loginLine());
+            } else if (text.startsWith("Login failed")) {
+                loginFailures.increment();
+                close();
+                loop.schedule(System.nanoTime() + TimeUnit.SECONDS.toNanos(1), this, RECONNECT);
+            }
+        }
+
+        private void onHello() {
+            if (!registered) {
+                // ответ на регистрацию не приходит: об успехе говорит ответ на <<< после нее
+                state = REGISTERING;
+                send("register;" + login + ";p" + index + ";User " + index + ";2000-01-01;Load\n<<<\n");
+            } else if (token != null) {
+                state = LOGGING_IN;
+                resuming = true;
+                send("resume;" + token + "\n");
+            } else {
+                state = LOGGING_IN;
+                send(loginLine());
+            }
+        }
+
+        private String loginLine() {
+            return "login;" + login + ";p" + index + (resume ? ";resume" : "") + "\n";
+        }
+
+        private void onLogin() {
+            if (resuming) resumed.increment();
+            resuming = false;
+            online();
+        }
+
+        private void onListEnd() {
+            if (state == REGISTERING) {
+                // регистрация - только подготовка: дальше пользователь входит как обычно
+                // (и получает токен возобновления, если он нужен)
+                registered = true;
+                send(">>>exit<<<\n");
+                close();
+                connect();
+                return;
+            }
+            if (listStart > 0) {
+                listLatency.record(System.nanoTime() - listStart);
+                listStart = 0;
+            }
+        }
+
+        private void online() {
+            state = ONLINE;
+            loginLatency.record(System.nanoTime() - loginStart);
+            logins.increment();
+            online.incrementAndGet();
+            if (traffic) scheduleTraffic();
+        }
+
+        private void onMessage(byte[] bytes, int length) {
+            // >>>отправитель>>>время текст
+            int textStart = -1;
+            for (int i = MESSAGE_PREFIX.length; i + 2 < length; i++) {
+                if (bytes[i] == '>' && bytes[i + 1] == '>' && bytes[i + 2] == '>') {
+                    textStart = i + 3;
+                    break;
+                }
+            }
+            received.increment();
+            if (textStart < 0) return;
+            long stamp = 0;
+            int i = textStart;
+            while (i < length && bytes[i] >= '0' && bytes[i] <= '9') {
+                stamp = stamp * 10 + bytes[i++] - '0';
+            }
+            if (i > textStart) messageLatency.record(System.nanoTime() - stamp);
+        }
+
+        void addFriends() {
+            if (state != ONLINE || friends[index].length == 0) return;
+            int[] list = friends[index];
+            for (int from = 0; from < list.length; from += FRIENDS_PER_LINE) {
+                StringBuilder line = new StringBuilder("+++").append(login);
+                for (int k = from; k < Math.min(list.length, from + FRIENDS_PER_LINE); k++) {
+                    line.append(';').append(prefix).append(list[k]);
+                }
+                send(line.append('\n').toString());
+            }
+        }
+
+        void scheduleTraffic() {
+            if (state != ONLINE || trafficGeneration == generation) return;
+            trafficGeneration = generation;
+            long now = System.nanoTime();
+            if (rate > 0) loop.schedule(now + nextInterval(rate), this, SEND);
+            if (listRate > 0) loop.schedule(now + nextInterval(listRate), this, LIST);
+            if (churn > 0) loop.schedule(now + nextInterval(churn), this, CHURN);
+        }
+
+        void onEvent(Event event) {
+            if (event.type == RECONNECT) {
+                reconnects.increment();
+                connect();
+                return;
+            }
+            if (!traffic || state != ONLINE) return;
+            switch (event.type) {
+                case SEND:
+                    sendMessage(event.time);
+                    loop.schedule(event.time + nextInterval(rate), this, SEND);
+                    break;
+                case LIST:
+                    if (listStart == 0) {
+                        listStart = System.nanoTime();
+                        send("<<<\n");
+                    }
+                    loop.schedule(event.time + nextInterval(listRate), this, LIST);
+                    break;
+                case CHURN:
+                    // с возобновлением сессии подключение обрывается, иначе клиент выходит сам
+                    if (!resume) send(">>>exit<<<\n");
+                    close();
+                    loop.schedule(System.nanoTime() + churnPauseNanos, this, RECONNECT);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Отправка сообщения другу или случайному пользователю
+         * @param scheduled запланированное время отправки - записывается в текст
+         */
+        private void sendMessage(long scheduled) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int[] list = friends[index];
+            int receiver = list.length > 0 ? list[random.nextInt(list.length)] : random.nextInt(users);
+            StringBuilder line = new StringBuilder(size + 32).append(prefix).append(receiver)
+                    .append(';').append(login).append(';').append(scheduled).append(' ');
+            while (line.length() < size + 16) line.append('x');
+            if (send(line.append('\n').toString())) sent.increment();
+            else dropped.increment();
+        }
+
+        void exit() {
+            if (state == ONLINE) send(">>>exit<<<\n");
+        }
+
+        /**
+         * Запись строки; если сокет не принимает данные, остаток дописывается по готовности к записи
+         * @return false, если буфер отправки переполнен и строка отброшена
+         */
+        private boolean send(String text) {
+            if (channel == null) return false;
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > out.remaining()) return false;
+            out.put(bytes);
+            flush();
+            return true;
+        }
+
+        void flush() {
+            out.flip();
+            try {
+                channel.write(out);
+            } catch (IOException e) {
+                out.clear();
+                closed();
+                return;
+            } finally {
+                if (out.hasRemaining()) out.compact();
+                else out.clear();
+            }
+            if (key.isValid()) {
+                key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Сервер закрыл подключение: при регистрации - пользователь уже есть и надо войти,
+         * иначе - переподключение через паузу
+         */
+        private void closed() {
+            int was = state;
+            close();
+            if (was == REGISTERING) {
+                registered = true;
+                connect();
+            } else {
+                if (was == ONLINE) errors.increment();
+                loop.schedule(System.nanoTime() + churnPauseNanos, this, RECONNECT);
+            }
+        }
+
+        private void close() {
+            if (state == ONLINE) online.decrementAndGet();
+            state = HELLO;
+            generation++;
+            if (channel == null) return;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                errors.increment();
+            }
+            channel = null;
+            key = null;
+        }
+
+        private void failed() {
+            errors.increment();
+            close();
+            loop.schedule(System.nanoTime() + TimeUnit.SECONDS.toNanos(1), this, RECONNECT);
+        }
+    }
+
+    private static long nextInterval(double perSecond) {
+        // пуассоновский поток: экспоненциальные интервалы
+        double u = ThreadLocalRandom.current().nextDouble();
+        return (long) (-Math.log(1 - u) / perSecond * 1e9);
+    }
+
+    private static boolean startsWith(byte[] bytes, int length, byte[] prefix) {
+        return length >= prefix.length && Arrays.equals(bytes, 0, prefix.length, prefix, 0, prefix.length);
+    }
+}
@@ -0,0 +1,78 @@
+package ua.mk.berkut.maserver.tools;
+
+import ua.mk.berkut.maserver.auth.Authenticator;
+import ua.mk.berkut.maserver.auth.LoginRateLimiter;
+import ua.mk.berkut.maserver.auth.PasswordHasher;
+import ua.mk.berkut.maserver.auth.VerifiedSessionCache;
+import ua.mk.berkut.maserver.db.User;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Задержка входа при массовом переподключении (например, после перезапуска балансировщика):
+ * все пользователи входят одновременно из нескольких потоков, несколько раундов подряд.
+ * Первый раунд проверяет пароли хешированием в пуле {@link Authenticator}, следующие -
+ * по кэшу проверенных паролей. Выводятся перцентили задержки, пропускная способность
+ * и число отклоненных из-за переполнения очереди попыток.
+ * Запуск: {@code java -cp target/classes ua.mk.berkut.maserver.tools.LoginStormBenchmark [users] [clients] [rounds] [iterations]}
+ */
+public class LoginStormBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 100_000;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        PasswordHasher hasher = new PasswordHasher(iterations);
+        Authenticator authenticator = new Authenticator(hasher, new LoginRateLimiter(0, 0),
+                new VerifiedSessionCache(300), threads, users, 60_000, (user, stored) -> { });
+        User[] accounts = new User[users];
+        for (int i = 0; i < users; i++) {
+            accounts[i] = new User(i + 1, "user" + i, authenticator.hash("password" + i),
+                    "User " + i, LocalDate.now(), "", "");
+        }
+
+        System.out.println("round\tlogins/s\tp50 ms\tp90 ms\tp99 ms\tmax ms\trejected");
+        for (int round = 1; round <= rounds; round++) {
+            long[] latencies = new long[users];
+            AtomicInteger next = new AtomicInteger();
+            AtomicInteger rejected = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(clients);
+            long start = System.nanoTime();
+            for (int c = 0; c < clients; c++) {
+                new Thread(() -> {
+                    for (int i = next.getAndIncrement(); i < users; i = next.getAndIncrement()) {
+                        long begin = System.nanoTime();
+                        try {
+                            if (!authenticator.verify(accounts[i], "password" + i)) {
+                                throw new IllegalStateException("Login failed for " + accounts[i].getLogin());
+                            }
+                        } catch (RejectedExecutionException e) {
+                            rejected.incrementAndGet();
+                        }
+                        latencies[i] = System.nanoTime() - begin;
+                    }
+                    done.countDown();
+                }).start();
+            }
+            done.await();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Arrays.sort(latencies);
+            System.out.printf("%d\t%.0f\t%.2f\t%.2f\t%.2f\t%.2f\t%d%n", round, users / seconds,
+                    percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99),
+                    latencies[users - 1] / 1e6, rejected.get());
+        }
+        System.out.printf("hash threads: %d, verifications: %d, avg verify: %.2f ms, cache hits: %d%n", threads,
+                authenticator.getVerificationCount(), authenticator.getAverageVerifyMillis(), authenticator.getCacheHitCount());
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1e6;
+    }
+}
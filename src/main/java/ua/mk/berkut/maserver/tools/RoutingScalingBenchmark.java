@@ -0,0 +1,105 @@
+package ua.mk.berkut.maserver.tools;
+
+import ua.mk.berkut.maserver.clients.Client;
+import ua.mk.berkut.maserver.clients.OutboundQueue;
+import ua.mk.berkut.maserver.db.User;
+import ua.mk.berkut.maserver.online.MessageRouter;
+import ua.mk.berkut.maserver.online.OnlineRegistry;
+import ua.mk.berkut.maserver.protocol.Frame;
+
+import java.time.LocalDate;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Масштабирование маршрутизации сообщений по числу ядер.
+ * Несколько потоков-отправителей пересылают сообщения случайным получателям через
+ * {@link MessageRouter}; для сравнения тот же прогон выполняется под одной общей блокировкой,
+ * как это было с synchronized processMessage.
+ * Запуск: {@code java -cp target/classes ua.mk.berkut.maserver.tools.RoutingScalingBenchmark [users] [seconds]}
+ */
+public class RoutingScalingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+
+        OnlineRegistry registry = new OnlineRegistry();
+        String[] messages = new String[users];
+        for (int i = 0; i < users; i++) {
+            registry.add(new CountingClient(new User(i + 1, "user" + i, "", "User " + i, LocalDate.now(), "", "")));
+            messages[i] = "user" + i + ";sender;hello from benchmark";
+        }
+        MessageRouter router = new MessageRouter(registry);
+        Object globalLock = new Object();
+        run(maxThreads, 1, messages, router::route); // прогрев
+
+        System.out.println("threads\tlock-free msg/s\tglobal-lock msg/s");
+        for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+            double lockFree = run(threads, seconds, messages, router::route);
+            double locked = run(threads, seconds, messages, m -> {
+                synchronized (globalLock) {
+                    return router.route(m);
+                }
+            });
+            System.out.printf("%d\t%.0f\t%.0f%n", threads, lockFree, locked);
+            if (threads == maxThreads) break;
+        }
+    }
+
+    private interface Route {
+        boolean route(String message);
+    }
+
+    private static double run(int threads, int seconds, String[] messages, Route route) throws InterruptedException {
+        LongAdder sent = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                while ((count & 1023) != 0 || System.nanoTime() < deadline) {
+                    route.route(messages[random.nextInt(messages.length)]);
+                    count++;
+                }
+                sent.add(count);
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        return sent.sum() / (double) seconds;
+    }
+
+    /**
+     * Клиент без сокета: кадр кодируется и ставится в очередь, которую сразу же опустошает отправитель
+     */
+    private static class CountingClient implements Client {
+        private final User user;
+        private static final ThreadLocal<Frame[]> batch = ThreadLocal.withInitial(() -> new Frame[64]);
+        private final OutboundQueue out = new OutboundQueue(1024, OutboundQueue.OverflowPolicy.DROP, 0);
+
+        CountingClient(User user) {
+            this.user = user;
+        }
+
+        @Override
+        public User getUser() {
+            return user;
+        }
+
+        @Override
+        public void sendFrame(Frame frame) {
+            out.offer(frame);
+            if (out.size() >= 64) {
+                Frame[] frames = batch.get();
+                int n = out.drainTo(frames);
+                for (int i = 0; i < n; i++) {
+                    frames[i].release();
+                }
+            }
+        }
+    }
+}